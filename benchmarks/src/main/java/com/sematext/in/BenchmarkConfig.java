@@ -0,0 +1,29 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.configuration.SystemConfiguration;
+
+/**
+ * Configuration benchmarks use: system properties over config.properties of the benchmarked jar.
+ */
+class BenchmarkConfig {
+  private BenchmarkConfig() {
+  }
+
+  static CompositeConfiguration get() throws ConfigurationException {
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(new SystemConfiguration());
+    config.addConfiguration(new PropertiesConfiguration("config.properties"));
+    return config;
+  }
+}
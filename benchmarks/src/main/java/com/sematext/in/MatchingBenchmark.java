@@ -0,0 +1,75 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyword counting over text already extracted from a message: lowercasing the whole text and counting every
+ * keyword with StringUtils.countMatches (how extract() used to match) against one {@link KeywordMatcher} pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+  private static final List<String> SOLR = Arrays.asList("solr", "lucene");
+  private static final List<String> ES = Arrays.asList("elasticsearch", "kibana", "logstash");
+
+  @Param({ "PLAIN", "HTML", "NESTED" })
+  public MessageShape shape;
+
+  private String content;
+  private KeywordMatcher matcher;
+
+  @Setup
+  public void setUp() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    new IMapFetcher(BenchmarkConfig.get(), new String[0], new String[0], null)
+        .getPartContent(MessageCorpus.parse(MessageCorpus.build(shape)), sb);
+    content = sb.toString();
+    matcher = new KeywordMatcher(Arrays.asList(SOLR, ES));
+  }
+
+  @Benchmark
+  public int lowercaseCountMatches() {
+    String lower = content.toLowerCase();
+    int solrCount = 0;
+    int esCount = 0;
+    for (String keyword : SOLR) {
+      solrCount += StringUtils.countMatches(lower, keyword);
+    }
+    for (String keyword : ES) {
+      esCount += StringUtils.countMatches(lower, keyword);
+    }
+    return solrCount * 31 + esCount;
+  }
+
+  @Benchmark
+  public int[] keywordMatcher() {
+    return matcher.countMatches(content);
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Raw messages benchmarks parse and process. Text is made of technical words with a few keywords, so matching
+ * finds hits but most text is scanned without one.
+ */
+class MessageCorpus {
+  static final Session SESSION = Session.getInstance(new Properties());
+  private static final String[] WORDS = { "index", "query", "shard", "replica", "cluster", "node", "cache",
+      "segment", "merge", "commit", "field", "facet", "document", "schema", "analyzer", "token", "Solr",
+      "ElasticSearch", "latency", "heap", "garbage", "collector", "thread", "pool", "request", "response" };
+
+  private MessageCorpus() {
+  }
+
+  static byte[] build(MessageShape shape) throws MessagingException, IOException {
+    Random random = new Random(42);
+    MimeMessage message = newMessage("Question about our cluster");
+    switch (shape) {
+    case PLAIN:
+      message.setText(text(random, 4 * 1024), "UTF-8");
+      break;
+    case HTML:
+      message.setContent(html(random, 256 * 1024), "text/html; charset=UTF-8");
+      break;
+    case NESTED:
+      MimeMultipart mixed = new MimeMultipart();
+      mixed.addBodyPart(bodyPart(alternative(random, 8 * 1024)));
+      MimeBodyPart attachment = new MimeBodyPart();
+      byte[] data = new byte[64 * 1024];
+      random.nextBytes(data);
+      attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/pdf")));
+      attachment.setFileName("report.pdf");
+      mixed.addBodyPart(attachment);
+      MimeMessage forwarded = newMessage("Fwd: older thread");
+      forwarded.setContent(alternative(random, 4 * 1024));
+      forwarded.saveChanges();
+      MimeBodyPart nested = new MimeBodyPart();
+      nested.setContent(forwarded, "message/rfc822");
+      mixed.addBodyPart(nested);
+      message.setContent(mixed);
+      break;
+    }
+    message.saveChanges();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writeTo(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Parses the message, content stays in the raw bytes until it's read.
+   */
+  static MimeMessage parse(byte[] raw) throws MessagingException {
+    return new MimeMessage(SESSION, new SharedByteArrayInputStream(raw));
+  }
+
+  private static MimeMessage newMessage(String subject) throws MessagingException {
+    MimeMessage message = new MimeMessage(SESSION);
+    message.setFrom(new InternetAddress("ann@example.com"));
+    message.setRecipients(Message.RecipientType.TO, "bob@example.com, carol@example.com");
+    message.setRecipients(Message.RecipientType.CC, "sales@sematext.com");
+    message.setSubject(subject);
+    message.setSentDate(new Date(1452384000000L));
+    return message;
+  }
+
+  private static MimeMultipart alternative(Random random, int bytes) throws MessagingException {
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    MimeBodyPart plain = new MimeBodyPart();
+    plain.setText(text(random, bytes), "UTF-8");
+    alternative.addBodyPart(plain);
+    MimeBodyPart html = new MimeBodyPart();
+    html.setContent(html(random, bytes * 2), "text/html; charset=UTF-8");
+    alternative.addBodyPart(html);
+    return alternative;
+  }
+
+  private static MimeBodyPart bodyPart(MimeMultipart multipart) throws MessagingException {
+    MimeBodyPart part = new MimeBodyPart();
+    part.setContent(multipart);
+    return part;
+  }
+
+  private static String text(Random random, int bytes) {
+    StringBuilder sb = new StringBuilder(bytes + 16);
+    while (sb.length() < bytes) {
+      sb.append(WORDS[random.nextInt(WORDS.length)]);
+      sb.append(sb.length() % 76 > 64 ? '\n' : ' ');
+    }
+    return sb.toString();
+  }
+
+  private static String html(Random random, int bytes) {
+    StringBuilder sb = new StringBuilder(bytes + 64);
+    sb.append("<html><head><style>p { font-family: sans-serif; }</style></head><body>\n");
+    while (sb.length() < bytes) {
+      sb.append("<p class=\"c").append(random.nextInt(10)).append("\">").append(text(random, 200)).append("</p>\n");
+    }
+    sb.append("</body></html>\n");
+    return sb.toString();
+  }
+}
@@ -0,0 +1,21 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+/**
+ * Shapes of {@link MessageCorpus} messages, public for generated benchmark code.
+ */
+public enum MessageShape {
+  // 4KB text/plain
+  PLAIN,
+  // 256KB text/html only, like newsletters and mails from web clients
+  HTML,
+  // multipart/mixed: alternative (plain + html), a binary attachment and a forwarded multipart message
+  NESTED
+}
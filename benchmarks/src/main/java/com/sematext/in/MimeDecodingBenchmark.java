@@ -0,0 +1,83 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Walking the MIME tree and decoding text parts of a raw message: {@link IMapFetcher#getPartContent} builds one
+ * String of all text, {@link PartContentReader} streams decoded chunks into a scanner. Parsing the headers alone is
+ * the baseline both include.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeDecodingBenchmark {
+  @Param({ "PLAIN", "HTML", "NESTED" })
+  public MessageShape shape;
+
+  private byte[] raw;
+  private IMapFetcher fetcher;
+  private KeywordMatcher.Scanner scanner;
+  private PartContentReader reader;
+
+  @Setup
+  public void setUp() throws Exception {
+    raw = MessageCorpus.build(shape);
+    fetcher = new IMapFetcher(BenchmarkConfig.get(), new String[0], new String[0], null);
+    scanner = new KeywordMatcher(Arrays.<List<String>> asList(Arrays.asList("solr"),
+        Arrays.asList("elasticsearch"))).newScanner();
+    reader = new PartContentReader(Integer.MAX_VALUE);
+  }
+
+  @Benchmark
+  public MimeMessage parseHeaders() throws Exception {
+    MimeMessage message = MessageCorpus.parse(raw);
+    message.getSubject();
+    return message;
+  }
+
+  @Benchmark
+  public int getPartContent() throws Exception {
+    MimeMessage message = MessageCorpus.parse(raw);
+    StringBuilder sb = new StringBuilder();
+    sb.append(message.getSubject()).append(' ');
+    fetcher.getPartContent(message, sb);
+    return sb.length();
+  }
+
+  @Benchmark
+  public int[] partContentReader() throws Exception {
+    MimeMessage message = MessageCorpus.parse(raw);
+    scanner.reset();
+    scanner.feed(message.getSubject());
+    scanner.feed(' ');
+    reader.read(message, scanner);
+    return scanner.getCounts();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the rows of one matching message (one sender, three recipients) to a discarding writer: the Formatter
+ * path System.out.format used to take, with the date formatted for every row, against the result sinks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+  private static final Date DATE = new Date(1452384000000L);
+  private static final List<String> FROM = Arrays.asList("ann@example.com");
+  private static final List<String> TO = Arrays.asList("bob@example.com", "carol@example.com", "sales@sematext.com");
+
+  private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+  private Formatter formatter;
+  private MatchResult result;
+  private ResultSink text;
+  private ResultSink jsonl;
+  private ResultSink csv;
+
+  /**
+   * Discards everything, so only formatting and buffering are measured.
+   */
+  static class NullWriter extends Writer {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static Writer newWriter() {
+    return new BufferedWriter(new NullWriter(), 64 * 1024);
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    formatter = new Formatter(new NullWriter());
+    result = new MatchResult("Solr", "INBOX", DATE, format.format(DATE), FROM, TO);
+    text = new TextResultSink(newWriter());
+    jsonl = new JsonlResultSink(newWriter());
+    csv = new CsvResultSink(newWriter());
+  }
+
+  @Benchmark
+  public void formatter() {
+    for (String address : FROM) {
+      formatter.format("from %s Solr %s at %s \n", address, "INBOX", format.format(DATE));
+    }
+    for (String address : TO) {
+      formatter.format("to %s Solr %s at %s \n", address, "INBOX", format.format(DATE));
+    }
+  }
+
+  @Benchmark
+  public void textSink() throws IOException {
+    text.write(result);
+  }
+
+  @Benchmark
+  public void jsonlSink() throws IOException {
+    jsonl.write(result);
+  }
+
+  @Benchmark
+  public void csvSink() throws IOException {
+    csv.write(result);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything done per message after it's fetched: parsing, decoding, matching and building the result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessMessageBenchmark {
+  @Param({ "PLAIN", "HTML", "NESTED" })
+  public MessageShape shape;
+
+  private byte[] raw;
+  private EmailExtractor extractor;
+  private KeywordMatcher.Scanner scanner;
+  private PartContentReader reader;
+
+  @Setup
+  public void setUp() throws Exception {
+    raw = MessageCorpus.build(shape);
+    extractor = new EmailExtractor();
+    extractor.configure(BenchmarkConfig.get(), null, null, null);
+    scanner = extractor.getMatcher().newScanner();
+    reader = new PartContentReader(extractor.getMaxMessageBytes());
+  }
+
+  @Benchmark
+  public MatchResult processMessage() throws Exception {
+    return extractor.processMessage(MessageCorpus.parse(raw), "INBOX", null, 0, scanner, reader);
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts from several accounts in one JVM. Every account runs as a task with its own connection and
+ * {@link IMapFetcher}, sharing the classifier, metrics, cache and output of the extractor it was started from.
+ * Accounts on the same IMAP host use at most accounts.max_connections_per_host connections at a time, every running
+ * account may hold {@link #CONNECTIONS_PER_ACCOUNT}. The others wait in a per host queue without holding a thread, so
+ * accounts on other hosts aren't held up by a busy one.
+ *
+ * The manifest is a properties file: {@code accounts} lists account names and {@code account.<name>.<key>} overrides
+ * any configuration key for that account, e.g. {@code account.alice.imap.user}. Folder names in the output are
+ * prefixed with the account name, {@code alice:INBOX}. With a checkpoint file every account uses its own,
+ * {@code <file>.<name>}.
+ */
+class AccountRunner {
+  private static final Logger LOG = LoggerFactory.getLogger(AccountRunner.class);
+  // JavaMail lends the idle store connection to the open folder, and opens a second one when the store is used while
+  // a folder is open
+  static final int CONNECTIONS_PER_ACCOUNT = 2;
+
+  private final EmailExtractor extractor;
+  private final int accountsPerHost;
+  private final File checkpointFile;
+
+  // host -> accounts waiting for connections, running accounts
+  private final Map<String, Queue<Account>> waiting = Maps.newLinkedHashMap();
+  private final Map<String, Integer> running = Maps.newHashMap();
+  private final Map<String, Integer> peak = Maps.newHashMap();
+  private ExecutorService executor;
+  private ResultSink sink;
+  private int pending;
+  private int failed;
+
+  static class Account {
+    private final String name;
+    private final CompositeConfiguration config;
+    private final String host;
+
+    Account(String name, CompositeConfiguration config) {
+      this.name = name;
+      this.config = config;
+      this.host = config.getString("imap.host", "").toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * @param maxConnections connections per host, at least one account runs
+   * @param checkpointFile base name of per account checkpoint files, null for none
+   */
+  AccountRunner(EmailExtractor extractor, int maxConnections, File checkpointFile) {
+    this.extractor = extractor;
+    this.accountsPerHost = Math.max(1, maxConnections / CONNECTIONS_PER_ACCOUNT);
+    this.checkpointFile = checkpointFile;
+  }
+
+  /**
+   * Reads accounts from the manifest, their settings fall back to config.
+   */
+  static List<Account> readAccounts(Configuration manifest, Configuration config) {
+    List<Account> accounts = Lists.newArrayList();
+    for (String name : manifest.getStringArray("accounts")) {
+      name = name.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      CompositeConfiguration accountConfig = new CompositeConfiguration();
+      accountConfig.addConfiguration(manifest.subset("account." + name));
+      accountConfig.addConfiguration(config);
+      accounts.add(new Account(name, accountConfig));
+    }
+    return accounts;
+  }
+
+  /**
+   * Returns the folder name as it's written for an account, the name itself without an account.
+   */
+  static String qualify(String account, String folder) {
+    return account == null || folder == null ? folder : account + ":" + folder;
+  }
+
+  /**
+   * Processes all accounts and returns when the last one finished. The sink isn't closed.
+   */
+  void run(List<Account> accounts, ResultSink sink) {
+    this.sink = sink;
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private int count;
+
+      public synchronized Thread newThread(Runnable r) {
+        return new Thread(r, "account-" + count++);
+      }
+    });
+    synchronized (this) {
+      for (Account account : accounts) {
+        Queue<Account> queue = waiting.get(account.host);
+        if (queue == null) {
+          queue = new ArrayDeque<Account>();
+          waiting.put(account.host, queue);
+        }
+        queue.add(account);
+      }
+      pending = accounts.size();
+      LOG.info("Processing {} accounts on {} hosts, at most {} accounts ({} connections) per host", accounts.size(),
+          waiting.size(), accountsPerHost, accountsPerHost * CONNECTIONS_PER_ACCOUNT);
+      schedule();
+    }
+
+    try {
+      synchronized (this) {
+        while (pending > 0) {
+          wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (failed > 0) {
+        LOG.warn("{} of {} accounts failed", failed, accounts.size());
+      }
+      for (Map.Entry<String, Integer> entry : peak.entrySet()) {
+        LOG.info("Host {}: at most {} concurrent accounts", entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the most accounts which ran on the host at the same time.
+   */
+  synchronized int getPeakAccounts(String host) {
+    Integer max = peak.get(host.toLowerCase(Locale.ROOT));
+    return max == null ? 0 : max;
+  }
+
+  /**
+   * Starts waiting accounts of hosts with free slots.
+   */
+  private synchronized void schedule() {
+    for (Map.Entry<String, Queue<Account>> entry : waiting.entrySet()) {
+      String host = entry.getKey();
+      Queue<Account> queue = entry.getValue();
+      while (!queue.isEmpty() && count(running, host) < accountsPerHost) {
+        final Account account = queue.poll();
+        int active = count(running, host) + 1;
+        running.put(host, active);
+        peak.put(host, Math.max(count(peak, host), active));
+        executor.execute(new Runnable() {
+          public void run() {
+            boolean ok = false;
+            try {
+              ok = process(account);
+            } catch (RuntimeException e) {
+              LOG.error("Account {} failed", account.name, e);
+            } finally {
+              done(account, ok);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  private synchronized void done(Account account, boolean ok) {
+    running.put(account.host, count(running, account.host) - 1);
+    pending--;
+    if (!ok) {
+      failed++;
+    }
+    schedule();
+    notifyAll();
+  }
+
+  private static int count(Map<String, Integer> counts, String host) {
+    Integer count = counts.get(host);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Extracts one account, returns false if it couldn't be processed.
+   */
+  private boolean process(Account account) {
+    long start = System.nanoTime();
+    EmailExtractor accountExtractor = new EmailExtractor(extractor, account.name, account.config);
+    if (checkpointFile != null) {
+      File file = new File(checkpointFile.getPath() + "." + account.name);
+      try {
+        CheckpointStore checkpoints = new CheckpointStore(file);
+        checkpoints.setOutput(sink);
+        accountExtractor.setCheckpointStore(checkpoints);
+      } catch (IOException e) {
+        LOG.error("Can't read checkpoint file {}", file, e);
+        return false;
+      }
+    }
+    MessageSource fetcher;
+    try {
+      fetcher = accountExtractor.newSource();
+    } catch (IOException e) {
+      LOG.error("Account {} can't open message source", account.name, e);
+      return false;
+    }
+    if (!fetcher.connectToMailBox()) {
+      LOG.error("Can't connect to mailbox of account {}", account.name);
+      return false;
+    }
+    try {
+      accountExtractor.extract(fetcher, sink);
+    } finally {
+      fetcher.disconnectFromMailBox();
+    }
+    LOG.info("Finished account {} in {} s", account.name, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    return true;
+  }
+}
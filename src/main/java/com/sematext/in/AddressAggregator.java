@@ -0,0 +1,226 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aggregates matching messages per address instead of printing a line for every address of every message. Per
+ * address it keeps the number of messages in each category, first and last seen date and folders seen.
+ *
+ * Records live in an open addressing table with parallel primitive arrays, so memory grows with the number of
+ * distinct addresses and not with the number of messages. Addresses are compared lowercased. Rows are written when
+ * the sink is closed. Thread safe.
+ */
+public class AddressAggregator implements ResultSink {
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int[] NO_FOLDERS = new int[0];
+
+  private final Writer out;
+  private final List<String> categoryNames;
+  private final int categories;
+
+  // folder name -> id, folders of an address are stored as ids
+  private final Map<String, Integer> folderIds = Maps.newHashMap();
+  private final List<String> folderNames = Lists.newArrayList();
+
+  private String[] keys;
+  private int[] counts;
+  private long[] firstSeen;
+  private long[] lastSeen;
+  private long[] lastMessage;
+  private int[][] folders;
+  private int size;
+  private long messages;
+
+  public AddressAggregator(Writer out, String... categoryNames) {
+    this.out = out;
+    this.categoryNames = Arrays.asList(categoryNames);
+    this.categories = categoryNames.length;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  public void write(MatchResult result) {
+    List<String> addresses = Lists.newArrayList(result.getFrom());
+    addresses.addAll(result.getTo());
+    // a multi-label message is counted once in each of its categories
+    for (String category : result.getCategories()) {
+      addMessage(addresses, categoryNames.indexOf(category), result.getReceivedDate(), result.getFolder());
+    }
+  }
+
+  /**
+   * Rows are only written on close.
+   */
+  public void flush() {
+  }
+
+  public synchronized void close() throws IOException {
+    writeRows();
+    out.close();
+  }
+
+  /**
+   * Records one matching message, an address listed more than once in the message is counted once.
+   */
+  public synchronized void addMessage(List<String> addresses, int category, Date receivedDate, String folder) {
+    long message = ++messages;
+    int folderId = folderId(folder);
+    long time = receivedDate == null ? Long.MIN_VALUE : receivedDate.getTime();
+    for (String address : addresses) {
+      if (address == null) {
+        continue;
+      }
+      int slot = slot(address.toLowerCase(Locale.ROOT));
+      if (lastMessage[slot] == message) {
+        continue;
+      }
+      lastMessage[slot] = message;
+      counts[slot * categories + category]++;
+      if (time != Long.MIN_VALUE) {
+        firstSeen[slot] = Math.min(firstSeen[slot], time);
+        lastSeen[slot] = Math.max(lastSeen[slot], time);
+      }
+      addFolder(slot, folderId);
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Writes a tab separated header and one row per address.
+   */
+  private void writeRows() throws IOException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    StringBuilder sb = new StringBuilder("address");
+    for (String name : categoryNames) {
+      sb.append('\t').append(name);
+    }
+    out.append(sb).append("\tfirst_seen\tlast_seen\tfolders\n");
+
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] == null) {
+        continue;
+      }
+      sb.setLength(0);
+      sb.append(keys[slot]);
+      for (int c = 0; c < categories; c++) {
+        sb.append('\t').append(counts[slot * categories + c]);
+      }
+      boolean dated = firstSeen[slot] != Long.MAX_VALUE;
+      sb.append('\t').append(dated ? format.format(new Date(firstSeen[slot])) : "");
+      sb.append('\t').append(dated ? format.format(new Date(lastSeen[slot])) : "");
+      sb.append('\t');
+      int[] ids = folders[slot];
+      for (int i = 0; i < ids.length; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(folderNames.get(ids[i]));
+      }
+      out.append(sb).append('\n');
+    }
+  }
+
+  private int folderId(String folder) {
+    Integer id = folderIds.get(folder);
+    if (id == null) {
+      id = folderNames.size();
+      folderIds.put(folder, id);
+      folderNames.add(folder);
+    }
+    return id;
+  }
+
+  private void addFolder(int slot, int folderId) {
+    int[] ids = folders[slot];
+    for (int id : ids) {
+      if (id == folderId) {
+        return;
+      }
+    }
+    ids = Arrays.copyOf(ids, ids.length + 1);
+    ids[ids.length - 1] = folderId;
+    folders[slot] = ids;
+  }
+
+  private int slot(String key) {
+    int mask = keys.length - 1;
+    int slot = mix(key.hashCode()) & mask;
+    while (keys[slot] != null) {
+      if (keys[slot].equals(key)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+      return slot(key);
+    }
+    keys[slot] = key;
+    firstSeen[slot] = Long.MAX_VALUE;
+    lastSeen[slot] = Long.MIN_VALUE;
+    folders[slot] = NO_FOLDERS;
+    size++;
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    counts = new int[capacity * categories];
+    firstSeen = new long[capacity];
+    lastSeen = new long[capacity];
+    lastMessage = new long[capacity];
+    folders = new int[capacity][];
+  }
+
+  private void grow() {
+    String[] oldKeys = keys;
+    int[] oldCounts = counts;
+    long[] oldFirstSeen = firstSeen;
+    long[] oldLastSeen = lastSeen;
+    long[] oldLastMessage = lastMessage;
+    int[][] oldFolders = folders;
+
+    allocate(oldKeys.length * 2);
+    int mask = keys.length - 1;
+    for (int old = 0; old < oldKeys.length; old++) {
+      if (oldKeys[old] == null) {
+        continue;
+      }
+      int slot = mix(oldKeys[old].hashCode()) & mask;
+      while (keys[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = oldKeys[old];
+      System.arraycopy(oldCounts, old * categories, counts, slot * categories, categories);
+      firstSeen[slot] = oldFirstSeen[old];
+      lastSeen[slot] = oldLastSeen[old];
+      lastMessage[slot] = oldLastMessage[old];
+      folders[slot] = oldFolders[old];
+    }
+  }
+
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
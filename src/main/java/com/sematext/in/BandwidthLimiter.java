@@ -0,0 +1,220 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.base.Ticker;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps downloads of an account within per minute and per day byte budgets, so the server never has to throttle the
+ * connection. Both budgets are token buckets refilled continuously. The minute bucket holds one minute of budget. The
+ * day bucket holds an hour of it and is refilled with the rest over the day, so no 24 hour window goes above the
+ * daily budget. Fetched bytes are only known after a fetch, so buckets may go negative and {@link #acquire()} waits
+ * before the next fetch until the debt is paid off.
+ *
+ * When the server throttles anyway (Gmail answers [THROTTLED] or closes the connection with a bandwidth limit alert)
+ * fetching pauses, for throttle_pause_ms doubling with every throttling in a row, and the per minute rate is halved
+ * (starting from the rate of the last minute when there is no budget). Every minute without throttling the rate
+ * grows by a quarter, until it's back at the budget. Thread safe, shared by all connections of an account.
+ */
+public class BandwidthLimiter {
+  private static final Logger LOG = LoggerFactory.getLogger(BandwidthLimiter.class);
+  private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+  private static final long DAY = TimeUnit.DAYS.toNanos(1);
+  // lowest per minute rate throttling backs off to
+  private static final long MIN_RATE = 1024 * 1024;
+  // the day bucket holds 1/24 of the daily budget
+  private static final int DAY_BURSTS = 24;
+
+  private final long bytesPerMinute;
+  private final long bytesPerDay;
+  private final long dayCapacity;
+  private final long throttlePause;
+  private final long maxThrottlePause;
+  private final Ticker ticker;
+
+  // per minute rate, below the budget after throttling, 0 for no limit
+  private long rate;
+  // rate which was throttled last, without a budget the limit is dropped when recovery gets back to it
+  private long throttledRate;
+  private double minuteTokens;
+  private double dayTokens;
+  private long lastRefill;
+  // bytes of the current and the last minute
+  private long windowStart;
+  private long windowBytes;
+  private long lastWindowBytes;
+  private long pausedUntil;
+  private int throttles;
+  private long lastChange;
+  private long totalBytes;
+
+  /**
+   * @param bytesPerMinute per minute budget, 0 for none
+   * @param bytesPerDay per day budget, 0 for none
+   */
+  public BandwidthLimiter(long bytesPerMinute, long bytesPerDay, long throttlePauseMillis, long maxThrottlePauseMillis,
+      Ticker ticker) {
+    this.bytesPerMinute = Math.max(0, bytesPerMinute);
+    this.bytesPerDay = Math.max(0, bytesPerDay);
+    this.throttlePause = TimeUnit.MILLISECONDS.toNanos(throttlePauseMillis);
+    this.maxThrottlePause = TimeUnit.MILLISECONDS.toNanos(Math.max(throttlePauseMillis, maxThrottlePauseMillis));
+    this.ticker = ticker;
+    this.rate = this.bytesPerMinute;
+    this.minuteTokens = this.bytesPerMinute;
+    this.dayCapacity = this.bytesPerDay / DAY_BURSTS;
+    this.dayTokens = dayCapacity;
+    long now = ticker.read();
+    this.lastRefill = now;
+    this.windowStart = now;
+    this.lastChange = now;
+  }
+
+  public static BandwidthLimiter fromConfig(Configuration config) {
+    return new BandwidthLimiter(config.getLong("bandwidth.bytes_per_minute", 0),
+        config.getLong("bandwidth.bytes_per_day", 0), config.getLong("bandwidth.throttle_pause_ms", 60000),
+        config.getLong("bandwidth.max_throttle_pause_ms", 15 * 60000), Ticker.systemTicker());
+  }
+
+  /**
+   * Returns true if the exception, or one of its causes, says the server throttled the account.
+   */
+  public static boolean isThrottling(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      String message = t.getMessage();
+      if (message != null) {
+        message = message.toUpperCase(Locale.ROOT);
+        if (message.contains("THROTTLED") || message.contains("BANDWIDTH LIMIT")) {
+          return true;
+        }
+      }
+      if (t.getCause() == t) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Waits until budgets allow the next fetch. Returns early, with the interrupt flag set, when interrupted.
+   */
+  public void acquire() {
+    while (true) {
+      long delay = getDelayNanos();
+      if (delay <= 0) {
+        return;
+      }
+      LOG.debug("Waiting {} ms for bandwidth budget", TimeUnit.NANOSECONDS.toMillis(delay));
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(delay, MINUTE));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns how long the next fetch has to wait, 0 if it may start now.
+   */
+  public synchronized long getDelayNanos() {
+    long now = ticker.read();
+    refill(now);
+    long delay = Math.max(0, pausedUntil - now);
+    if (rate > 0 && minuteTokens < 0) {
+      delay = Math.max(delay, (long) (-minuteTokens * MINUTE / rate));
+    }
+    if (bytesPerDay > 0 && dayTokens < 0) {
+      delay = Math.max(delay, (long) (-dayTokens * DAY / (bytesPerDay - dayCapacity)));
+    }
+    return delay;
+  }
+
+  /**
+   * Counts bytes downloaded.
+   */
+  public synchronized void record(long bytes) {
+    if (bytes <= 0) {
+      return;
+    }
+    refill(ticker.read());
+    if (rate > 0) {
+      minuteTokens -= bytes;
+    }
+    if (bytesPerDay > 0) {
+      dayTokens -= bytes;
+    }
+    windowBytes += bytes;
+    totalBytes += bytes;
+  }
+
+  /**
+   * Records that the server throttled the account: pauses fetching and halves the rate.
+   */
+  public synchronized void throttled() {
+    long now = ticker.read();
+    refill(now);
+    long pause = Math.min(throttlePause << Math.min(throttles, 30), maxThrottlePause);
+    throttles++;
+    pausedUntil = now + pause;
+    minuteTokens = rate > 0 ? Math.min(minuteTokens, 0) : 0;
+    throttledRate = rate > 0 ? rate : Math.max(windowBytes, lastWindowBytes);
+    rate = Math.max(throttledRate / 2, MIN_RATE);
+    lastChange = now;
+    LOG.warn("Server throttled the account after {} MB, pausing {} s, then at most {} KB per minute",
+        totalBytes / (1024 * 1024), TimeUnit.NANOSECONDS.toSeconds(pause), rate / 1024);
+  }
+
+  /**
+   * Returns the current per minute rate, 0 without limit.
+   */
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  private void refill(long now) {
+    long elapsed = now - lastRefill;
+    lastRefill = now;
+    if (rate > 0) {
+      minuteTokens = Math.min(rate, minuteTokens + (double) rate * elapsed / MINUTE);
+    }
+    if (bytesPerDay > 0) {
+      dayTokens = Math.min(dayCapacity, dayTokens + (double) (bytesPerDay - dayCapacity) * elapsed / DAY);
+    }
+    if (now - windowStart >= MINUTE) {
+      lastWindowBytes = now - windowStart < 2 * MINUTE ? windowBytes : 0;
+      windowBytes = 0;
+      windowStart = now;
+    }
+    if (rate != bytesPerMinute && now >= pausedUntil && now - lastChange >= MINUTE) {
+      recover(now);
+    }
+  }
+
+  /**
+   * Raises the rate after a minute without throttling.
+   */
+  private void recover(long now) {
+    throttles = 0;
+    lastChange = now;
+    rate += rate / 4;
+    if (bytesPerMinute > 0 && rate >= bytesPerMinute) {
+      rate = bytesPerMinute;
+    } else if (bytesPerMinute == 0 && rate >= throttledRate) {
+      rate = 0;
+    }
+    LOG.info("Bandwidth rate raised to {}", rate == 0 ? "unlimited" : rate / 1024 + " KB per minute");
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the number of messages fetched per batch from how the previous batch went. The next size is the one which
+ * would have taken the target time at the measured time per message, limited so the bytes downloaded with the batch
+ * (envelopes, BODYSTRUCTURE and prefetched text) stay below the byte target and a quarter of free heap. Per batch the
+ * size changes at most by a factor of two and always stays within the configured bounds.
+ *
+ * Batches of small mails are dominated by the round trip and grow, batches of large mails shrink before they get near
+ * the read timeout. Not thread safe, every fetcher has its own.
+ */
+public class BatchSizer {
+  private final int minSize;
+  private final int maxSize;
+  private final long targetNanos;
+  private final long maxBytes;
+  private final boolean adaptive;
+  private int size;
+
+  public BatchSizer(int initialSize, int minSize, int maxSize, long targetNanos, long maxBytes, boolean adaptive) {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.targetNanos = targetNanos;
+    this.maxBytes = maxBytes;
+    this.adaptive = adaptive;
+    this.size = clamp(initialSize);
+  }
+
+  /**
+   * Reads fetch.batch_size, fetch.min_batch_size, fetch.max_batch_size, fetch.target_batch_ms, fetch.max_batch_bytes
+   * and fetch.adaptive_batch.
+   */
+  public static BatchSizer fromConfig(Configuration config) {
+    return new BatchSizer(config.getInt("fetch.batch_size", 200), config.getInt("fetch.min_batch_size", 20),
+        config.getInt("fetch.max_batch_size", 2000),
+        TimeUnit.MILLISECONDS.toNanos(config.getLong("fetch.target_batch_ms", 2000)),
+        config.getLong("fetch.max_batch_bytes", 16 * 1024 * 1024), config.getBoolean("fetch.adaptive_batch", true));
+  }
+
+  public int getBatchSize() {
+    return size;
+  }
+
+  /**
+   * Records a fetched batch and returns the size of the next one.
+   *
+   * @param nanos time spent fetching the batch, including waiting for bandwidth budget
+   * @param bytes bytes downloaded with the batch
+   */
+  public int update(int messages, long nanos, long bytes) {
+    if (!adaptive || messages == 0) {
+      return size;
+    }
+    double ideal = targetNanos / Math.max((double) nanos / messages, 1);
+    double bytesPerMessage = (double) bytes / messages;
+    if (bytesPerMessage > 0) {
+      ideal = Math.min(ideal, maxBytes / bytesPerMessage);
+      ideal = Math.min(ideal, freeHeap() / 4 / bytesPerMessage);
+    }
+    // a single slow or fast batch moves the size by a factor of two at most
+    long next = Math.max(size / 2, Math.min(size * 2L, (long) ideal));
+    size = clamp(next);
+    return size;
+  }
+
+  long freeHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+  }
+
+  private int clamp(long value) {
+    return (int) Math.max(minSize, Math.min(maxSize, value));
+  }
+}
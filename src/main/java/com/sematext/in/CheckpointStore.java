@@ -0,0 +1,146 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * Stores UIDVALIDITY and the last processed UID per folder between runs. The file has one line per folder:
+ * {@code <uidvalidity> <last uid> <folder full name>}, it's rewritten to a temporary file and atomically moved over
+ * the old one on every update, so a crash never leaves a partial file. The output is flushed before, so a checkpoint
+ * never covers results which weren't written out. Thread safe.
+ */
+public class CheckpointStore {
+  private static final Logger LOG = LoggerFactory.getLogger(CheckpointStore.class);
+
+  private final Path file;
+  private final Map<String, Checkpoint> checkpoints = Maps.newTreeMap();
+  // held folders -> their latest update, null if none yet
+  private final Map<String, Checkpoint> held = Maps.newHashMap();
+  private Flushable output;
+
+  public static class Checkpoint {
+    private final long uidValidity;
+    private final long lastUid;
+
+    public Checkpoint(long uidValidity, long lastUid) {
+      this.uidValidity = uidValidity;
+      this.lastUid = lastUid;
+    }
+
+    public long getUidValidity() {
+      return uidValidity;
+    }
+
+    public long getLastUid() {
+      return lastUid;
+    }
+  }
+
+  public CheckpointStore(File file) throws IOException {
+    this.file = file.toPath();
+    if (file.exists()) {
+      load();
+    }
+  }
+
+  public File getFile() {
+    return file.toFile();
+  }
+
+  public synchronized Checkpoint get(String folder) {
+    return checkpoints.get(folder);
+  }
+
+  /**
+   * Sets the output flushed before every update.
+   */
+  public synchronized void setOutput(Flushable output) {
+    this.output = output;
+  }
+
+  public synchronized void update(String folder, long uidValidity, long lastUid) throws IOException {
+    Checkpoint old = held.containsKey(folder) ? held.get(folder) : checkpoints.get(folder);
+    if (old != null && old.uidValidity == uidValidity && old.lastUid >= lastUid) {
+      return;
+    }
+    if (held.containsKey(folder)) {
+      held.put(folder, new Checkpoint(uidValidity, lastUid));
+      return;
+    }
+    if (output != null) {
+      output.flush();
+    }
+    checkpoints.put(folder, new Checkpoint(uidValidity, lastUid));
+    save();
+  }
+
+  /**
+   * Keeps updates of the folder in memory until {@link #release(String)}, for results which reach the output later.
+   */
+  public synchronized void hold(String folder) {
+    if (!held.containsKey(folder)) {
+      held.put(folder, null);
+    }
+  }
+
+  /**
+   * Stores the last update of a held folder, call after its results were written.
+   */
+  public synchronized void release(String folder) throws IOException {
+    Checkpoint checkpoint = held.remove(folder);
+    if (checkpoint != null) {
+      update(folder, checkpoint.uidValidity, checkpoint.lastUid);
+    }
+  }
+
+  private void load() throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(" ", 3);
+        if (fields.length < 3) {
+          continue;
+        }
+        try {
+          checkpoints.put(fields[2], new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid checkpoint line: {}", line);
+        }
+      }
+    }
+    LOG.info("Loaded checkpoints for {} folders from {}", checkpoints.size(), file);
+  }
+
+  private void save() throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Checkpoint> entry : checkpoints.entrySet()) {
+        Checkpoint checkpoint = entry.getValue();
+        writer.write(checkpoint.uidValidity + " " + checkpoint.lastUid + " " + entry.getKey());
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classifies messages into configured categories. Every category has keywords with optional weights, the weighted
+ * hits needed to match and a scope (whole message, subject or body). Keywords of all categories are compiled into one
+ * {@link KeywordMatcher}, so a single pass over the message counts all of them. Keywords of a category with the same
+ * weight share a matcher category, scores are computed from those counts.
+ *
+ * Configuration: {@code categories} lists category names, {@code category.<name>.keywords} keywords, each optionally
+ * followed by ^weight (default 1), {@code category.<name>.min_hits} the weighted hits needed (default 1) and
+ * {@code category.<name>.scope} all (default), subject or body. Without {@code categories} solr.keywords and
+ * es.keywords define the categories Solr and ES.
+ *
+ * Immutable and thread safe.
+ */
+public class Classifier {
+  private static final Logger LOG = LoggerFactory.getLogger(Classifier.class);
+
+  public enum Scope {
+    ALL, SUBJECT, BODY
+  }
+
+  private final List<String> names;
+  private final double[] minHits;
+  private final Scope[] scopes;
+  private final boolean multiLabel;
+  private final boolean scoped;
+  private final List<String> keywords;
+  private final KeywordMatcher matcher;
+  // matcher category -> category, weight of its keywords
+  private final int[] groupCategory;
+  private final double[] groupWeight;
+
+  public static class Category {
+    private final String name;
+    private final List<String> keywords;
+    private final double[] weights;
+    private final double minHits;
+    private final Scope scope;
+
+    public Category(String name, List<String> keywords, double[] weights, double minHits, Scope scope) {
+      this.name = name;
+      this.keywords = keywords;
+      this.weights = weights;
+      this.minHits = minHits;
+      this.scope = scope;
+    }
+
+    /**
+     * Parses keywords like solr^2, a keyword without weight has weight 1.
+     */
+    public static Category parse(String name, String[] keywords, double minHits, Scope scope) {
+      List<String> words = Lists.newArrayList();
+      double[] weights = new double[keywords.length];
+      for (String keyword : keywords) {
+        double weight = 1;
+        int caret = keyword.lastIndexOf('^');
+        if (caret > 0) {
+          try {
+            weight = Double.parseDouble(keyword.substring(caret + 1));
+            keyword = keyword.substring(0, caret);
+          } catch (NumberFormatException e) {
+            LOG.warn("Invalid weight of keyword {} in category {}", keyword, name);
+          }
+        }
+        if (!keyword.trim().isEmpty()) {
+          weights[words.size()] = weight;
+          words.add(keyword.trim());
+        }
+      }
+      return new Category(name, words, Arrays.copyOf(weights, words.size()), minHits, scope);
+    }
+  }
+
+  /**
+   * @param multiLabel return all matching categories instead of the best one
+   */
+  public Classifier(List<Category> categories, boolean multiLabel) {
+    this.multiLabel = multiLabel;
+    List<String> names = Lists.newArrayList();
+    minHits = new double[categories.size()];
+    scopes = new Scope[categories.size()];
+    Set<String> allKeywords = Sets.newLinkedHashSet();
+    List<List<String>> groups = Lists.newArrayList();
+    List<Integer> categoryOfGroup = Lists.newArrayList();
+    List<Double> weightOfGroup = Lists.newArrayList();
+    boolean anyScope = false;
+    for (int c = 0; c < categories.size(); c++) {
+      Category category = categories.get(c);
+      names.add(category.name);
+      minHits[c] = category.minHits;
+      scopes[c] = category.scope;
+      anyScope |= category.scope != Scope.ALL;
+      Map<Double, List<String>> byWeight = Maps.newLinkedHashMap();
+      for (int k = 0; k < category.keywords.size(); k++) {
+        List<String> group = byWeight.get(category.weights[k]);
+        if (group == null) {
+          group = Lists.newArrayList();
+          byWeight.put(category.weights[k], group);
+        }
+        group.add(category.keywords.get(k));
+        allKeywords.add(category.keywords.get(k));
+      }
+      for (Map.Entry<Double, List<String>> entry : byWeight.entrySet()) {
+        groups.add(entry.getValue());
+        categoryOfGroup.add(c);
+        weightOfGroup.add(entry.getKey());
+      }
+    }
+    this.names = Collections.unmodifiableList(names);
+    scoped = anyScope;
+    keywords = Collections.unmodifiableList(Lists.newArrayList(allKeywords));
+    matcher = new KeywordMatcher(groups);
+    groupCategory = new int[groups.size()];
+    groupWeight = new double[groups.size()];
+    for (int g = 0; g < groups.size(); g++) {
+      groupCategory[g] = categoryOfGroup.get(g);
+      groupWeight[g] = weightOfGroup.get(g);
+    }
+  }
+
+  public static Classifier fromConfig(Configuration config) {
+    boolean multiLabel = config.getBoolean("classify.multi_label", false);
+    List<Category> categories = Lists.newArrayList();
+    String[] names = config.getStringArray("categories");
+    if (names.length == 0) {
+      categories.add(Category.parse("Solr", config.getStringArray("solr.keywords"), 1, Scope.ALL));
+      categories.add(Category.parse("ES", config.getStringArray("es.keywords"), 1, Scope.ALL));
+      return new Classifier(categories, multiLabel);
+    }
+    for (String name : names) {
+      String prefix = "category." + name + ".";
+      Scope scope = Scope.ALL;
+      String scopeName = config.getString(prefix + "scope", "all");
+      try {
+        scope = Scope.valueOf(scopeName.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Invalid scope {} of category {}, using all", scopeName, name);
+      }
+      Category category = Category.parse(name, config.getStringArray(prefix + "keywords"), config.getDouble(
+          prefix + "min_hits", 1), scope);
+      if (category.keywords.isEmpty()) {
+        LOG.warn("Category {} has no keywords", name);
+      }
+      categories.add(category);
+    }
+    return new Classifier(categories, multiLabel);
+  }
+
+  /**
+   * Matcher to feed the subject, then the body of a message.
+   */
+  public KeywordMatcher getMatcher() {
+    return matcher;
+  }
+
+  public List<String> getCategoryNames() {
+    return names;
+  }
+
+  /**
+   * Distinct keywords of all categories, without weights.
+   */
+  public List<String> getKeywords() {
+    return keywords;
+  }
+
+  /**
+   * Returns true if some category only counts the subject or the body, then counts after the subject are needed.
+   */
+  public boolean isScoped() {
+    return scoped;
+  }
+
+  /**
+   * Returns matching category names, the best first, or an empty list. With single label output that's at most one,
+   * on equal scores the one configured first.
+   *
+   * @param subjectCounts counts of the scanner after the subject, only used if {@link #isScoped()}
+   * @param counts counts after the whole message
+   */
+  public List<String> classify(int[] subjectCounts, int[] counts) {
+    double[] scores = new double[names.size()];
+    for (int g = 0; g < counts.length; g++) {
+      int hits = counts[g];
+      if (hits == 0) {
+        continue;
+      }
+      int c = groupCategory[g];
+      if (scopes[c] == Scope.SUBJECT) {
+        hits = subjectCounts[g];
+      } else if (scopes[c] == Scope.BODY) {
+        hits -= subjectCounts[g];
+      }
+      scores[c] += groupWeight[g] * hits;
+    }
+
+    if (multiLabel) {
+      List<Integer> matched = Lists.newArrayList();
+      for (int c = 0; c < scores.length; c++) {
+        if (matches(c, scores[c])) {
+          // insertion sort by score, equal scores keep configuration order
+          int at = matched.size();
+          while (at > 0 && scores[matched.get(at - 1)] < scores[c]) {
+            at--;
+          }
+          matched.add(at, c);
+        }
+      }
+      List<String> result = Lists.newArrayListWithCapacity(matched.size());
+      for (int c : matched) {
+        result.add(names.get(c));
+      }
+      return result;
+    }
+    int bestCategory = -1;
+    for (int c = 0; c < scores.length; c++) {
+      if (matches(c, scores[c]) && (bestCategory < 0 || scores[c] > scores[bestCategory])) {
+        bestCategory = c;
+      }
+    }
+    return bestCategory < 0 ? Collections.<String> emptyList() : Collections.singletonList(names.get(bestCategory));
+  }
+
+  private boolean matches(int category, double score) {
+    return score > 0 && score >= minHits[category];
+  }
+}
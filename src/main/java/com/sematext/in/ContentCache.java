@@ -0,0 +1,640 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Local cache of extracted message text and the envelope fields needed for output, keyed by folder, UIDVALIDITY and
+ * UID, so messages can be classified again without the server.
+ *
+ * Messages are appended to segment files (segment-NNNNNNNN.dat), each record is {@code <int length> <int crc32>
+ * <long key> <deflated payload>}. A new segment is started per run and when the current one reaches
+ * cache.segment_bytes. The index maps keys to segment and offset in an open addressing table, it's persisted as
+ * appended {@code <long key> <long location>} pairs in index.dat. When the segments outgrow cache.max_bytes the
+ * oldest ones are deleted and the index is rewritten. Sealed segments are read through memory mapping, so a segment is
+ * at most 1 GB. A torn record at the end of a segment (after a crash) is cut off when the cache is opened, a record
+ * which can't be read is a miss. Thread safe.
+ */
+public class ContentCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ContentCache.class);
+  private static final String INDEX = "index.dat";
+  private static final int HEADER_BYTES = 16;
+  private static final int OFFSET_BITS = 40;
+  private static final int INITIAL_CAPACITY = 4096;
+  // a segment and its last record stay below 2 GB, the limit of mapping and int offsets
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+  private final Path dir;
+  private final long maxBytes;
+  private final long segmentBytes;
+
+  // segment -> size in bytes, oldest first
+  private final TreeMap<Integer, Long> segments = new TreeMap<Integer, Long>();
+  private final Map<Integer, MappedByteBuffer> mapped = Maps.newHashMap();
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private long[] locations = new long[INITIAL_CAPACITY];
+  private int size;
+
+  private DataOutputStream indexOut;
+  private FileChannel active;
+  private int activeSegment = -1;
+  private long activeSize;
+
+  /**
+   * A cached message. Dates are kept with millisecond precision, addresses in envelope order.
+   */
+  public static class CachedMessage {
+    private final String folder;
+    private final long uidValidity;
+    private final long uid;
+    private final Date receivedDate;
+    private final String subject;
+    private final List<String> from;
+    private final List<String> to;
+    private final String text;
+
+    public CachedMessage(String folder, long uidValidity, long uid, Date receivedDate, String subject,
+        List<String> from, List<String> to, String text) {
+      this.folder = folder;
+      this.uidValidity = uidValidity;
+      this.uid = uid;
+      this.receivedDate = receivedDate;
+      this.subject = subject;
+      this.from = from;
+      this.to = to;
+      this.text = text;
+    }
+
+    public String getFolder() {
+      return folder;
+    }
+
+    public long getUidValidity() {
+      return uidValidity;
+    }
+
+    public long getUid() {
+      return uid;
+    }
+
+    public Date getReceivedDate() {
+      return receivedDate;
+    }
+
+    public String getSubject() {
+      return subject;
+    }
+
+    public List<String> getFrom() {
+      return from;
+    }
+
+    public List<String> getTo() {
+      return to;
+    }
+
+    /**
+     * Text of the message as fed to the matcher, text parts separated by a space.
+     */
+    public String getText() {
+      return text;
+    }
+  }
+
+  public interface Visitor {
+    void visit(CachedMessage message) throws IOException;
+  }
+
+  public ContentCache(File dir, long maxBytes, long segmentBytes) throws IOException {
+    this.dir = dir.toPath();
+    this.maxBytes = maxBytes;
+    this.segmentBytes = Math.min(segmentBytes, MAX_SEGMENT_BYTES);
+    Files.createDirectories(this.dir);
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        int segment = segmentNumber(file.getName());
+        if (segment >= 0) {
+          segments.put(segment, file.length());
+        }
+      }
+    }
+    checkSegments();
+    loadIndex();
+    LOG.info("Content cache {}: {} messages in {} segments, {} MB", dir, size, segments.size(),
+        getBytes() / (1024 * 1024));
+  }
+
+  public static ContentCache fromConfig(File dir, Configuration config) throws IOException {
+    return new ContentCache(dir, config.getLong("cache.max_bytes", 4L << 30),
+        config.getLong("cache.segment_bytes", 64L << 20));
+  }
+
+  public static long key(String folder, long uidValidity, long uid) {
+    return Hashing.murmur3_128().newHasher().putString(folder, StandardCharsets.UTF_8).putLong(uidValidity)
+        .putLong(uid).hash().asLong();
+  }
+
+  /**
+   * Returns the cached message or null.
+   */
+  public synchronized CachedMessage get(String folder, long uidValidity, long uid) throws IOException {
+    long location = location(key(folder, uidValidity, uid));
+    if (location == -1) {
+      return null;
+    }
+    int segment = (int) (location >>> OFFSET_BITS);
+    long offset = location & ((1L << OFFSET_BITS) - 1);
+    Long segmentSize = segments.get(segment);
+    byte[] payload = null;
+    int crc = 0;
+    try {
+      if (segment == activeSegment) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(header, offset);
+        header.flip();
+        int length = header.getInt();
+        if (fits(offset, length, segmentSize)) {
+          payload = new byte[length];
+          crc = header.getInt();
+          readFully(ByteBuffer.wrap(payload), offset + HEADER_BYTES);
+        }
+      } else {
+        ByteBuffer buffer = map(segment).duplicate();
+        int length = buffer.getInt((int) offset);
+        if (fits(offset, length, segmentSize)) {
+          payload = new byte[length];
+          crc = buffer.getInt((int) offset + 4);
+          buffer.position((int) offset + HEADER_BYTES);
+          buffer.get(payload);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Can't read cache record of {} UID {}", folder, uid, e);
+      return null;
+    }
+    if (payload == null || crc != crc(payload)) {
+      LOG.warn("Corrupt cache record of {} UID {}", folder, uid);
+      return null;
+    }
+    CachedMessage message = decode(payload);
+    // a 64 bit hash collision is unlikely, but cheap to rule out
+    if (!message.folder.equals(folder) || message.uidValidity != uidValidity || message.uid != uid) {
+      return null;
+    }
+    return message;
+  }
+
+  /**
+   * Appends the message unless it's cached already.
+   */
+  public synchronized void put(CachedMessage message) throws IOException {
+    long key = key(message.folder, message.uidValidity, message.uid);
+    if (location(key) != -1) {
+      return;
+    }
+    if (active == null || activeSize >= segmentBytes) {
+      roll();
+    }
+    byte[] payload = encode(message);
+    if (payload.length > MAX_SEGMENT_BYTES - HEADER_BYTES) {
+      LOG.warn("Not caching {} UID {}, {} MB compressed", message.folder, message.uid, payload.length >> 20);
+      return;
+    }
+    ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    record.putInt(payload.length).putInt(crc(payload)).putLong(key).put(payload).flip();
+    long offset = activeSize;
+    while (record.hasRemaining()) {
+      active.write(record, activeSize + record.position());
+    }
+    activeSize += record.limit();
+    segments.put(activeSegment, activeSize);
+
+    long location = ((long) activeSegment << OFFSET_BITS) | offset;
+    put(key, location);
+    indexOut.writeLong(key);
+    indexOut.writeLong(location);
+  }
+
+  /**
+   * Returns segment numbers, oldest first.
+   */
+  public synchronized List<Integer> getSegments() {
+    return Lists.newArrayList(segments.keySet());
+  }
+
+  /**
+   * Passes every live message of the segment to the visitor, in the order they were cached. Messages cached again
+   * later in another segment are skipped. Segments can be scanned concurrently.
+   */
+  public void scan(int segment, Visitor visitor) throws IOException {
+    ByteBuffer buffer;
+    synchronized (this) {
+      if (segment == activeSegment) {
+        flush();
+      }
+      buffer = map(segment).duplicate();
+    }
+    while (buffer.remaining() >= HEADER_BYTES) {
+      int offset = buffer.position();
+      int length = buffer.getInt();
+      int crc = buffer.getInt();
+      long key = buffer.getLong();
+      if (length < 0 || length > buffer.remaining()) {
+        LOG.warn("Segment {} ends with a partial record at {}", segment, offset);
+        return;
+      }
+      byte[] payload = new byte[length];
+      buffer.get(payload);
+      if (crc != crc(payload)) {
+        LOG.warn("Segment {} has a corrupt record at {}", segment, offset);
+        return;
+      }
+      boolean live;
+      synchronized (this) {
+        live = location(key) == (((long) segment << OFFSET_BITS) | offset);
+      }
+      if (live) {
+        visitor.visit(decode(payload));
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the size of all segments.
+   */
+  public synchronized long getBytes() {
+    long bytes = 0;
+    for (long segmentSize : segments.values()) {
+      bytes += segmentSize;
+    }
+    return bytes;
+  }
+
+  public synchronized void close() throws IOException {
+    if (active != null) {
+      active.close();
+      active = null;
+    }
+    if (indexOut != null) {
+      indexOut.close();
+      indexOut = null;
+    }
+    mapped.clear();
+  }
+
+  private synchronized void flush() throws IOException {
+    if (indexOut != null) {
+      indexOut.flush();
+    }
+  }
+
+  /**
+   * Seals the current segment, deletes the oldest segments over the size limit and starts a new segment.
+   */
+  private void roll() throws IOException {
+    if (active != null) {
+      active.close();
+    }
+    if (indexOut == null) {
+      indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dir.resolve(INDEX).toFile(),
+          true)));
+    }
+    activeSegment = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+    activeSize = 0;
+    segments.put(activeSegment, 0L);
+    evict();
+    active = FileChannel.open(segmentPath(activeSegment), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private void evict() throws IOException {
+    int evicted = 0;
+    while (segments.size() > 1 && getBytes() > maxBytes) {
+      int oldest = segments.firstKey();
+      segments.remove(oldest);
+      mapped.remove(oldest);
+      Files.deleteIfExists(segmentPath(oldest));
+      evicted++;
+    }
+    if (evicted == 0) {
+      return;
+    }
+    LOG.info("Evicted {} oldest cache segments, cache size {} MB", evicted, getBytes() / (1024 * 1024));
+    // drop entries of deleted segments, the index file is rewritten without them
+    long[] oldKeys = keys;
+    long[] oldLocations = locations;
+    keys = new long[oldKeys.length];
+    locations = new long[oldKeys.length];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0 && segments.containsKey((int) (oldLocations[i] >>> OFFSET_BITS))) {
+        put(oldKeys[i], oldLocations[i]);
+      }
+    }
+    saveIndex();
+  }
+
+  /**
+   * Finds where the complete records of every segment end and cuts off a torn record after them, so index entries
+   * beyond it are dropped and appends never follow garbage. Segments too large to map are deleted.
+   */
+  private void checkSegments() throws IOException {
+    Iterator<Map.Entry<Integer, Long>> it = segments.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, Long> entry = it.next();
+      Path path = segmentPath(entry.getKey());
+      if (entry.getValue() > Integer.MAX_VALUE) {
+        LOG.warn("Cache segment {} is too large to map, deleting it", entry.getKey());
+        Files.deleteIfExists(path);
+        it.remove();
+        continue;
+      }
+      long end;
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        end = recordsEnd(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      if (end < entry.getValue()) {
+        LOG.warn("Cache segment {} ends with a partial record at {}, truncating it", entry.getKey(), end);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+          channel.truncate(end);
+        }
+        entry.setValue(end);
+      }
+    }
+  }
+
+  /**
+   * Returns the end of the last record which is complete, walking record headers.
+   */
+  private static long recordsEnd(ByteBuffer buffer) {
+    int end = 0;
+    while (buffer.limit() - end >= HEADER_BYTES) {
+      int length = buffer.getInt(end);
+      if (length < 0 || length > buffer.limit() - end - HEADER_BYTES) {
+        break;
+      }
+      end += HEADER_BYTES + length;
+    }
+    return end;
+  }
+
+  private static boolean fits(long offset, int length, Long segmentSize) {
+    return segmentSize != null && length >= 0 && offset + HEADER_BYTES + length <= segmentSize;
+  }
+
+  private void loadIndex() throws IOException {
+    Path index = dir.resolve(INDEX);
+    if (!Files.exists(index)) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      while (buffer.remaining() >= 16) {
+        long key = buffer.getLong();
+        long location = buffer.getLong();
+        Long segmentSize = segments.get((int) (location >>> OFFSET_BITS));
+        // entries of deleted segments and of records lost in a crash are dropped, segments end with a whole record
+        if (segmentSize != null && (location & ((1L << OFFSET_BITS) - 1)) + HEADER_BYTES <= segmentSize) {
+          put(key, location);
+        }
+      }
+    }
+  }
+
+  private void saveIndex() throws IOException {
+    if (indexOut != null) {
+      indexOut.close();
+    }
+    Path index = dir.resolve(INDEX);
+    Path tmp = dir.resolve(INDEX + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0) {
+          out.writeLong(keys[i]);
+          out.writeLong(locations[i]);
+        }
+      }
+    }
+    Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index.toFile(), true)));
+  }
+
+  private MappedByteBuffer map(int segment) throws IOException {
+    MappedByteBuffer buffer = mapped.get(segment);
+    if (buffer == null || segment == activeSegment) {
+      try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      if (segment != activeSegment) {
+        mapped.put(segment, buffer);
+      }
+    }
+    return buffer;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (active.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of segment " + activeSegment);
+      }
+    }
+  }
+
+  private Path segmentPath(int segment) {
+    return dir.resolve(String.format("segment-%08d.dat", segment));
+  }
+
+  private static int segmentNumber(String name) {
+    if (!name.startsWith("segment-") || !name.endsWith(".dat")) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private static byte[] encode(CachedMessage message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.text.length() / 2 + 256);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+      writeString(out, message.folder);
+      out.writeLong(message.uidValidity);
+      out.writeLong(message.uid);
+      out.writeLong(message.receivedDate == null ? Long.MIN_VALUE : message.receivedDate.getTime());
+      writeString(out, message.subject);
+      writeStrings(out, message.from);
+      writeStrings(out, message.to);
+      writeString(out, message.text);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static CachedMessage decode(byte[] payload) throws IOException {
+    try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+      String folder = readString(in);
+      long uidValidity = in.readLong();
+      long uid = in.readLong();
+      long time = in.readLong();
+      String subject = readString(in);
+      List<String> from = readStrings(in);
+      List<String> to = readStrings(in);
+      String text = readString(in);
+      return new CachedMessage(folder, uidValidity, uid, time == Long.MIN_VALUE ? null : new Date(time), subject,
+          from, to, text);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      writeString(out, value);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count == 0) {
+      return Collections.emptyList();
+    }
+    List<String> values = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      values.add(readString(in));
+    }
+    return values;
+  }
+
+  private long location(long key) {
+    long k = key == 0 ? 1 : key;
+    int mask = keys.length - 1;
+    int slot = mix(k) & mask;
+    while (keys[slot] != 0) {
+      if (keys[slot] == k) {
+        return locations[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private void put(long key, long location) {
+    // 0 marks a free slot
+    long k = key == 0 ? 1 : key;
+    int mask = keys.length - 1;
+    int slot = mix(k) & mask;
+    while (keys[slot] != 0) {
+      if (keys[slot] == k) {
+        locations[slot] = location;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+      put(key, location);
+      return;
+    }
+    keys[slot] = k;
+    locations[slot] = location;
+    size++;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    long[] oldLocations = locations;
+    keys = new long[oldKeys.length * 2];
+    locations = new long[oldKeys.length * 2];
+    int mask = keys.length - 1;
+    for (int old = 0; old < oldKeys.length; old++) {
+      if (oldKeys[old] == 0) {
+        continue;
+      }
+      int slot = mix(oldKeys[old]) & mask;
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = oldKeys[old];
+      locations[slot] = oldLocations[old];
+    }
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
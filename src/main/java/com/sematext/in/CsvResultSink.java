@@ -0,0 +1,61 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * CSV (RFC 4180) with a header row: type,address,category,folder,date.
+ */
+public class CsvResultSink extends RowResultSink {
+
+  public CsvResultSink(Writer out) throws IOException {
+    super(out);
+    out.write("type,address,category,folder,date\r\n");
+  }
+
+  @Override
+  protected void writeRow(String type, String address, MatchResult result) throws IOException {
+    out.write(type);
+    out.write(',');
+    writeField(address);
+    out.write(',');
+    writeField(result.getCategory());
+    out.write(',');
+    writeField(result.getFolder());
+    out.write(',');
+    writeField(result.getDate());
+    out.write("\r\n");
+  }
+
+  private void writeField(String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      out.write(value);
+      return;
+    }
+    out.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        out.write('"');
+      }
+      out.write(c);
+    }
+    out.write('"');
+  }
+}
@@ -8,9 +8,7 @@
  */
 package com.sematext.in;
 
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.sun.mail.imap.IMAPMessage;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -23,21 +21,110 @@ import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.configuration.SystemConfiguration;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
 
 public class EmailExtractor {
   private static final Logger LOG = LoggerFactory.getLogger(EmailExtractor.class);
   private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+  private static final int DEFAULT_MAX_MESSAGE_BYTES = 1024 * 1024;
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+  // how long shutdown waits for watch mode to finish the current messages and close the output
+  private static final long SHUTDOWN_WAIT = TimeUnit.SECONDS.toMillis(30);
+  // formatted dates by local day, a run only sees a few thousand distinct days
+  private static final ConcurrentMap<Long, String> DATES = new ConcurrentHashMap<Long, String>();
+
+  private CompositeConfiguration config;
+  private String[] includes;
+  private String[] excludes;
+  private Date fromDate;
+  private Classifier classifier;
+  private KeywordMatcher matcher;
+  private int maxMessageBytes;
+  private CheckpointStore checkpoints;
+  private int maxRestarts;
+  private long restartBackoff;
+  private long maxRestartBackoff;
+  private int pipelineThreads;
+  private int pipelineQueueSize;
+  private String outputFile;
+  private String outputFormat;
+  private boolean gzip;
+  private boolean aggregate;
+  private File source;
+  // shared by fetchers of all folders, null when duplicates aren't skipped
+  private SeenMessages seenMessages;
+  // download budget of the account, shared by its connections
+  private BandwidthLimiter limiter;
+  private String metricsReport;
+  private boolean watch;
+  private File cacheDir;
+  private ContentCache cache;
+  private boolean reclassify;
+  private File accounts;
+  // prefix of folder names in results, null for a single account
+  private String account;
+  private final Metrics metrics;
+
+  public EmailExtractor() {
+    metrics = new Metrics();
+  }
+
+  /**
+   * Extractor for one account of a multi-account run: IMAP and fetch settings come from config, the classifier,
+   * limits, cache and metrics are shared with shared. Checkpoints aren't shared, folder names differ per account.
+   */
+  EmailExtractor(EmailExtractor shared, String account, CompositeConfiguration config) {
+    this.config = config;
+    this.account = account;
+    includes = shared.includes;
+    excludes = shared.excludes;
+    fromDate = shared.fromDate;
+    classifier = shared.classifier;
+    matcher = shared.matcher;
+    maxMessageBytes = shared.maxMessageBytes;
+    maxRestarts = shared.maxRestarts;
+    restartBackoff = shared.restartBackoff;
+    maxRestartBackoff = shared.maxRestartBackoff;
+    pipelineThreads = shared.pipelineThreads;
+    pipelineQueueSize = shared.pipelineQueueSize;
+    cache = shared.cache;
+    metrics = shared.metrics;
+    seenMessages = config.getBoolean("fetch.skip_duplicates", true) ? new SeenMessages() : null;
+    limiter = BandwidthLimiter.fromConfig(config);
+  }
 
   public static void main(String[] args) throws ConfigurationException {
     Options options = buildOptions();
@@ -47,7 +134,9 @@ public class EmailExtractor {
       // parse the command line arguments
       CommandLine line = parser.parse(options, args);
 
-      if (line.hasOption("help") || (!line.hasOption("include") && !line.hasOption("exclude"))) {
+      if (line.hasOption("help")
+          || (!line.hasOption("include") && !line.hasOption("exclude") && !line.hasOption("source")
+              && !line.hasOption("reclassify-from-cache") && !line.hasOption("accounts"))) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("EmailExtractor", options);
         return;
@@ -67,7 +156,51 @@ public class EmailExtractor {
         }
       }
 
-      extractor.extract(include, exclude, fromDate);
+      int parallelism = 1;
+      if (line.hasOption("parallelism")) {
+        String parallelismText = line.getOptionValue("parallelism");
+        try {
+          parallelism = Integer.parseInt(parallelismText);
+        } catch (NumberFormatException e) {
+          LOG.warn("Invalid parallelism value {}", parallelismText);
+        }
+      }
+
+      if (line.hasOption("pipeline")) {
+        String pipelineText = line.getOptionValue("pipeline");
+        try {
+          extractor.setPipelineThreads(Integer.parseInt(pipelineText));
+        } catch (NumberFormatException e) {
+          LOG.warn("Invalid pipeline value {}", pipelineText);
+        }
+      }
+
+      extractor.setOutput(line.getOptionValue("output"), line.getOptionValue("format", "text"),
+          line.hasOption("gzip"), line.hasOption("aggregate"));
+
+      if (line.hasOption("source")) {
+        extractor.setSource(new File(line.getOptionValue("source")));
+      }
+
+      if (line.hasOption("checkpoint")) {
+        try {
+          extractor.setCheckpointStore(new CheckpointStore(new File(line.getOptionValue("checkpoint"))));
+        } catch (IOException e) {
+          LOG.error("Can't read checkpoint file {}", line.getOptionValue("checkpoint"), e);
+          return;
+        }
+      }
+
+      extractor.setMetricsReport(line.getOptionValue("metrics"));
+      extractor.setWatch(line.hasOption("watch"));
+      if (line.hasOption("cache")) {
+        extractor.setCacheDir(new File(line.getOptionValue("cache")));
+      }
+      extractor.setReclassify(line.hasOption("reclassify-from-cache"));
+      if (line.hasOption("accounts")) {
+        extractor.setAccounts(new File(line.getOptionValue("accounts")));
+      }
+      extractor.extract(include, exclude, fromDate, parallelism, line.hasOption("ordered"));
     } catch (ParseException exp) {
       LOG.error("Parsing failed.  Reason: {}", exp.getMessage());
     }
@@ -85,111 +218,709 @@ public class EmailExtractor {
     Option fromDate = Option.builder("d").longOpt("from-date").desc("process email from date YYYY-MM-DD").hasArg()
         .required(false).build();
 
-    options.addOption(includeFolders).addOption(excludeFolders).addOption(fromDate).addOption(help);
+    Option parallelism = Option.builder("p").longOpt("parallelism")
+        .desc("number of IMAP connections used to process folders in parallel").hasArg().required(false).build();
+    Option ordered = Option.builder("o").longOpt("ordered")
+        .desc("with parallelism keep output in folder order of a serial run").required(false).build();
+
+    Option checkpoint = Option.builder("c").longOpt("checkpoint")
+        .desc("file with last processed UID per folder, only newer messages are processed").hasArg().required(false)
+        .build();
+
+    Option pipeline = Option.builder("t").longOpt("pipeline")
+        .desc("number of threads decoding and matching messages while the next ones are fetched").hasArg()
+        .required(false).build();
+
+    Option aggregate = Option.builder("a").longOpt("aggregate")
+        .desc("print one row per address with message counts, first/last seen date and folders at the end")
+        .required(false).build();
+
+    Option output = Option.builder("w").longOpt("output").desc("write results to file instead of stdout").hasArg()
+        .required(false).build();
+    Option format = Option.builder("f").longOpt("format").desc("output format: text (default), jsonl or csv")
+        .hasArg().required(false).build();
+    Option gzip = Option.builder("z").longOpt("gzip").desc("gzip compress the output").required(false).build();
+
+    Option source = Option.builder("s").longOpt("source")
+        .desc("read an mbox file, a directory of .mbox files, a Maildir or a directory of .eml files instead of IMAP")
+        .hasArg().required(false).build();
+    Option metricsReport = Option.builder("m").longOpt("metrics").desc("write a JSON metrics report to file at the end")
+        .hasArg().required(false).build();
+    Option watch = Option.builder("W").longOpt("watch")
+        .desc("keep running after the first pass and process new mail as it arrives (IMAP IDLE)").required(false)
+        .build();
+    Option cache = Option.builder("C").longOpt("cache")
+        .desc("directory caching message text, cached messages are classified without fetching their content")
+        .hasArg().required(false).build();
+    Option reclassify = Option.builder("R").longOpt("reclassify-from-cache")
+        .desc("classify all messages of the cache again (with -i/-e/-d), without connecting to the server")
+        .required(false).build();
+    Option accounts = Option.builder("A").longOpt("accounts")
+        .desc("properties file listing accounts (accounts=a,b and account.a.imap.user=...) processed concurrently")
+        .hasArg().required(false).build();
+
+    options.addOption(includeFolders).addOption(excludeFolders).addOption(fromDate).addOption(parallelism)
+        .addOption(ordered).addOption(checkpoint).addOption(pipeline).addOption(aggregate).addOption(output)
+        .addOption(format).addOption(gzip).addOption(source).addOption(metricsReport).addOption(watch)
+        .addOption(cache).addOption(reclassify).addOption(accounts).addOption(help);
 
     return options;
   }
 
-  private void extract(String include, String exclude, Date fromDate) throws ConfigurationException {
-    String[] includes = include == null ? new String[0] : include.split(",");
-    String[] excludes = exclude == null ? new String[0] : exclude.split(",");
-
+  void extract(String include, String exclude, Date fromDate, int parallelism, boolean ordered)
+      throws ConfigurationException {
     CompositeConfiguration config = new CompositeConfiguration();
     config.addConfiguration(new SystemConfiguration());
     config.addConfiguration(new PropertiesConfiguration("config.properties"));
+    configure(config, include, exclude, fromDate);
+    if (accounts != null && (watch || source != null || reclassify)) {
+      LOG.error("--accounts can't be used with --watch, --source or --reclassify-from-cache");
+      return;
+    }
+    if (accounts != null && parallelism > 1) {
+      LOG.warn("Ignoring --parallelism with --accounts, accounts run in parallel with one folder open each");
+    }
+    if (watch && (source != null || parallelism > 1)) {
+      LOG.warn("Watch mode needs a single IMAP connection, ignoring {}", source != null ? "--source" : "--parallelism");
+      source = null;
+      parallelism = 1;
+    }
+    if (cacheDir != null) {
+      try {
+        cache = ContentCache.fromConfig(cacheDir, config);
+      } catch (IOException e) {
+        LOG.error("Can't open cache {}", cacheDir, e);
+        return;
+      }
+      if (!reclassify && config.getBoolean("cache.all_messages", true)) {
+        LOG.info("Caching all messages, the server side keyword search is off (cache.all_messages)");
+      }
+    } else if (reclassify) {
+      LOG.error("--reclassify-from-cache needs --cache");
+      return;
+    }
+    if (reclassify) {
+      ResultSink sink;
+      try {
+        sink = openSink();
+      } catch (IOException e) {
+        LOG.error("Can't open output {}", outputFile, e);
+        return;
+      }
+      metrics.start(config.getLong("metrics.summary_interval_s", 60));
+      reclassify(sink, parallelism);
+      finish(sink);
+      return;
+    }
+    if (accounts != null) {
+      extractAccounts(config);
+      return;
+    }
 
-    List<String> solrKeywords = Arrays.asList(config.getStringArray("solr.keywords"));
-    List<String> esKeywords = Arrays.asList(config.getStringArray("es.keywords"));
-    List<String> keywords = Lists.newArrayList(Iterables.concat(solrKeywords, esKeywords));
-
-    IMapFetcher fetcher = new IMapFetcher(config, includes, excludes, fromDate);
-    fetcher.setFilterKeywords(keywords);
+    MessageSource fetcher;
+    try {
+      fetcher = newSource();
+    } catch (IOException e) {
+      LOG.error("Can't read {}", source, e);
+      return;
+    }
     if (!fetcher.connectToMailBox()) {
       LOG.error("Can't connect to mailbox");
       return;
     }
 
-    int restartCount = 0;
-    String lastFolder = "";
-    String lastSuccessMsgId = null;
+    ResultSink sink;
+    try {
+      sink = openSink();
+    } catch (IOException e) {
+      LOG.error("Can't open output {}", outputFile, e);
+      fetcher.disconnectFromMailBox();
+      return;
+    }
+    if (checkpoints != null) {
+      checkpoints.setOutput(sink);
+    }
+    metrics.start(config.getLong("metrics.summary_interval_s", 60));
 
-    StringBuilder sb = new StringBuilder();
-    while (fetcher.hasNext()) {
-      IMAPMessage mail = fetcher.next();
-      if (!lastFolder.equals(fetcher.getFolder())) {
-        lastFolder = fetcher.getFolder();
-        restartCount = 0;
+    if (parallelism > 1) {
+      List<String> folders;
+      try {
+        folders = fetcher.listFolders();
+      } catch (EmailFetchException e) {
+        LOG.error("Listing folders failed", e);
+        folders = Collections.emptyList();
       }
+      fetcher.disconnectFromMailBox();
+      new ParallelExtractor(this, parallelism, ordered, config.getInt("parallel.max_buffered_results", 100000))
+          .run(folders, sink);
+    } else if (watch) {
+      watch((IMapFetcher) fetcher, sink);
+      fetcher.disconnectFromMailBox();
+    } else {
+      extract(fetcher, sink);
+      fetcher.disconnectFromMailBox();
+    }
+    finish(sink);
+  }
 
+  private void extractAccounts(CompositeConfiguration config) {
+    List<AccountRunner.Account> list;
+    try {
+      list = AccountRunner.readAccounts(new PropertiesConfiguration(accounts), config);
+    } catch (ConfigurationException e) {
+      LOG.error("Can't read accounts {}", accounts, e);
+      return;
+    }
+    ResultSink sink;
+    try {
+      sink = openSink();
+    } catch (IOException e) {
+      LOG.error("Can't open output {}", outputFile, e);
+      return;
+    }
+    metrics.start(config.getLong("metrics.summary_interval_s", 60));
+    // every account reads its own checkpoint file
+    File checkpointFile = checkpoints == null ? null : checkpoints.getFile();
+    new AccountRunner(this, config.getInt("accounts.max_connections_per_host", 8), checkpointFile).run(list, sink);
+    finish(sink);
+  }
+
+  /**
+   * Closes the output and the cache, logs metrics and writes the report.
+   */
+  private void finish(ResultSink sink) {
+    try {
+      sink.close();
+    } catch (IOException e) {
+      LOG.error("Writing output failed", e);
+    }
+    if (cache != null) {
       try {
-        sb.setLength(0);
-        sb.append(mail.getSubject());
-        sb.append(" ");
-        fetcher.getPartContent(mail, sb);
-        
-        Date receivedDate = mail.getReceivedDate();
-
-        String content = sb.toString().toLowerCase();
-        int solrCount = 0;
-        int esCount = 0;
-        for (String keyword : solrKeywords) {
-          solrCount += StringUtils.countMatches(content, keyword.toLowerCase());
+        cache.close();
+      } catch (IOException e) {
+        LOG.error("Closing cache failed", e);
+      }
+    }
+    metrics.stop();
+    LOG.info(metrics.getSummary());
+    writeMetricsReport();
+  }
+
+  /**
+   * Classifies cached messages of folders passing the include/exclude filters and received from fromDate on. Cache
+   * segments are scanned on parallelism threads.
+   */
+  void reclassify(final ResultSink sink, int parallelism) {
+    final FolderFilter filter = new FolderFilter(includes, excludes);
+    List<Integer> segments = cache.getSegments();
+    LOG.info("Reclassifying {} cached messages in {} segments", cache.size(), segments.size());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, segments.size())));
+    for (final int segment : segments) {
+      executor.execute(new Runnable() {
+        public void run() {
+          final KeywordMatcher.Scanner scanner = matcher.newScanner();
+          try {
+            cache.scan(segment, new ContentCache.Visitor() {
+              public void visit(ContentCache.CachedMessage message) throws IOException {
+                if (!filter.accept(message.getFolder()) || (fromDate != null
+                    && (message.getReceivedDate() == null || message.getReceivedDate().before(fromDate)))) {
+                  return;
+                }
+                MatchResult result = classify(message, scanner);
+                if (result != null) {
+                  write(sink, result);
+                }
+              }
+            });
+          } catch (IOException e) {
+            LOG.error("Reading cache segment {} failed", segment, e);
+          }
         }
-        for (String keyword : esKeywords) {
-          esCount += StringUtils.countMatches(content, keyword.toLowerCase());
+      });
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.debug("Waiting for cache segments");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Classifies a cached message like {@link #processMessage} does a fetched one.
+   */
+  MatchResult classify(ContentCache.CachedMessage message, KeywordMatcher.Scanner scanner) {
+    scanner.reset();
+    if (message.getSubject() != null) {
+      scanner.feed(message.getSubject());
+    }
+    scanner.feed(' ');
+    int[] subjectCounts = classifier.isScoped() ? scanner.getCounts().clone() : null;
+    long start = System.nanoTime();
+    scanner.feed(message.getText());
+    metrics.latency(Metrics.MATCH).record(System.nanoTime() - start);
+    return toResult(classifier.classify(subjectCounts, scanner.getCounts()), message.getFolder(),
+        message.getReceivedDate(), message.getFrom(), message.getTo(), 0);
+  }
+
+  /**
+   * Processes the mailbox, then new messages as they arrive until the JVM is shut down (e.g. SIGTERM). Output is
+   * flushed every watch.flush_interval_ms, the sink is closed and the metrics report written on shutdown.
+   */
+  private void watch(final IMapFetcher fetcher, final ResultSink sink) {
+    fetcher.setWatch(true);
+    final Thread main = Thread.currentThread();
+    Thread hook = new Thread("shutdown") {
+      @Override
+      public void run() {
+        LOG.info("Stopping watch mode");
+        fetcher.stopWatching();
+        try {
+          main.join(SHUTDOWN_WAIT);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(hook);
 
-        if (esCount == 0 && solrCount == 0) {
-          continue;
+    long flushInterval = config.getLong("watch.flush_interval_ms", 1000);
+    ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "flush");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sink.flush();
+        } catch (IOException e) {
+          LOG.error("Writing output failed", e);
         }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
 
-        if (esCount > solrCount) {
-          for (Address address : mail.getFrom()) {
-            InternetAddress from = (InternetAddress) address;
-            System.out.format("from %s ES %s at %s \n", from.getAddress(), fetcher.getFolder(), FORMAT.format(receivedDate));
-          }
-          // Extracts the TO, CC, BCC, and NEWSGROUPS recipients.
-          for (Address address : mail.getAllRecipients()) {
-            InternetAddress to = (InternetAddress) address;
-            System.out.format("to %s ES %s at %s \n", to.getAddress(), fetcher.getFolder(), FORMAT.format(receivedDate));
-          }
-        } else {
-          for (Address address : mail.getFrom()) {
-            InternetAddress from = (InternetAddress) address;
-            System.out.format("from %s Solr %s at %s \n", from.getAddress(), fetcher.getFolder(), FORMAT.format(receivedDate));
-          }
-          // Extracts the TO, CC, BCC, and NEWSGROUPS recipients.
-          for (Address address : mail.getAllRecipients()) {
-            InternetAddress to = (InternetAddress) address;
-            System.out.format("to %s Solr %s at %s \n", to.getAddress(), fetcher.getFolder(), FORMAT.format(receivedDate));
+    extract(fetcher, sink);
+    flusher.shutdownNow();
+    try {
+      Runtime.getRuntime().removeShutdownHook(hook);
+    } catch (IllegalStateException e) {
+      // already shutting down
+    }
+  }
+
+  private void writeMetricsReport() {
+    if (metricsReport == null) {
+      return;
+    }
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(metricsReport), StandardCharsets.UTF_8)) {
+      metrics.writeReport(writer);
+    } catch (IOException e) {
+      LOG.error("Can't write metrics report {}", metricsReport, e);
+    }
+  }
+
+  /**
+   * Reads keywords and settings, include and exclude are comma separated folder regular expressions or null.
+   */
+  void configure(CompositeConfiguration config, String include, String exclude, Date fromDate) {
+    this.config = config;
+    this.includes = include == null ? new String[0] : include.split(",");
+    this.excludes = exclude == null ? new String[0] : exclude.split(",");
+    this.fromDate = fromDate;
+
+    classifier = Classifier.fromConfig(config);
+    matcher = classifier.getMatcher();
+    maxMessageBytes = config.getInt("content.max_bytes", DEFAULT_MAX_MESSAGE_BYTES);
+    maxRestarts = config.getInt("restart.max_retries", 5);
+    restartBackoff = config.getLong("restart.backoff_ms", 1000);
+    maxRestartBackoff = config.getLong("restart.max_backoff_ms", 60 * 1000);
+    pipelineQueueSize = config.getInt("pipeline.queue_size", 1000);
+    seenMessages = config.getBoolean("fetch.skip_duplicates", true) ? new SeenMessages() : null;
+    limiter = BandwidthLimiter.fromConfig(config);
+  }
+
+  private ResultSink openSink() throws IOException {
+    OutputStream os;
+    if (outputFile == null) {
+      // don't close stdout, logs are written there too
+      os = new FilterOutputStream(System.out) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          flush();
+        }
+      };
+    } else {
+      os = new FileOutputStream(outputFile);
+    }
+    if (gzip) {
+      // sync flush, so output of watch mode can be read before the stream is closed and checkpoints only cover
+      // results which are in the file
+      os = new GZIPOutputStream(os, OUTPUT_BUFFER_SIZE, watch || checkpoints != null);
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+
+    if (aggregate) {
+      List<String> names = classifier.getCategoryNames();
+      return new AddressAggregator(writer, names.toArray(new String[names.size()]));
+    } else if ("jsonl".equalsIgnoreCase(outputFormat)) {
+      return new JsonlResultSink(writer);
+    } else if ("csv".equalsIgnoreCase(outputFormat)) {
+      return new CsvResultSink(writer);
+    }
+    return new TextResultSink(writer);
+  }
+
+  /**
+   * Decodes and matches messages on threads separate from fetching, 0 processes messages sequentially.
+   */
+  public void setPipelineThreads(int pipelineThreads) {
+    this.pipelineThreads = pipelineThreads;
+  }
+
+  /**
+   * @param file output file, null for stdout
+   * @param format text, jsonl or csv
+   * @param aggregate write one row per address at the end instead of a row per address of every matching message
+   */
+  public void setOutput(String file, String format, boolean gzip, boolean aggregate) {
+    this.outputFile = file;
+    this.outputFormat = format;
+    this.gzip = gzip;
+    this.aggregate = aggregate;
+  }
+
+  public void setCheckpointStore(CheckpointStore checkpoints) {
+    this.checkpoints = checkpoints;
+  }
+
+  CheckpointStore getCheckpointStore() {
+    return checkpoints;
+  }
+
+  /**
+   * Reads messages from local files instead of the IMAP server, see {@link LocalMessageSource#open}.
+   */
+  public void setSource(File source) {
+    this.source = source;
+  }
+
+  /**
+   * @param file where to write the JSON metrics report at the end, null for none
+   */
+  public void setMetricsReport(String file) {
+    this.metricsReport = file;
+  }
+
+  /**
+   * Keeps running after the first pass, see {@link IMapFetcher#setWatch(boolean)}. Only with IMAP and parallelism 1.
+   */
+  public void setWatch(boolean watch) {
+    this.watch = watch;
+  }
+
+  /**
+   * Caches message text in dir, see {@link ContentCache}. Cached messages are classified without fetching their
+   * content. With cache.all_messages all messages are fetched and cached instead of only those the server finds
+   * keywords in.
+   */
+  public void setCacheDir(File dir) {
+    this.cacheDir = dir;
+  }
+
+  /**
+   * Processes the accounts listed in the manifest instead of imap.user, see {@link AccountRunner}.
+   */
+  public void setAccounts(File manifest) {
+    this.accounts = manifest;
+  }
+
+  void setContentCache(ContentCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Classifies the messages of the cache instead of connecting to the server.
+   */
+  public void setReclassify(boolean reclassify) {
+    this.reclassify = reclassify;
+  }
+
+  Metrics getMetrics() {
+    return metrics;
+  }
+
+  MessageSource newSource() throws IOException {
+    if (source != null) {
+      if (checkpoints != null) {
+        LOG.warn("Checkpoints are only used with IMAP");
+      }
+      LocalMessageSource local = LocalMessageSource.open(source, includes, excludes, fromDate);
+      local.setMetrics(metrics);
+      return local;
+    }
+    IMapFetcher fetcher = new IMapFetcher(config, includes, excludes, fromDate);
+    // a cache of every message can be classified with other keywords later, but all of them are downloaded
+    boolean fetchAll = cache != null && config.getBoolean("cache.all_messages", true);
+    fetcher.setFilterKeywords(fetchAll ? null : classifier.getKeywords());
+    fetcher.setCheckpointStore(checkpoints);
+    fetcher.setMetrics(metrics);
+    fetcher.setSeenMessages(seenMessages);
+    fetcher.setAccount(account);
+    fetcher.setBandwidthLimiter(limiter);
+    fetcher.setTrackProcessed(true);
+    return fetcher;
+  }
+
+  /**
+   * Processes all messages the (connected) fetcher iterates over and writes matching ones to sink.
+   */
+  void extract(MessageSource fetcher, ResultSink sink) {
+    if (pipelineThreads > 0) {
+      new PipelinedExtractor(this, pipelineThreads, pipelineQueueSize).run(fetcher, sink);
+      return;
+    }
+
+    int restartCount = 0;
+    String lastFolder = "";
+    long lastSuccessUid = -1;
+
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    PartContentReader reader = new PartContentReader(maxMessageBytes);
+    while (true) {
+      MimeMessage mail = null;
+      EmailFetchException fetchFailure = null;
+      try {
+        if (!fetcher.hasNext()) {
+          break;
+        }
+        mail = fetcher.next();
+      } catch (EmailFetchException e) {
+        fetchFailure = e;
+      }
+      if (!lastFolder.equals(fetcher.getFolder())) {
+        lastFolder = fetcher.getFolder();
+        restartCount = 0;
+        lastSuccessUid = -1;
+      }
+      if (fetchFailure != null) {
+        // the connection broke while fetching a batch, it's fetched again after the last good message
+        LOG.error("Fetching messages failed", fetchFailure);
+        checkThrottling(fetchFailure);
+        restartCount++;
+        if (restartCount > maxRestarts || !resume(fetcher, restartCount, lastSuccessUid)) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
           }
+          LOG.info("Skip the failed batch and continue");
+        }
+        continue;
+      }
+
+      try {
+        MatchResult result = processMessage(mail, fetcher.getFolder(), fetcher.getPrefetchedText(mail),
+            fetcher.getTextPrefetchBytes(), scanner, reader);
+        if (result != null) {
+          write(sink, result);
         }
-        lastSuccessMsgId = mail.getMessageID();
+        lastSuccessUid = fetcher.getUID(mail);
+        fetcher.processed(mail);
       } catch (Exception e) {
         LOG.error("Can't read content from email", e);
+        checkThrottling(e);
 
         restartCount++;
-        // restart (connect/disconnect) and continue from current folder
-        if (restartCount <= 3) {
-          String curFolder = fetcher.getFolder();
-          LOG.info("Restart at folder {} time {}", curFolder, restartCount);
-          fetcher.disconnectFromMailBox();
-          if (!fetcher.connectToMailBox() || !fetcher.jumpToFolder(curFolder)) {
-            LOG.info("Jump to folder {} failed. Skip the failed email and continue", curFolder);
-          }
-          if (lastSuccessMsgId != null) {
-            if (fetcher.jumpToMessageId(lastSuccessMsgId)) {
-              LOG.info("Jump to last failed mail");
-            } else {
-              LOG.info("Can't jump to last failed mail");
-            }
+        if (restartCount > maxRestarts || !fetcher.isRetryable()) {
+          LOG.info("Skip the failed email and continue");
+        } else if (!resume(fetcher, restartCount, lastSuccessUid)) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
           }
-        } else {
           LOG.info("Skip the failed email and continue");
         }
+        // after resuming, a retried message is returned by next() again
+        fetcher.processed(mail);
+      }
+    }
+  }
+
+  /**
+   * Reconnects and continues the current folder after the last good message. Returns false if the folder can't be
+   * resumed or the thread was interrupted.
+   */
+  private boolean resume(MessageSource fetcher, int restartCount, long lastSuccessUid) {
+    String folder = fetcher.getFolder();
+    if (!restart(fetcher, restartCount)) {
+      return false;
+    }
+    if (!fetcher.resumeAfterUid(lastSuccessUid)) {
+      LOG.info("Resuming folder {} failed", folder);
+      return false;
+    }
+    LOG.info("Resumed folder {} after UID {}", folder, lastSuccessUid);
+    return true;
+  }
+
+  /**
+   * Classifies the message by keywords in its subject and text. Returns null if no category matched.
+   */
+  MatchResult processMessage(MimeMessage mail, String folder, Map<String, byte[]> prefetched, int prefetchLimit,
+      KeywordMatcher.Scanner scanner, PartContentReader reader) throws MessagingException, IOException {
+    long start = System.nanoTime();
+    folder = AccountRunner.qualify(account, folder);
+    // only IMAP messages have a stable id to cache them by and count against the bandwidth budget
+    boolean imap = mail.getFolder() instanceof UIDFolder;
+    boolean cacheable = cache != null && imap;
+    long uidValidity = -1;
+    long uid = -1;
+    ContentCache.CachedMessage cached = null;
+    if (cacheable) {
+      UIDFolder uidFolder = (UIDFolder) mail.getFolder();
+      uidValidity = uidFolder.getUIDValidity();
+      uid = uidFolder.getUID(mail);
+      cached = cache.get(folder, uidValidity, uid);
+    }
+    if (cached != null) {
+      metrics.latency(Metrics.CONTENT).record(System.nanoTime() - start);
+      return classify(cached, scanner);
+    }
+
+    scanner.reset();
+    String subject = mail.getSubject();
+    if (subject != null) {
+      scanner.feed(subject);
+    }
+    scanner.feed(' ');
+    int[] subjectCounts = classifier.isScoped() ? scanner.getCounts().clone() : null;
+    reader.setCapture(cacheable);
+    reader.read(mail, prefetched, prefetchLimit, scanner);
+    if (imap) {
+      limiter.record(reader.getStreamedBytes());
+    }
+    long matchNanos = reader.getMatchNanos();
+    metrics.latency(Metrics.CONTENT).record(System.nanoTime() - start - matchNanos);
+    metrics.latency(Metrics.MATCH).record(matchNanos);
+    if (reader.isTruncated()) {
+      LOG.debug("Content of {} truncated to {} bytes", mail.getMessageID(), maxMessageBytes);
+    }
+
+    List<String> categories = classifier.classify(subjectCounts, scanner.getCounts());
+    if (categories.isEmpty() && !cacheable) {
+      metrics.messageProcessed(folder, false, reader.getStreamedBytes());
+      return null;
+    }
+
+    List<String> from = getAddresses(mail.getFrom());
+    // Extracts the TO, CC, BCC, and NEWSGROUPS recipients.
+    List<String> to = getAddresses(mail.getAllRecipients());
+    Date receivedDate = mail.getReceivedDate();
+    if (cacheable) {
+      cache.put(new ContentCache.CachedMessage(folder, uidValidity, uid, receivedDate, subject, from, to,
+          reader.getText()));
+    }
+    return toResult(categories, folder, receivedDate, from, to, reader.getStreamedBytes());
+  }
+
+  private MatchResult toResult(List<String> categories, String folder, Date receivedDate, List<String> from,
+      List<String> to, long bytes) {
+    metrics.messageProcessed(folder, !categories.isEmpty(), bytes);
+    if (categories.isEmpty()) {
+      return null;
+    }
+    return new MatchResult(categories, folder, receivedDate, formatDate(receivedDate), from, to);
+  }
+
+  /**
+   * Writes the result to the sink, recording the time spent.
+   */
+  void write(ResultSink sink, MatchResult result) throws IOException {
+    long start = System.nanoTime();
+    sink.write(result);
+    metrics.latency(Metrics.OUTPUT).record(System.nanoTime() - start);
+  }
+
+  private static List<String> getAddresses(Address[] addresses) {
+    List<String> result = Lists.newArrayList();
+    // local messages may lack headers the IMAP envelope always has
+    if (addresses != null) {
+      for (Address address : addresses) {
+        result.add(((InternetAddress) address).getAddress());
       }
     }
+    return result;
+  }
 
-    fetcher.disconnectFromMailBox();
+  /**
+   * Slows down fetching when the failure says the server throttled the account.
+   */
+  void checkThrottling(Exception e) {
+    if (BandwidthLimiter.isThrottling(e)) {
+      limiter.throttled();
+    }
+  }
+
+  /**
+   * Waits with exponential backoff, and for the bandwidth budget after throttling, and reconnects the fetcher.
+   * Returns false if the thread was interrupted.
+   */
+  boolean restart(MessageSource fetcher, int restartCount) {
+    long backoff = Math.min(restartBackoff << Math.min(restartCount - 1, 30), maxRestartBackoff);
+    LOG.info("Restart at folder {} time {} in {} ms", fetcher.getFolder(), restartCount, backoff);
+    metrics.restarted();
+    try {
+      Thread.sleep(backoff);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    // reconnecting right away makes throttling worse
+    limiter.acquire();
+    if (Thread.currentThread().isInterrupted()) {
+      return false;
+    }
+    if (!fetcher.reconnectToMailBox()) {
+      LOG.info("Reconnect failed");
+    }
+    return true;
+  }
+
+  int getMaxRestarts() {
+    return maxRestarts;
+  }
+
+  KeywordMatcher getMatcher() {
+    return matcher;
+  }
+
+  int getMaxMessageBytes() {
+    return maxMessageBytes;
+  }
+
+  private static String formatDate(Date date) {
+    if (date == null) {
+      return null;
+    }
+    long time = date.getTime();
+    long local = time + TIME_ZONE.getOffset(time);
+    long day = local >= 0 ? local / DAY : (local + 1) / DAY - 1;
+    String formatted = DATES.get(day);
+    if (formatted == null) {
+      // SimpleDateFormat is not thread safe and workers share it
+      synchronized (FORMAT) {
+        formatted = FORMAT.format(date);
+      }
+      DATES.put(day, formatted);
+    }
+    return formatted;
   }
 }
@@ -8,7 +8,11 @@
  */
 package com.sematext.in;
 
-public class EmailFetchException extends Exception {
+/**
+ * Reading from the mailbox failed. Unchecked, so {@link MessageSource#hasNext()} can throw it when the connection
+ * breaks while a batch is fetched.
+ */
+public class EmailFetchException extends RuntimeException {
 
   private static final long serialVersionUID = 1L;
 
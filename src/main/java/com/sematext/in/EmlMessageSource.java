@@ -0,0 +1,96 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Reads a directory tree of .eml files, one message per file. Every directory with .eml files is a folder named by
+ * its path relative to the root ("INBOX" for the root itself, "/" separated), files are read in name order.
+ */
+public class EmlMessageSource extends LocalMessageSource {
+  private Iterator<Path> files;
+
+  public EmlMessageSource(Path root, String[] includes, String[] excludes, Date fromDate) {
+    super(root, includes, excludes, fromDate);
+  }
+
+  @Override
+  protected List<String> findFolders() throws IOException {
+    List<String> folders = Lists.newArrayList();
+    addFolders(root, folders);
+    return folders;
+  }
+
+  private void addFolders(Path dir, List<String> folders) throws IOException {
+    if (!listMessages(dir).isEmpty()) {
+      folders.add(folderName(dir));
+    }
+    List<Path> children = Lists.newArrayList();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path child : stream) {
+        if (Files.isDirectory(child)) {
+          children.add(child);
+        }
+      }
+    }
+    Collections.sort(children);
+    for (Path child : children) {
+      addFolders(child, folders);
+    }
+  }
+
+  private String folderName(Path dir) {
+    String name = root.relativize(dir).toString().replace(dir.getFileSystem().getSeparator(), "/");
+    return name.isEmpty() ? "INBOX" : name;
+  }
+
+  private static List<Path> listMessages(Path dir) throws IOException {
+    List<Path> messages = Lists.newArrayList();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.{eml,EML}")) {
+      for (Path file : stream) {
+        if (Files.isRegularFile(file)) {
+          messages.add(file);
+        }
+      }
+    }
+    Collections.sort(messages);
+    return messages;
+  }
+
+  @Override
+  protected void openFolder(String folder) throws IOException {
+    files = listMessages("INBOX".equals(folder) ? root : root.resolve(folder)).iterator();
+  }
+
+  @Override
+  protected MimeMessage readMessage(int number) throws IOException, MessagingException {
+    if (!files.hasNext()) {
+      return null;
+    }
+    return newMessage(Files.readAllBytes(files.next()), number, null);
+  }
+
+  @Override
+  protected void closeFolder() {
+    files = null;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.util.regex.Pattern;
+
+/**
+ * Include/exclude folder filter, patterns are compiled once and must match the whole folder name. Excludes win over
+ * includes, without includes every folder which isn't excluded passes. Immutable and thread safe.
+ */
+public class FolderFilter {
+  private final Pattern[] includes;
+  private final Pattern[] excludes;
+
+  public FolderFilter(String[] includes, String[] excludes) {
+    this.includes = compile(includes);
+    this.excludes = compile(excludes);
+  }
+
+  private static Pattern[] compile(String[] regexes) {
+    Pattern[] patterns = new Pattern[regexes.length];
+    for (int i = 0; i < regexes.length; i++) {
+      patterns[i] = Pattern.compile(regexes[i]);
+    }
+    return patterns;
+  }
+
+  public boolean accept(String name) {
+    for (Pattern p : excludes) {
+      if (p.matcher(name).matches()) {
+        return false;
+      }
+    }
+    for (Pattern p : includes) {
+      if (p.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return includes.length == 0;
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+/**
+ * Keeps folders open and reports the ones which got new messages. Every folder has a thread waiting in IMAP IDLE
+ * (RFC 2177), or polling when the server has no IDLE, on the folder's own connection. A folder whose UIDNEXT grew past
+ * the UIDs already reported or processed is queued for {@link #take()}, so mail which arrives together with an expunge
+ * isn't missed although the message count stays the same. Its thread waits until the caller passes it back with
+ * {@link #done(Watched, long)}, so the connection is never used by two threads at once.
+ *
+ * IDLE is ended and restarted every renew interval with a NOOP from a shared thread, before the socket read timeout
+ * kills an idle connection. Broken connections are reopened with backoff, a reopened folder is reported once in case
+ * messages arrived meanwhile.
+ */
+class FolderWatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(FolderWatcher.class);
+  private static final Watched STOP = new Watched(null, -1);
+  private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+
+  private final boolean idle;
+  private final long pollMillis;
+  private final long renewMillis;
+  private final BlockingQueue<Watched> changed = new LinkedBlockingQueue<Watched>();
+  private final List<Watched> watched = Lists.newArrayList();
+  private final List<Thread> threads = Lists.newArrayList();
+  private Thread renewer;
+  private volatile boolean running = true;
+
+  /**
+   * A watched folder and the highest UID already processed in it.
+   */
+  static class Watched {
+    private final Folder folder;
+    private final Semaphore processed = new Semaphore(0);
+    private volatile long lastUid;
+    // UID of the last message when the folder was reported
+    private long reportedUid;
+    private volatile boolean idling;
+    private long uidValidity = -1;
+
+    Watched(Folder folder, long lastUid) {
+      this.folder = folder;
+      this.lastUid = lastUid;
+    }
+
+    Folder getFolder() {
+      return folder;
+    }
+
+    long getLastUid() {
+      return lastUid;
+    }
+  }
+
+  /**
+   * @param idle use IDLE, otherwise poll STATUS UIDNEXT every pollMillis
+   * @param renewMillis how long one IDLE command may last
+   */
+  FolderWatcher(boolean idle, long pollMillis, long renewMillis) {
+    this.idle = idle;
+    this.pollMillis = pollMillis;
+    this.renewMillis = renewMillis;
+  }
+
+  /**
+   * Starts watching the (open) folder, messages up to lastUid count as processed. The folder is reported once right
+   * away, for messages which arrived before it was watched.
+   */
+  synchronized void watch(Folder folder, long lastUid) {
+    final Watched w = new Watched(folder, lastUid);
+    watched.add(w);
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        watchLoop(w);
+      }
+    }, "watch-" + folder.getFullName());
+    thread.setDaemon(true);
+    threads.add(thread);
+    thread.start();
+    if (idle && renewer == null) {
+      renewer = new Thread(new Runnable() {
+        public void run() {
+          renewLoop();
+        }
+      }, "watch-renew");
+      renewer.setDaemon(true);
+      renewer.start();
+    }
+  }
+
+  /**
+   * Waits for a folder with new messages, returns null after {@link #close()}.
+   */
+  Watched take() throws InterruptedException {
+    Watched w = changed.take();
+    if (w == STOP) {
+      // for other callers
+      changed.add(STOP);
+      return null;
+    }
+    return w;
+  }
+
+  /**
+   * Passes the folder back after its new messages were processed, up to lastUid.
+   */
+  void done(Watched w, long lastUid) {
+    if (lastUid > w.lastUid) {
+      w.lastUid = lastUid;
+    }
+    w.processed.release();
+  }
+
+  /**
+   * Stops watching, {@link #take()} returns null. Folders are closed with the store.
+   */
+  void close() {
+    running = false;
+    changed.add(STOP);
+    synchronized (this) {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+      if (renewer != null) {
+        renewer.interrupt();
+      }
+    }
+  }
+
+  private void watchLoop(Watched w) {
+    Folder folder = w.folder;
+    long backoff = pollMillis;
+    try {
+      while (running) {
+        try {
+          open(w);
+          w.reportedUid = lastUid(folder);
+          if (w.reportedUid > lastMessageUid(folder)) {
+            // JavaMail's messages lag behind, e.g. after an EXISTS sent before the EXPUNGE it already counted
+            folder.close(false);
+            open(w);
+          }
+          changed.put(w);
+          w.processed.acquire();
+          while (running && lastUid(folder) <= Math.max(w.lastUid, w.reportedUid)) {
+            waitForChange(w);
+          }
+          backoff = pollMillis;
+        } catch (MessagingException | IllegalStateException e) {
+          if (!running) {
+            return;
+          }
+          LOG.warn("Watching {} failed, retrying in {} ms", folder.getFullName(), backoff, e);
+          Thread.sleep(backoff);
+          backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Opens the folder if needed.
+   */
+  private void open(Watched w) throws MessagingException {
+    Folder folder = w.folder;
+    if (!folder.isOpen()) {
+      folder.open(Folder.READ_ONLY);
+      LOG.info("Reopened watched folder {}", folder.getFullName());
+    }
+    if (folder instanceof IMAPFolder) {
+      long uidValidity = ((IMAPFolder) folder).getUIDValidity();
+      if (w.uidValidity != -1 && w.uidValidity != uidValidity) {
+        // UIDs of processed messages are meaningless now, continue with messages which arrive from now on
+        LOG.warn("UIDVALIDITY of {} changed, messages received meanwhile are skipped", folder.getFullName());
+        w.lastUid = ((IMAPFolder) folder).getUIDNext() - 1;
+      }
+      w.uidValidity = uidValidity;
+    }
+  }
+
+  /**
+   * Returns UIDNEXT - 1 from a STATUS on the folder's connection, 0 for other than IMAP folders. The counts JavaMail
+   * keeps from untagged responses can miss a message which arrived together with an expunge, and the UIDNEXT it keeps
+   * is the one from SELECT.
+   */
+  private static long lastUid(final Folder folder) throws MessagingException {
+    if (!(folder instanceof IMAPFolder)) {
+      return 0;
+    }
+    Long uidNext = (Long) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+        return protocol.status(folder.getFullName(), new String[] { "UIDNEXT" }).uidnext;
+      }
+    });
+    return uidNext - 1;
+  }
+
+  /**
+   * Returns the UID of the last message JavaMail knows of, 0 for an empty folder.
+   */
+  private static long lastMessageUid(Folder folder) throws MessagingException {
+    int count = folder.getMessageCount();
+    return count <= 0 ? 0 : ((IMAPFolder) folder).getUID(folder.getMessage(count));
+  }
+
+  /**
+   * Returns after the server sent an untagged response (IDLE), or after the poll interval. The STATUS of
+   * {@link #lastUid(Folder)} is the poll then.
+   */
+  private void waitForChange(Watched w) throws MessagingException, InterruptedException {
+    if (idle && w.folder instanceof IMAPFolder) {
+      w.idling = true;
+      try {
+        ((IMAPFolder) w.folder).idle(true);
+      } finally {
+        w.idling = false;
+      }
+    } else {
+      Thread.sleep(pollMillis);
+    }
+  }
+
+  /**
+   * Ends IDLE of every idling folder with a NOOP, their threads start a new IDLE.
+   */
+  private void renewLoop() {
+    try {
+      while (running) {
+        Thread.sleep(renewMillis);
+        List<Watched> current;
+        synchronized (this) {
+          current = Lists.newArrayList(watched);
+        }
+        for (Watched w : current) {
+          if (w.idling) {
+            try {
+              noop(w.folder);
+            } catch (MessagingException | IllegalStateException e) {
+              LOG.debug("Renewing IDLE of {} failed", w.folder.getFullName(), e);
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void noop(Folder folder) throws MessagingException {
+    if (!(folder instanceof IMAPFolder)) {
+      folder.getMessageCount();
+      return;
+    }
+    ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+        protocol.noop();
+        return null;
+      }
+    });
+  }
+}
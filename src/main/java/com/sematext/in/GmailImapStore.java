@@ -0,0 +1,116 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.sun.mail.iap.ParsingException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.FetchItem;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.ListInfo;
+
+import java.io.IOException;
+
+import javax.mail.FetchProfile;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * IMAP store which also understands Gmail's X-GM-MSGID fetch item, the id of a message shared by all labels (folders)
+ * it appears in. JavaMail 1.5 has no gimap provider and drops FETCH responses with unknown items, so the item is
+ * registered with the protocol here. Add {@link #MSGID} to a fetch profile to fetch it with a batch, only when the
+ * server has the X-GM-EXT-1 capability. Works with any IMAP server, it's also used to build folders from LIST
+ * responses read outside of JavaMail. Counts the bytes of responses a thread reads between
+ * {@link #startCounting()} and {@link #stopCounting()}.
+ */
+public class GmailImapStore extends IMAPStore {
+  public static final FetchProfile.Item MSGID = new GmailProfileItem("X-GM-MSGID");
+  private static final FetchItem MSGID_ITEM = new FetchItem("X-GM-MSGID", MSGID) {
+    public Object parseItem(FetchResponse r) throws ParsingException {
+      return Long.valueOf(r.readLong());
+    }
+  };
+  private static final FetchItem[] FETCH_ITEMS = { MSGID_ITEM };
+
+  // bytes read by the counting thread
+  private final ThreadLocal<long[]> counted = new ThreadLocal<long[]>();
+
+  static class GmailProfileItem extends FetchProfile.Item {
+    GmailProfileItem(String name) {
+      super(name);
+    }
+  }
+
+  /**
+   * @param protocol imap or imaps
+   */
+  public GmailImapStore(Session session, String protocol) {
+    super(session, null, protocol, "imaps".equals(protocol));
+  }
+
+  /**
+   * Returns the Gmail message id or -1 if the server has none.
+   */
+  public static long getMsgId(Message message) throws MessagingException {
+    if (!(message instanceof IMAPMessage)) {
+      return -1;
+    }
+    Object id = ((IMAPMessage) message).getItem(MSGID_ITEM);
+    return id instanceof Long ? (Long) id : -1;
+  }
+
+  /**
+   * Starts counting the bytes of responses read by the calling thread, e.g. during a FETCH.
+   */
+  void startCounting() {
+    counted.set(new long[1]);
+  }
+
+  /**
+   * Returns the bytes of responses read by the calling thread since {@link #startCounting()}.
+   */
+  long stopCounting() {
+    long[] bytes = counted.get();
+    counted.remove();
+    return bytes == null ? 0 : bytes[0];
+  }
+
+  /**
+   * Creates a folder from a LIST response, its type and separator are known without another LIST.
+   */
+  IMAPFolder newFolder(ListInfo info) {
+    return newIMAPFolder(info);
+  }
+
+  @Override
+  protected IMAPProtocol newIMAPProtocol(String host, int port) throws IOException, ProtocolException {
+    return new IMAPProtocol(name, host, port, session.getProperties(), isSSL, logger) {
+      @Override
+      public FetchItem[] getFetchItems() {
+        return FETCH_ITEMS;
+      }
+
+      @Override
+      public Response readResponse() throws IOException, ProtocolException {
+        Response response = super.readResponse();
+        long[] bytes = counted.get();
+        if (bytes != null) {
+          // the response with its literals, and CRLF
+          bytes[0] += response.toString().length() + 2;
+        }
+        return response;
+      }
+    };
+  }
+}
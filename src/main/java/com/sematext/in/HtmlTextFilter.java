@@ -0,0 +1,305 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+/**
+ * Streaming HTML to text filter. Drops tags with their attributes, comments and the content of script and style
+ * elements, decodes character references and separates block elements by a space. HTML is passed in chunks of any
+ * size, a tag or entity split between chunks is continued with the next one. Nothing is allocated per chunk.
+ *
+ * This isn't a full HTML5 tokenizer: it's good enough to keep markup, CSS and URLs away from keyword matching, a
+ * malformed document at worst leaks some markup into the text. Not thread safe, {@link #reset()} between documents.
+ */
+public class HtmlTextFilter {
+  private static final int TEXT = 0;
+  private static final int TAG_OPEN = 1;
+  private static final int TAG_NAME = 2;
+  private static final int TAG = 3;
+  private static final int QUOTED = 4;
+  private static final int COMMENT = 5;
+  private static final int RAW_TEXT = 6;
+  private static final int ENTITY = 7;
+
+  private static final int MAX_NAME = 16;
+  private static final int MAX_ENTITY = 10;
+
+  // elements which don't separate words
+  private static final String[] INLINE = {"a", "abbr", "b", "big", "code", "em", "font", "i", "mark", "q", "s",
+      "small", "span", "strong", "sub", "sup", "tt", "u", "wbr"};
+  private static final String[] RAW = {"script", "style"};
+  private static final String[] RAW_END = {"</script", "</style"};
+  private static final String[] ENTITY_NAMES = {"amp", "lt", "gt", "quot", "apos", "nbsp", "copy", "reg", "trade",
+      "hellip", "mdash", "ndash", "lsquo", "rsquo", "ldquo", "rdquo", "laquo", "raquo", "bull", "middot", "euro",
+      "shy", "zwnj", "zwj"};
+  // soft hyphen and zero width (non-)joiner decode to nothing
+  private static final String ENTITY_VALUES = "&<>\"' \u00a9\u00ae\u2122\u2026\u2014\u2013\u2018\u2019\u201c\u201d"
+      + "\u00ab\u00bb\u2022\u00b7\u20ac\u0000\u0000\u0000";
+
+  private int state = TEXT;
+  private final char[] name = new char[MAX_NAME];
+  private int nameLength;
+  private boolean closing;
+  private char quote;
+  private int dashes;
+  // closing tag of the current script or style element, matched while skipping its content
+  private String rawEnd;
+  private int rawMatched;
+  private final char[] entity = new char[MAX_ENTITY];
+  private int entityLength;
+
+  private char[] out = new char[0];
+  private int outLength;
+  // the output of previous chunks ended with a space
+  private boolean lastSpace;
+
+  /**
+   * Filters len chars of html, returns the number of text chars written to {@link #getOutput()}.
+   */
+  public int filter(char[] html, int off, int len) {
+    // every input char produces at most two output chars, a pending entity at most its length plus two
+    ensureCapacity(2 * len + MAX_ENTITY + 2);
+    outLength = 0;
+    for (int i = off, end = off + len; i < end; i++) {
+      process(html[i]);
+    }
+    if (outLength > 0) {
+      lastSpace = out[outLength - 1] == ' ';
+    }
+    return outLength;
+  }
+
+  /**
+   * Ends the document, returns the number of chars written to {@link #getOutput()} for a pending entity.
+   */
+  public int finish() {
+    ensureCapacity(MAX_ENTITY + 2);
+    outLength = 0;
+    if (state == ENTITY) {
+      literalEntity();
+    } else if (state == TAG_OPEN) {
+      emit('<');
+    }
+    state = TEXT;
+    return outLength;
+  }
+
+  /**
+   * Output of the last {@link #filter} or {@link #finish()} call, valid until the next one.
+   */
+  public char[] getOutput() {
+    return out;
+  }
+
+  public void reset() {
+    state = TEXT;
+    nameLength = 0;
+    entityLength = 0;
+    rawEnd = null;
+    lastSpace = false;
+  }
+
+  private void process(char c) {
+    switch (state) {
+      case TEXT:
+        text(c);
+        break;
+      case TAG_OPEN:
+        if (c == '/' || c == '!' || c == '?' || Character.isLetter(c)) {
+          closing = c == '/';
+          nameLength = 0;
+          state = TAG_NAME;
+          if (!closing) {
+            appendName(c);
+          }
+        } else {
+          // not a tag, e.g. "a < b"
+          emit('<');
+          state = TEXT;
+          text(c);
+        }
+        break;
+      case TAG_NAME:
+        if (c == '>') {
+          endTag();
+        } else if (Character.isWhitespace(c) || c == '/') {
+          state = TAG;
+        } else {
+          appendName(c);
+          if (nameLength == 3 && name[0] == '!' && name[1] == '-' && name[2] == '-') {
+            dashes = 0;
+            state = COMMENT;
+          }
+        }
+        break;
+      case TAG:
+        if (c == '>') {
+          endTag();
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+          state = QUOTED;
+        }
+        break;
+      case QUOTED:
+        if (c == quote) {
+          state = TAG;
+        }
+        break;
+      case COMMENT:
+        if (c == '>' && dashes >= 2) {
+          state = TEXT;
+        } else {
+          dashes = c == '-' ? dashes + 1 : 0;
+        }
+        break;
+      case RAW_TEXT:
+        if (Character.toLowerCase(c) == rawEnd.charAt(rawMatched)) {
+          if (++rawMatched == rawEnd.length()) {
+            // rest of the closing tag
+            rawEnd = null;
+            closing = true;
+            nameLength = 0;
+            state = TAG;
+          }
+        } else {
+          rawMatched = c == '<' ? 1 : 0;
+        }
+        break;
+      case ENTITY:
+        if (c == ';') {
+          decodeEntity();
+          state = TEXT;
+        } else if ((Character.isLetterOrDigit(c) || c == '#') && entityLength < MAX_ENTITY) {
+          entity[entityLength++] = c;
+        } else {
+          literalEntity();
+          state = TEXT;
+          text(c);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown state " + state);
+    }
+  }
+
+  private void text(char c) {
+    if (c == '<') {
+      state = TAG_OPEN;
+    } else if (c == '&') {
+      entityLength = 0;
+      state = ENTITY;
+    } else {
+      emit(c);
+    }
+  }
+
+  private void appendName(char c) {
+    if (nameLength < MAX_NAME) {
+      name[nameLength++] = Character.toLowerCase(c);
+    }
+  }
+
+  private void endTag() {
+    state = TEXT;
+    int raw = closing ? -1 : indexOf(RAW);
+    if (raw >= 0) {
+      rawEnd = RAW_END[raw];
+      rawMatched = 0;
+      state = RAW_TEXT;
+    }
+    // tags next to each other give one space
+    if (indexOf(INLINE) < 0 && !(outLength > 0 ? out[outLength - 1] == ' ' : lastSpace)) {
+      emit(' ');
+    }
+  }
+
+  private int indexOf(String[] names) {
+    for (int i = 0; i < names.length; i++) {
+      if (equals(names[i], name, nameLength)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void decodeEntity() {
+    int codePoint = -1;
+    if (entityLength > 1 && entity[0] == '#') {
+      boolean hex = entity[1] == 'x' || entity[1] == 'X';
+      codePoint = parse(hex ? 2 : 1, hex ? 16 : 10);
+    } else {
+      for (int i = 0; i < ENTITY_NAMES.length; i++) {
+        if (equals(ENTITY_NAMES[i], entity, entityLength)) {
+          codePoint = ENTITY_VALUES.charAt(i);
+          break;
+        }
+      }
+    }
+    if (codePoint < 0) {
+      literalEntity();
+      emit(';');
+    } else if (codePoint == '\u00a0') {
+      emit(' ');
+    } else if (Character.isSupplementaryCodePoint(codePoint)) {
+      emit(Character.highSurrogate(codePoint));
+      emit(Character.lowSurrogate(codePoint));
+    } else if (codePoint != 0 && !Character.isSurrogate((char) codePoint)) {
+      emit((char) codePoint);
+    }
+  }
+
+  /**
+   * Parses the numeric reference in the entity buffer from start, returns -1 if invalid.
+   */
+  private int parse(int start, int radix) {
+    if (start == entityLength) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = start; i < entityLength; i++) {
+      int digit = Character.digit(entity[i], radix);
+      if (digit < 0) {
+        return -1;
+      }
+      value = value * radix + digit;
+      if (value > Character.MAX_CODE_POINT) {
+        return -1;
+      }
+    }
+    return value;
+  }
+
+  private void literalEntity() {
+    emit('&');
+    for (int i = 0; i < entityLength; i++) {
+      emit(entity[i]);
+    }
+  }
+
+  private void emit(char c) {
+    out[outLength++] = c;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (out.length < capacity) {
+      out = new char[capacity];
+    }
+  }
+
+  private static boolean equals(String s, char[] chars, int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -8,8 +8,27 @@
  */
 package com.sematext.in;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.ListInfo;
+import com.sun.mail.imap.protocol.MessageSet;
+import com.sun.mail.imap.protocol.Status;
 
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.slf4j.Logger;
@@ -17,99 +36,120 @@ import org.slf4j.LoggerFactory;
 
 import javax.mail.FetchProfile;
 import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
 import javax.mail.search.AndTerm;
 import javax.mail.search.BodyTerm;
 import javax.mail.search.ComparisonTerm;
-import javax.mail.search.DateTerm;
 import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
 import javax.mail.search.SearchTerm;
 import javax.mail.search.SubjectTerm;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-public class IMapFetcher implements Iterator<IMAPMessage> {
+public class IMapFetcher implements MessageSource {
   private static final Logger LOG = LoggerFactory.getLogger(IMapFetcher.class);
   
   private final CompositeConfiguration config;
-  private final String[] excludes;
-  private final String[] includes;
+  private final FolderFilter filter;
 
   private Store mailbox;
   private FolderIterator folderIter;
   private MessageIterator msgIter;
-  private static FetchProfile fp = new FetchProfile();
+  private final FetchProfile fp;
+  private final int textPrefetchBytes;
+  private final boolean twoPhaseFetch;
 
-  private int batchSize = 200;
-  private int fetchSize = 32 * 1024;
-  private int cTimeout = 30 * 1000;
-  private int rTimeout = 60 * 1000;
+  private final BatchSizer batchSizer;
+
+  private static final String STATUS_ITEMS = "MESSAGES UIDNEXT UIDVALIDITY";
+  // STATUS commands sent before reading their responses, few enough to fit socket buffers
+  private static final int STATUS_PIPELINE = 100;
+  // getAllRecipients() reads Newsgroups, which isn't part of the envelope
+  private static final String[] DEFAULT_FETCH_ITEMS = { "envelope", "content_info", "uid", "Newsgroups" };
 
   private List<String> keywords;
+  private List<String> selectedFolders;
+  private CheckpointStore checkpoints;
+  private Metrics metrics = new Metrics();
+  private SeenMessages seenMessages;
+  private String account;
+  private BandwidthLimiter limiter;
+  // the server has Gmail extensions: messages are deduplicated by X-GM-MSGID instead of Message-ID
+  private boolean gmail;
+  // X-GM-RAW query run in All Mail instead of walking the folder tree, null when not used
+  private String rawQuery;
+  // keep running after the first pass and process messages as they arrive
+  private volatile boolean watch;
+  private FolderWatcher watcher;
+  // watched folder whose new messages are being iterated
+  private FolderWatcher.Watched watching;
+  // folders to watch after the first pass -> last UID seen by the pass, -1 when unknown
+  private final Map<String, Long> watchUids = Maps.newLinkedHashMap();
+  // batches still in use, oldest first, and messages returned by next() but not processed yet, guarded by batches
+  private final Deque<Batch> batches = new ArrayDeque<Batch>();
+  private final Map<Message, Batch> unprocessed = new IdentityHashMap<Message, Batch>();
+  private boolean trackProcessed;
 
   private Date fetchMailsSince;
 
+  /**
+   * Opens folders one after the other, the previous one is closed when the next is opened.
+   */
   class FolderIterator implements Iterator<Folder> {
-    private Store mailbox;
-    private List<Folder> folders = null;
+    private final Iterator<Folder> folders;
     private Folder lastFolder = null;
 
-    public FolderIterator(Store mailBox) throws EmailFetchException {
-      this.mailbox = mailBox;
-      this.folders = Lists.newArrayList();
-      getTopLevelFolders(mailBox);
+    public FolderIterator(List<Folder> folders) {
+      this.folders = folders.iterator();
     }
 
     public boolean hasNext() {
-      return !folders.isEmpty();
+      return folders.hasNext();
     }
 
     public Folder next() {
       try {
-        boolean hasMessages = false;
-        Folder next;
-        do {
-          if (lastFolder != null) {
-            lastFolder.close(false);
-            lastFolder = null;
-          }
-          if (folders.isEmpty()) {
-            mailbox.close();
-            return null;
-          }
-          next = folders.remove(0);
-          if (next != null) {
-            String fullName = next.getFullName();
-            if (!excludeFolder(fullName)) {
-              hasMessages = (next.getType() & Folder.HOLDS_MESSAGES) != 0;
-              next.open(Folder.READ_ONLY);
-              lastFolder = next;
-              LOG.info("Opened folder: {}", fullName);
-            }
-            if (((next.getType() & Folder.HOLDS_FOLDERS) != 0)) {
-              Folder[] children = next.list();
-              LOG.debug("Adding its children to list");
-              for (int i = children.length - 1; i >= 0; i--) {
-                folders.add(0, children[i]);
-                LOG.debug("Child name: {}", children[i].getFullName());
-              }
-              if (children.length == 0) {
-                LOG.debug("No children");
-              }
-            }
-          }
-        } while (!hasMessages);
+        close();
+        if (!folders.hasNext()) {
+          return null;
+        }
+        Folder next = folders.next();
+        long start = System.nanoTime();
+        next.open(Folder.READ_ONLY);
+        metrics.latency(Metrics.FOLDER_OPEN).record(System.nanoTime() - start);
+        if (watch && next instanceof IMAPFolder) {
+          // newer messages are left to the watcher, UIDNEXT comes with SELECT
+          long uidNext = ((IMAPFolder) next).getUIDNext();
+          watchUids.put(next.getFullName(), uidNext > 0 ? uidNext - 1 : -1);
+        }
+        lastFolder = next;
+        LOG.info("Opened folder: {}", next.getFullName());
         return next;
       } catch (MessagingException e) {
+        LOG.error("Opening folder failed", e);
         return null;
       }
     }
@@ -118,88 +158,396 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
       throw new UnsupportedOperationException("Its read only mode.");
     }
 
-    private void getTopLevelFolders(Store mailBox) throws EmailFetchException {
-      try {
-        folders.add(mailBox.getDefaultFolder());
-      } catch (MessagingException e) {
-        throw new EmailFetchException("Folder retreival failed", e);
+    public void close() throws MessagingException {
+      if (lastFolder != null) {
+        if (lastFolder.isOpen()) {
+          lastFolder.close(false);
+        }
+        lastFolder = null;
       }
     }
+  }
 
-    private boolean excludeFolder(String name) {
-      for (String s : excludes) {
-        if (name.matches(s))
-          return true;
-      }
-      for (String s : includes) {
-        if (name.matches(s))
-          return false;
-      }
-      return includes.length > 0;
+  /**
+   * Messages of a fetched batch. It's done when the iterator moved past it and, with
+   * {@link IMapFetcher#setTrackProcessed(boolean)}, every message returned from it was processed. Batches are retired
+   * in order once done, their cached headers are dropped then and the checkpoint of the folder moves to the batch end,
+   * so it never covers a message which is still being processed.
+   */
+  static class Batch {
+    private final Message[] messages;
+    private int pending;
+    private boolean finished;
+    // checkpoint stored when the batch is retired, lastUid -1 for none
+    private String folder;
+    private long uidValidity;
+    private long lastUid = -1;
+
+    Batch(Message[] messages) {
+      this.messages = messages;
     }
   }
 
   class MessageIterator implements Iterator<Message> {
     private Folder folder;
     private Message[] messagesInCurBatch;
+    // last message of the batch before duplicates were removed, the checkpoint moves past it with the batch
+    private Message lastInBatch;
     private int current = 0;
     private int currentBatch = 0;
-    private int lastIndex = 0;
-    private int batchSize = 0;
+    // index of the first message of the next batch, in selected or in the folder (from 0)
+    private int nextIndex = 0;
+    // first message of the last batch and failed attempts to fetch it because of throttling
+    private int batchStart;
+    private int throttledBatches;
     private int totalInFolder = 0;
-    private boolean doBatching = true;
+    // sequence numbers of search results, when null all messages from nextIndex on are iterated
+    private int[] selected;
+    private UIDFolder uidFolder;
+    private long uidValidity;
+    // highest UID in the folder when resuming after a UID, -1 if not known
+    private long lastUid = -1;
+    // text prefetched for the current batch
+    private long batchBytes;
+    // message number -> section -> start of the text part, prefetched for the current batch
+    private Map<Integer, Map<String, byte[]>> prefetchedText = Collections.emptyMap();
+    private Batch batch;
+
+    public MessageIterator(Folder folder) throws EmailFetchException {
+      this(folder, -1);
+    }
 
-    public MessageIterator(Folder folder, int batchSize) throws EmailFetchException {
+    /**
+     * @param resumeAfterUid when not negative only messages with a higher UID are iterated, otherwise messages after
+     *          the checkpoint (if any)
+     */
+    public MessageIterator(Folder folder, long resumeAfterUid) throws EmailFetchException {
       try {
         this.folder = folder;
-        this.batchSize = batchSize;
-        SearchTerm st = getSearchTerm();
-        if (st != null) {
-          doBatching = false;
-          messagesInCurBatch = folder.search(st);
-          totalInFolder = messagesInCurBatch.length;
-          folder.fetch(messagesInCurBatch, fp);
-          current = 0;
+        int firstMessage = getFirstUnprocessedMessage(resumeAfterUid);
+        SearchTerm st = rawQuery == null ? getSearchTerm() : null;
+        if (rawQuery != null) {
+          selected = sequenceNumbers(rawSearch(firstMessage), firstMessage);
+          totalInFolder = selected.length;
           LOG.info("Total messages: {}", totalInFolder);
-          LOG.info("Search criteria applied. Batching disabled.");
+          LOG.info("Gmail search {} applied on server.", rawQuery);
+        } else if (st != null) {
+          // only sequence numbers are kept, messages are fetched batch by batch like without search. When resuming
+          // only the new messages are searched.
+          int count = folder.getMessageCount();
+          if (firstMessage > count) {
+            selected = new int[0];
+          } else if (firstMessage > 1) {
+            selected = sequenceNumbers(folder.search(st, folder.getMessages(firstMessage, count)), firstMessage);
+          } else {
+            selected = sequenceNumbers(folder.search(st), firstMessage);
+          }
+          totalInFolder = selected.length;
+          LOG.info("Total messages: {}", totalInFolder);
+          LOG.info("Search criteria applied on server.");
         } else {
           totalInFolder = folder.getMessageCount();
+          nextIndex = firstMessage - 1;
           LOG.info("Total messages: {}", totalInFolder);
-          getNextBatch(batchSize, folder);
         }
+        // the first batch is fetched by hasNext(), so its failures reach the caller like those of later batches
+        messagesInCurBatch = new Message[0];
       } catch (MessagingException e) {
         throw new EmailFetchException("Message retreival failed", e);
       }
     }
 
-    private void getNextBatch(int batchSize, Folder folder) throws MessagingException {
-      // after each batch invalidate cache
-      if (messagesInCurBatch != null) {
-        for (Message m : messagesInCurBatch) {
-          if (m instanceof IMAPMessage) {
-            ((IMAPMessage) m).invalidateHeaders();
+    /**
+     * Returns sequence number of the first message after resumeAfterUid or after the checkpoint of this folder, 1
+     * when there is neither or UIDVALIDITY of the checkpoint changed.
+     */
+    private int getFirstUnprocessedMessage(long resumeAfterUid) throws MessagingException {
+      if (!(folder instanceof UIDFolder)) {
+        return 1;
+      }
+      if (checkpoints != null || resumeAfterUid >= 0) {
+        uidFolder = (UIDFolder) folder;
+        uidValidity = uidFolder.getUIDValidity();
+      }
+      if (resumeAfterUid >= 0) {
+        return getFirstMessageAfter(resumeAfterUid);
+      }
+      if (checkpoints == null) {
+        return 1;
+      }
+      CheckpointStore.Checkpoint checkpoint = checkpoints.get(folder.getFullName());
+      if (checkpoint == null) {
+        return 1;
+      }
+      if (checkpoint.getUidValidity() != uidValidity) {
+        LOG.info("UIDVALIDITY of {} changed, rescanning whole folder", folder.getFullName());
+        return 1;
+      }
+      return getFirstMessageAfter(checkpoint.getLastUid());
+    }
+
+    private int getFirstMessageAfter(long uid) throws MessagingException {
+      // UIDs grow with sequence numbers, so newer messages are a tail of the folder. n:* always returns at least the
+      // last message, even when its UID is lower than n.
+      Message[] newMessages = uidFolder.getMessagesByUID(uid + 1, UIDFolder.LASTUID);
+      if (newMessages.length > 0) {
+        lastUid = uidFolder.getUID(newMessages[newMessages.length - 1]);
+      }
+      for (Message m : newMessages) {
+        if (uidFolder.getUID(m) > uid) {
+          LOG.info("Resuming {} after UID {}", folder.getFullName(), uid);
+          return m.getMessageNumber();
+        }
+      }
+      LOG.info("No new messages in {} after UID {}", folder.getFullName(), uid);
+      return folder.getMessageCount() + 1;
+    }
+
+    private int[] sequenceNumbers(Message[] messages, int firstMessage) {
+      int[] numbers = new int[messages.length];
+      for (int i = 0; i < messages.length; i++) {
+        numbers[i] = messages[i].getMessageNumber();
+      }
+      return sequenceNumbers(numbers, firstMessage);
+    }
+
+    private int[] sequenceNumbers(int[] numbers, int firstMessage) {
+      int[] result = new int[numbers.length];
+      int count = 0;
+      for (int number : numbers) {
+        if (number >= firstMessage) {
+          result[count++] = number;
+        }
+      }
+      return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Runs SEARCH X-GM-RAW over messages from firstMessage on, evaluated by Gmail's own index like a search in the web
+     * UI. JavaMail has no search term for it, so the untagged SEARCH responses are read here.
+     */
+    private int[] rawSearch(int firstMessage) throws MessagingException {
+      final String range = firstMessage > 1 ? firstMessage + ":* " : "";
+      return (int[]) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+          Argument args = new Argument();
+          try {
+            args.writeString(rawQuery, "UTF-8");
+          } catch (UnsupportedEncodingException e) {
+            throw new ProtocolException("UTF-8 not supported");
+          }
+          Response[] r = protocol.command("SEARCH CHARSET UTF-8 " + range + "X-GM-RAW", args);
+          List<Integer> numbers = Lists.newArrayList();
+          for (int i = 0; i < r.length - 1; i++) {
+            if (r[i] instanceof IMAPResponse && ((IMAPResponse) r[i]).keyEquals("SEARCH")) {
+              int number;
+              while ((number = r[i].readNumber()) != -1) {
+                numbers.add(number);
+              }
+              r[i] = null;
+            }
           }
+          protocol.notifyResponseHandlers(r);
+          protocol.handleResult(r[r.length - 1]);
+          return Ints.toArray(numbers);
         }
+      });
+    }
+
+    private void getNextBatch() throws MessagingException {
+      finishBatch();
+      // waiting for bandwidth budget is part of the batch, so a throttled account gets smaller ones
+      long start = System.nanoTime();
+      if (limiter != null) {
+        limiter.acquire();
+      }
+      int firstMsg = nextIndex;
+      batchStart = firstMsg;
+      int lastMsg = (int) Math.min((long) nextIndex + batchSizer.getBatchSize(), totalInFolder);
+      if (selected != null) {
+        messagesInCurBatch = folder.getMessages(Arrays.copyOfRange(selected, firstMsg, lastMsg));
+      } else {
+        messagesInCurBatch = folder.getMessages(firstMsg + 1, lastMsg);
       }
-      int lastMsg = lastIndex + (currentBatch + 1) * batchSize;
-      lastMsg = lastMsg > totalInFolder ? totalInFolder : lastMsg;
-      messagesInCurBatch = folder.getMessages(lastIndex + currentBatch * batchSize + 1, lastMsg);
-      folder.fetch(messagesInCurBatch, fp);
+      nextIndex = lastMsg;
+      batchBytes = 0;
+      GmailImapStore counting = mailbox instanceof GmailImapStore ? (GmailImapStore) mailbox : null;
+      if (counting != null) {
+        counting.startCounting();
+      }
+      long fetchedBytes;
+      try {
+        folder.fetch(messagesInCurBatch, fp);
+      } finally {
+        fetchedBytes = counting != null ? counting.stopCounting() : 0;
+      }
+      // JavaMail closes the folder on a dropped connection without failing the FETCH
+      if (!folder.isOpen()) {
+        throw new FolderClosedException(folder, "Connection dropped while fetching a batch");
+      }
+      lastInBatch = messagesInCurBatch.length == 0 ? null : messagesInCurBatch[messagesInCurBatch.length - 1];
+      batch = track(messagesInCurBatch);
+      if (checkpoints != null && uidFolder != null && lastInBatch != null) {
+        batch.folder = folder.getFullName();
+        batch.uidValidity = uidValidity;
+        batch.lastUid = uidFolder.getUID(lastInBatch);
+      }
+      if (seenMessages != null) {
+        messagesInCurBatch = skipDuplicates(messagesInCurBatch);
+      }
+      if (textPrefetchBytes > 0 && folder instanceof IMAPFolder) {
+        prefetchText();
+      }
+      if (limiter != null) {
+        limiter.record(batchBytes);
+      }
+      long elapsed = System.nanoTime() - start;
+      metrics.latency(Metrics.BATCH_FETCH).record(elapsed);
       current = 0;
       currentBatch++;
-      LOG.info("Current batch: {}", currentBatch);
-      LOG.info("Messages in this batch: {}", messagesInCurBatch.length);
+      // attachments aren't downloaded, so only what the batch fetched counts, not the size of the messages
+      int nextSize = batchSizer.update(lastMsg - firstMsg, elapsed, fetchedBytes + batchBytes);
+      LOG.info("Batch {}: {} messages in {} ms, {} KB fetched, {} KB prefetched, next batch size {}", currentBatch,
+          messagesInCurBatch.length, TimeUnit.NANOSECONDS.toMillis(elapsed), fetchedBytes / 1024, batchBytes / 1024,
+          nextSize);
+    }
+
+    /**
+     * Leaves out messages another folder already returned, using the envelope (or X-GM-MSGID) fetched with the batch,
+     * so their content is never fetched. Messages without an id are kept.
+     */
+    private Message[] skipDuplicates(Message[] messages) {
+      List<Message> kept = Lists.newArrayListWithCapacity(messages.length);
+      String name = folder.getFullName();
+      for (Message m : messages) {
+        try {
+          long key = -1;
+          if (gmail) {
+            key = GmailImapStore.getMsgId(m);
+          }
+          if (key == -1) {
+            String messageId = ((MimeMessage) m).getMessageID();
+            if (messageId == null) {
+              kept.add(m);
+              continue;
+            }
+            key = SeenMessages.key(messageId);
+          }
+          if (seenMessages.claim(key, name)) {
+            kept.add(m);
+          }
+        } catch (MessagingException e) {
+          LOG.debug("Can't read id of message {}, keeping it", m.getMessageNumber(), e);
+          kept.add(m);
+        }
+      }
+      int duplicates = messages.length - kept.size();
+      if (duplicates > 0) {
+        LOG.info("Skipped {} messages already seen in other folders", duplicates);
+        metrics.duplicatesSkipped(AccountRunner.qualify(account, name), duplicates);
+      }
+      return kept.size() == messages.length ? messages : kept.toArray(new Message[kept.size()]);
+    }
+
+    /**
+     * Fetches the start of text parts for the whole batch, BODYSTRUCTURE was already fetched with the batch. Without
+     * two phase fetch only single part text messages are prefetched (BODY.PEEK[TEXT]), with it also the text parts
+     * {@link PartContentReader} reads from multiparts (BODY.PEEK[1], BODY.PEEK[1.1], ...). Messages are grouped by
+     * section, so a batch needs one FETCH per distinct section. JavaMail has no fetch profile item for partial
+     * bodies, so the responses are kept here.
+     */
+    private void prefetchText() {
+      ListMultimap<String, Integer> bySection = ArrayListMultimap.create();
+      for (Message m : messagesInCurBatch) {
+        try {
+          List<String> sections = PartContentReader.getTextSections(m);
+          if (twoPhaseFetch || (sections.size() == 1 && "TEXT".equals(sections.get(0)))) {
+            for (String section : sections) {
+              bySection.put(section, m.getMessageNumber());
+            }
+          }
+        } catch (MessagingException | IOException e) {
+          LOG.debug("Can't read structure of message {}, it will be streamed", m.getMessageNumber(), e);
+        }
+      }
+
+      prefetchedText = Maps.newHashMap();
+      for (String section : bySection.keySet()) {
+        try {
+          fetchSection(section, Ints.toArray(bySection.get(section)));
+        } catch (MessagingException e) {
+          LOG.warn("Prefetching section {} failed, messages will be streamed", section, e);
+        }
+      }
+    }
+
+    private void fetchSection(String section, int[] numbers) throws MessagingException {
+      final String command = "FETCH " + MessageSet.toString(MessageSet.createMessageSets(numbers))
+          + " (BODY.PEEK[" + section + "]<0." + textPrefetchBytes + ">)";
+      Response[] responses = (Response[]) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+        public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+          Response[] r = protocol.command(command, null);
+          protocol.notifyResponseHandlers(r);
+          protocol.handleResult(r[r.length - 1]);
+          return r;
+        }
+      });
+
+      for (Response response : responses) {
+        if (response instanceof FetchResponse) {
+          FetchResponse fr = (FetchResponse) response;
+          BODY body = fr.getItem(BODY.class);
+          if (body != null && body.getByteArray() != null) {
+            Map<String, byte[]> sections = prefetchedText.get(fr.getNumber());
+            if (sections == null) {
+              sections = Maps.newHashMap();
+              prefetchedText.put(fr.getNumber(), sections);
+            }
+            byte[] bytes = body.getByteArray().getNewBytes();
+            sections.put(section, bytes);
+            batchBytes += bytes.length;
+            metrics.bytesFetched(AccountRunner.qualify(account, folder.getFullName()), bytes.length);
+          }
+        }
+      }
+    }
+
+    /**
+     * Marks the current batch as passed by the iterator.
+     */
+    private void finishBatch() {
+      if (batch != null) {
+        finish(batch);
+        batch = null;
+      }
     }
 
     public boolean hasNext() {
       boolean hasMore = current < messagesInCurBatch.length;
-      if (!hasMore && doBatching && lastIndex + currentBatch * batchSize < totalInFolder) {
+      if (!hasMore) {
+        finishBatch();
+      }
+      // batches may be empty when all their messages were duplicates
+      while (!hasMore && nextIndex < totalInFolder) {
         // try next batch
         try {
-          getNextBatch(batchSize, folder);
+          getNextBatch();
+          throttledBatches = 0;
           hasMore = current < messagesInCurBatch.length;
+          if (!hasMore) {
+            finishBatch();
+          }
         } catch (MessagingException e) {
-          LOG.error("Message retreival failed");
+          if (limiter != null && BandwidthLimiter.isThrottling(e)
+              && throttledBatches++ < config.getInt("restart.max_retries", 5)) {
+            // the next attempt waits for the throttling pause
+            LOG.warn("Batch fetch throttled, retrying", e);
+            limiter.throttled();
+            nextIndex = batchStart;
+            continue;
+          }
+          // the caller reconnects and resumes, a later hasNext() continues with the next batch
+          throw new EmailFetchException("Fetching batch of " + folder.getFullName() + " failed", e);
         }
       }
       return hasMore;
@@ -238,7 +586,12 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
     }
 
     public Message next() {
-      return hasNext() ? messagesInCurBatch[current++] : null;
+      if (!hasNext()) {
+        return null;
+      }
+      Message message = messagesInCurBatch[current++];
+      returned(message, batch);
+      return message;
     }
 
     public void remove() {
@@ -248,9 +601,49 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
 
   public IMapFetcher(CompositeConfiguration config, String[] includes, String[] excludes, Date fetchMailsSince) {
     this.config = config;
-    this.includes = includes;
-    this.excludes = excludes;
+    this.filter = new FolderFilter(includes, excludes);
     this.fetchMailsSince = fetchMailsSince;
+    this.fp = buildFetchProfile(config.getStringArray("fetch.items"));
+    this.textPrefetchBytes = config.getInt("fetch.text_prefetch_bytes", 0);
+    this.twoPhaseFetch = config.getBoolean("fetch.two_phase", false);
+    this.batchSizer = BatchSizer.fromConfig(config);
+    if (textPrefetchBytes > 0) {
+      // sections to prefetch are found from BODYSTRUCTURE
+      fp.add(FetchProfile.Item.CONTENT_INFO);
+    }
+  }
+
+  /**
+   * Builds the profile prefetched for every batch in one FETCH command. Items are envelope (ENVELOPE, INTERNALDATE,
+   * RFC822.SIZE), content_info (BODYSTRUCTURE), flags, size and uid, anything else is a header name. Uid is always
+   * fetched.
+   */
+  static FetchProfile buildFetchProfile(String[] items) {
+    if (items == null || items.length == 0) {
+      items = DEFAULT_FETCH_ITEMS;
+    }
+    FetchProfile profile = new FetchProfile();
+    for (String item : items) {
+      String name = item.trim();
+      if ("envelope".equalsIgnoreCase(name)) {
+        profile.add(FetchProfile.Item.ENVELOPE);
+      } else if ("content_info".equalsIgnoreCase(name)) {
+        profile.add(FetchProfile.Item.CONTENT_INFO);
+      } else if ("flags".equalsIgnoreCase(name)) {
+        profile.add(FetchProfile.Item.FLAGS);
+      } else if ("size".equalsIgnoreCase(name)) {
+        profile.add(FetchProfile.Item.SIZE);
+      } else if ("uid".equalsIgnoreCase(name)) {
+        profile.add(UIDFolder.FetchProfileItem.UID);
+      } else if (!name.isEmpty()) {
+        profile.add(name);
+      }
+    }
+    // needed for checkpoints and resuming after failures
+    if (!profile.contains(UIDFolder.FetchProfileItem.UID)) {
+      profile.add(UIDFolder.FetchProfileItem.UID);
+    }
+    return profile;
   }
 
   public boolean connectToMailBox() {
@@ -258,16 +651,39 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
       Properties props = new Properties();
       props.setProperty("mail.imap.ssl.enable", "true"); // required for Gmail
       props.setProperty("mail.imap.auth.mechanisms", "XOAUTH2");
-      props.setProperty("mail.store.protocol", config.getString("imap.protocol"));
-      props.setProperty("mail.imaps.fetchsize", "" + fetchSize);
-      props.setProperty("mail.imaps.timeout", "" + rTimeout);
-      props.setProperty("mail.imaps.writetimeout", "" + rTimeout);
-      props.setProperty("mail.imaps.connectiontimeout", "" + cTimeout);
-      props.setProperty("mail.imaps.connectionpooltimeout", "" + cTimeout);
+      String protocol = config.getString("imap.protocol");
+      props.setProperty("mail.store.protocol", protocol);
+      // properties are read with the prefix of the protocol in use
+      String prefix = "mail." + protocol + ".";
+      String readTimeout = config.getString("imap.read_timeout_ms", "60000");
+      String connectTimeout = config.getString("imap.connect_timeout_ms", "30000");
+      props.setProperty(prefix + "fetchsize", config.getString("imap.fetch_size", "32768"));
+      props.setProperty(prefix + "timeout", readTimeout);
+      props.setProperty(prefix + "writetimeout", readTimeout);
+      props.setProperty(prefix + "connectiontimeout", connectTimeout);
+      props.setProperty(prefix + "connectionpooltimeout", connectTimeout);
+      // mail.* settings from the configuration override these, e.g. mail.imap.ssl.enable=false for a local server
+      Iterator<String> keys = config.getKeys("mail");
+      while (keys.hasNext()) {
+        String key = keys.next();
+        props.setProperty(key, config.getString(key));
+      }
 
       Session session = Session.getInstance(props);
-      mailbox = session.getStore(config.getString("imap.protocol"));
-      mailbox.connect(config.getString("imap.host"), config.getString("imap.user"), config.getString("imap.access_token"));
+      if ("imap".equals(protocol) || "imaps".equals(protocol)) {
+        mailbox = new GmailImapStore(session, protocol);
+      } else {
+        mailbox = session.getStore(protocol);
+      }
+      connect();
+      gmail = mailbox instanceof IMAPStore && ((IMAPStore) mailbox).hasCapability("X-GM-EXT-1");
+      if (config.getBoolean("gmail.raw_search", false)) {
+        useRawSearch();
+      }
+      if (seenMessages != null) {
+        // Message-ID is part of the envelope
+        addToProfile(gmail ? GmailImapStore.MSGID : FetchProfile.Item.ENVELOPE);
+      }
       LOG.info("Connected to mailbox");
       return true;
     } catch (MessagingException e) {
@@ -276,7 +692,73 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
     }
   }
 
+  /**
+   * Replaces the folder walk and per folder search with one X-GM-RAW search in All Mail, which holds every message
+   * once whatever its labels are. Keywords (or gmail.raw_query) and the from date make up the query.
+   */
+  private void useRawSearch() throws MessagingException {
+    if (!gmail) {
+      LOG.warn("Server has no Gmail extensions, searching folders one by one");
+      return;
+    }
+    String allMail = findAllMailFolder();
+    if (allMail == null) {
+      LOG.warn("All Mail folder not found, searching folders one by one");
+      return;
+    }
+    String query = config.getString("gmail.raw_query", "");
+    rawQuery = query.isEmpty() ? rawQuery(keywords, fetchMailsSince) : query;
+    selectedFolders = Collections.singletonList(allMail);
+    LOG.info("Searching {} for {}, folder filters are not used", allMail, rawQuery);
+  }
+
+  /**
+   * Returns the folder with the \All special use attribute (RFC 6154), [Gmail]/All Mail in English.
+   */
+  private String findAllMailFolder() throws MessagingException {
+    for (Folder folder : mailbox.getDefaultFolder().list("*")) {
+      if (folder instanceof IMAPFolder) {
+        if (Arrays.asList(((IMAPFolder) folder).getAttributes()).contains("\\All")) {
+          return folder.getFullName();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Builds a Gmail search for messages with any of the keywords, received after fromDate if not null.
+   */
+  static String rawQuery(List<String> keywords, Date fromDate) {
+    StringBuilder sb = new StringBuilder();
+    if (keywords != null) {
+      for (String keyword : keywords) {
+        if (sb.length() > 0) {
+          sb.append(" OR ");
+        }
+        sb.append(keyword.indexOf(' ') >= 0 ? '"' + keyword.replace("\"", "") + '"' : keyword);
+      }
+    }
+    if (keywords != null && keywords.size() > 1) {
+      sb.insert(0, '(').append(')');
+    }
+    if (fromDate != null) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append("after:").append(new SimpleDateFormat("yyyy/MM/dd").format(fromDate));
+    }
+    return sb.toString();
+  }
+
+  private void connect() throws MessagingException {
+    mailbox.connect(config.getString("imap.host"), config.getInt("imap.port", -1), config.getString("imap.user"),
+        config.getString("imap.access_token"));
+  }
+
   public boolean disconnectFromMailBox() {
+    stopWatching();
+    closeCurrentFolder();
     folderIter = null;
     msgIter = null;
     try {
@@ -293,28 +775,502 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
     this.keywords = keywords;
   }
 
+  /**
+   * Keeps each batch, with the cached headers of its messages, until every message returned from it was passed to
+   * {@link #processed(MimeMessage)}, not only until the iterator moved past it. Needed when messages are still
+   * processed after {@link #next()} returned later ones, like by pipeline workers.
+   */
+  public void setTrackProcessed(boolean trackProcessed) {
+    this.trackProcessed = trackProcessed;
+  }
+
+  /**
+   * Enables incremental runs, only messages after the checkpoint of each folder are fetched.
+   */
+  public void setCheckpointStore(CheckpointStore checkpoints) {
+    this.checkpoints = checkpoints;
+  }
+
+  private void addToProfile(FetchProfile.Item item) {
+    if (!fp.contains(item)) {
+      fp.add(item);
+    }
+  }
+
+  /**
+   * Skips messages which another fetcher sharing seenMessages (or this one, in another folder) already returned, e.g.
+   * the same mail under several Gmail labels. Must be set before connecting.
+   */
+  public void setSeenMessages(SeenMessages seenMessages) {
+    this.seenMessages = seenMessages;
+  }
+
+  /**
+   * Records folder open and batch fetch latencies and prefetched bytes in metrics instead of a private instance.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Names folders account:folder in metrics, null for a single account run.
+   */
+  public void setAccount(String account) {
+    this.account = account;
+  }
+
+  /**
+   * Waits for the budget before every batch fetch and counts prefetched text against it, null for no limit.
+   */
+  public void setBandwidthLimiter(BandwidthLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Returns the size of the next batch.
+   */
+  int getBatchSize() {
+    return batchSizer.getBatchSize();
+  }
+
+  /**
+   * Restricts iteration to a single folder (children are not visited). Used by parallel workers which take folder
+   * names from a shared queue and reuse the same connection for each of them.
+   */
+  public void selectFolder(String folderName) {
+    closeCurrentFolder();
+    selectedFolders = Collections.singletonList(folderName);
+    folderIter = null;
+    msgIter = null;
+  }
+
+  /**
+   * Returns full names of the folders a serial run visits, see {@link #discoverFolders()}. No folder is opened.
+   */
+  public List<String> listFolders() throws EmailFetchException {
+    if (rawQuery != null) {
+      return selectedFolders;
+    }
+    List<String> result = Lists.newArrayList();
+    try {
+      for (Folder folder : discoverFolders()) {
+        result.add(folder.getFullName());
+      }
+    } catch (MessagingException e) {
+      throw new EmailFetchException("Folder retreival failed", e);
+    }
+    return result;
+  }
+
+  /**
+   * Lists all folders with one LIST "" "*" and returns, in LIST order, the ones which hold messages, pass the
+   * include/exclude filter and aren't empty or unchanged since their checkpoint according to STATUS. With LIST-STATUS
+   * (RFC 5819) statuses come with the LIST response, otherwise STATUS commands of the remaining folders are pipelined.
+   * Either way no folder is selected.
+   */
+  List<Folder> discoverFolders() throws MessagingException {
+    Map<String, Status> statuses = null;
+    Folder[] all;
+    if (mailbox instanceof GmailImapStore && ((IMAPStore) mailbox).hasCapability("LIST-STATUS")) {
+      statuses = Maps.newHashMap();
+      all = listWithStatus(statuses);
+    } else {
+      all = mailbox.getDefaultFolder().list("*");
+    }
+
+    List<Folder> candidates = Lists.newArrayList();
+    for (Folder folder : all) {
+      if (filter.accept(folder.getFullName()) && (folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+        candidates.add(folder);
+      }
+    }
+    if (statuses == null) {
+      statuses = statuses(candidates);
+    }
+
+    List<Folder> result = Lists.newArrayList();
+    int skipped = 0;
+    for (Folder folder : candidates) {
+      String name = folder.getFullName();
+      Status status = statuses.get(name);
+      if (watch) {
+        watchUids.put(name, status == null || status.uidnext <= 0 ? -1 : status.uidnext - 1);
+      }
+      if (hasNewMessages(name, status)) {
+        result.add(folder);
+      } else {
+        skipped++;
+      }
+    }
+    LOG.info("Found {} folders, skipped {} empty or unchanged folders", result.size(), skipped);
+    return result;
+  }
+
+  /**
+   * Sends LIST "" "*" RETURN (STATUS ...) and fills statuses by folder name.
+   */
+  private Folder[] listWithStatus(final Map<String, Status> statuses) throws MessagingException {
+    final List<ListInfo> infos = Lists.newArrayList();
+    ((IMAPFolder) mailbox.getDefaultFolder()).doCommand(new IMAPFolder.ProtocolCommand() {
+      public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+        Response[] r = protocol.command("LIST \"\" \"*\" RETURN (STATUS (" + STATUS_ITEMS + "))", null);
+        for (int i = 0; i < r.length - 1; i++) {
+          if (!(r[i] instanceof IMAPResponse)) {
+            continue;
+          }
+          IMAPResponse ir = (IMAPResponse) r[i];
+          if (ir.keyEquals("LIST")) {
+            infos.add(new ListInfo(ir));
+            r[i] = null;
+          } else if (ir.keyEquals("STATUS")) {
+            Status status = new Status(ir);
+            statuses.put(status.mbox, status);
+            r[i] = null;
+          }
+        }
+        protocol.notifyResponseHandlers(r);
+        protocol.handleResult(r[r.length - 1]);
+        return null;
+      }
+    });
+    Folder[] folders = new Folder[infos.size()];
+    for (int i = 0; i < folders.length; i++) {
+      folders[i] = ((GmailImapStore) mailbox).newFolder(infos.get(i));
+    }
+    return folders;
+  }
+
+  /**
+   * Sends STATUS for the folders without waiting for each response, so there's a round trip per
+   * {@link #STATUS_PIPELINE} folders instead of one per folder. Folders whose STATUS failed are left out, they are
+   * opened to find out.
+   */
+  private Map<String, Status> statuses(List<Folder> folders) throws MessagingException {
+    final Map<String, Status> statuses = Maps.newHashMap();
+    Folder root = mailbox.getDefaultFolder();
+    if (!(root instanceof IMAPFolder)) {
+      return statuses;
+    }
+    for (int from = 0; from < folders.size(); from += STATUS_PIPELINE) {
+      final List<Folder> chunk = folders.subList(from, Math.min(from + STATUS_PIPELINE, folders.size()));
+      try {
+        ((IMAPFolder) root).doCommand(new IMAPFolder.ProtocolCommand() {
+          public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+            Set<String> tags = Sets.newHashSet();
+            try {
+              for (Folder folder : chunk) {
+                Argument items = new Argument();
+                for (String item : STATUS_ITEMS.split(" ")) {
+                  items.writeAtom(item);
+                }
+                Argument args = new Argument();
+                args.writeString(BASE64MailboxEncoder.encode(folder.getFullName()));
+                args.writeArgument(items);
+                tags.add(protocol.writeCommand("STATUS", args));
+              }
+              while (!tags.isEmpty()) {
+                Response r = protocol.readResponse();
+                if (r.isTagged()) {
+                  tags.remove(r.getTag());
+                } else if (r instanceof IMAPResponse && ((IMAPResponse) r).keyEquals("STATUS")) {
+                  Status status = new Status(r);
+                  statuses.put(status.mbox, status);
+                } else {
+                  protocol.notifyResponseHandlers(new Response[] { r });
+                  if (r.isBYE()) {
+                    throw new ConnectionException(protocol, r);
+                  }
+                }
+              }
+            } catch (IOException e) {
+              throw new ProtocolException("Pipelined STATUS failed", e);
+            }
+            return null;
+          }
+        });
+      } catch (MessagingException e) {
+        LOG.debug("STATUS failed, {} folders will be opened", folders.size() - statuses.size(), e);
+        break;
+      }
+    }
+    return statuses;
+  }
+
+  /**
+   * Returns false if the status shows the folder is empty, or that its UIDNEXT didn't move past the checkpoint.
+   */
+  private boolean hasNewMessages(String name, Status status) {
+    if (status == null) {
+      return true;
+    }
+    if (status.total == 0) {
+      LOG.debug("Skipping empty folder {}", name);
+      return false;
+    }
+    CheckpointStore.Checkpoint checkpoint = checkpoints == null ? null : checkpoints.get(name);
+    if (checkpoint != null && checkpoint.getUidValidity() == status.uidvalidity && status.uidnext > 0
+        && status.uidnext <= checkpoint.getLastUid() + 1) {
+      LOG.debug("Skipping unchanged folder {}", name);
+      return false;
+    }
+    return true;
+  }
+
+  private FolderIterator newFolderIterator() throws EmailFetchException {
+    try {
+      if (selectedFolders == null) {
+        return new FolderIterator(discoverFolders());
+      }
+      List<Folder> folders = Lists.newArrayList();
+      for (String name : selectedFolders) {
+        Folder folder = mailbox.getFolder(name);
+        if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+          folders.add(folder);
+          if (watch) {
+            watchUids.put(name, -1L);
+          }
+        }
+      }
+      return new FolderIterator(folders);
+    } catch (MessagingException e) {
+      throw new EmailFetchException("Folder retreival failed", e);
+    }
+  }
+
+  private void closeCurrentFolder() {
+    if (folderIter != null) {
+      try {
+        folderIter.close();
+      } catch (MessagingException e) {
+        LOG.warn("Closing folder failed", e);
+      }
+    }
+  }
+
+  /**
+   * Throws {@link EmailFetchException} when fetching a batch fails, after {@link #reconnectToMailBox()} the folder
+   * continues with {@link #resumeAfterUid(long)}.
+   */
   public boolean hasNext() {
+    while (msgIter == null || !msgIter.hasNext()) {
+      if (!nextMessageIterator()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Opens the next folder, or after the first pass in watch mode the next watched folder with new messages. Returns
+   * false when there is none.
+   */
+  private boolean nextMessageIterator() {
     try {
       if (folderIter == null) {
-        folderIter = new FolderIterator(mailbox);
-      }
-      // get next message from the folder
-      // if folder is exhausted get next folder
-      // loop till a valid mail or all folders exhausted.
-      while (msgIter == null || !msgIter.hasNext()) {
-        Folder next = folderIter.hasNext() ? folderIter.next() : null;
-        if (next == null) {
+        folderIter = newFolderIterator();
+      }
+      if (watching != null) {
+        watcher.done(watching, msgIter.lastUid);
+        watching = null;
+      }
+      Folder next = folderIter.hasNext() ? folderIter.next() : null;
+      if (next != null) {
+        msgIter = new MessageIterator(next);
+      } else if (!watch) {
+        return false;
+      } else {
+        // first pass done, wait for new messages
+        folderIter.close();
+        watching = nextChangedFolder();
+        if (watching == null) {
           return false;
         }
-        msgIter = new MessageIterator(next, batchSize);
+        try {
+          msgIter = new MessageIterator(watching.getFolder(), watching.getLastUid());
+        } catch (EmailFetchException e) {
+          LOG.error("Fetching new messages of {} failed", watching.getFolder().getFullName(), e);
+          watcher.done(watching, -1);
+          watching = null;
+        }
       }
-    } catch (EmailFetchException e) {
+    } catch (EmailFetchException | MessagingException e) {
       LOG.error("Fetching email failed", e);
       return false;
     }
     return true;
   }
 
+  private Batch track(Message[] messages) {
+    Batch batch = new Batch(messages);
+    synchronized (batches) {
+      batches.add(batch);
+    }
+    return batch;
+  }
+
+  private void returned(Message message, Batch batch) {
+    if (!trackProcessed) {
+      return;
+    }
+    synchronized (batches) {
+      batch.pending++;
+      Batch previous = unprocessed.put(message, batch);
+      // returned again after resuming the folder, only the new batch waits for it
+      if (previous != null) {
+        previous.pending--;
+      }
+    }
+  }
+
+  private void finish(Batch batch) {
+    synchronized (batches) {
+      batch.finished = true;
+      retire();
+    }
+  }
+
+  /**
+   * Tells the fetcher a message returned by {@link #next()} was processed, its batch is kept until all its messages
+   * are, see {@link #setTrackProcessed(boolean)}. Thread safe.
+   */
+  public void processed(MimeMessage message) {
+    if (!trackProcessed) {
+      return;
+    }
+    synchronized (batches) {
+      Batch batch = unprocessed.remove(message);
+      if (batch != null) {
+        batch.pending--;
+        retire();
+      }
+    }
+  }
+
+  /**
+   * Retires done batches from the oldest on.
+   */
+  private void retire() {
+    while (!batches.isEmpty() && batches.peek().finished && batches.peek().pending == 0) {
+      Batch batch = batches.poll();
+      for (Message m : batch.messages) {
+        if (m instanceof IMAPMessage) {
+          ((IMAPMessage) m).invalidateHeaders();
+        }
+      }
+      if (batch.lastUid >= 0) {
+        try {
+          checkpoints.update(batch.folder, batch.uidValidity, batch.lastUid);
+        } catch (IOException e) {
+          LOG.warn("Storing checkpoint of {} failed", batch.folder, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Limits checkpoints of batches still in use to lastUid, the folder is fetched again after it.
+   */
+  private void resumedAfter(String folder, long lastUid) {
+    synchronized (batches) {
+      for (Batch batch : batches) {
+        if (folder.equals(batch.folder)) {
+          batch.lastUid = Math.min(batch.lastUid, lastUid);
+        }
+      }
+    }
+  }
+
+  public boolean hasNextInFolder() {
+    return msgIter != null && msgIter.hasNext();
+  }
+
+  /**
+   * Keeps folders of the first pass open after it and iterates over messages arriving in them, {@link #hasNext()}
+   * blocks until there are some and returns false only after {@link #stopWatching()}. New messages are found with
+   * IMAP IDLE, or by polling STATUS UIDNEXT when the server has no IDLE. Each watched folder uses its own connection,
+   * watch.max_folders limits them.
+   */
+  public void setWatch(boolean watch) {
+    this.watch = watch;
+  }
+
+  /**
+   * Ends watching, {@link #hasNext()} returns false once the messages being processed are done. Thread safe.
+   */
+  public synchronized void stopWatching() {
+    watch = false;
+    if (watcher != null) {
+      watcher.close();
+    }
+  }
+
+  /**
+   * Waits for a watched folder with new messages, starting the watcher first. Returns null when watching stopped.
+   */
+  private FolderWatcher.Watched nextChangedFolder() throws MessagingException {
+    synchronized (this) {
+      if (!watch) {
+        return null;
+      }
+      if (watcher == null) {
+        watcher = startWatching();
+      }
+    }
+    try {
+      return watcher.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private FolderWatcher startWatching() throws MessagingException {
+    boolean idle = mailbox instanceof IMAPStore && ((IMAPStore) mailbox).hasCapability("IDLE");
+    long pollInterval = config.getLong("watch.poll_interval_ms", 5000);
+    // IDLE must end before the read timeout, servers end it after 30 minutes anyway
+    long renewInterval = config.getLong("watch.idle_renew_ms", config.getLong("imap.read_timeout_ms", 60000) / 2);
+    int maxFolders = config.getInt("watch.max_folders", 10);
+    FolderWatcher result = new FolderWatcher(idle, pollInterval, renewInterval);
+    int count = 0;
+    for (Map.Entry<String, Long> entry : watchUids.entrySet()) {
+      if (count == maxFolders) {
+        LOG.warn("Watching only the first {} of {} folders, see watch.max_folders", maxFolders, watchUids.size());
+        break;
+      }
+      Folder folder = mailbox.getFolder(entry.getKey());
+      try {
+        folder.open(Folder.READ_ONLY);
+        long lastUid = entry.getValue();
+        result.watch(folder, lastUid >= 0 ? lastUid : lastUid(folder));
+        count++;
+      } catch (MessagingException e) {
+        LOG.error("Can't watch folder {}", entry.getKey(), e);
+      }
+    }
+    if (idle) {
+      LOG.info("Watching {} folders with IDLE", count);
+    } else {
+      LOG.info("Server has no IDLE, polling {} folders every {} ms", count, pollInterval);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the highest UID in the open folder, 0 if it's empty.
+   */
+  private static long lastUid(Folder folder) throws MessagingException {
+    if (!(folder instanceof IMAPFolder)) {
+      return 0;
+    }
+    IMAPFolder uidFolder = (IMAPFolder) folder;
+    long uidNext = uidFolder.getUIDNext();
+    if (uidNext > 0) {
+      return uidNext - 1;
+    }
+    int count = folder.getMessageCount();
+    return count == 0 ? 0 : uidFolder.getUID(folder.getMessage(count));
+  }
+
   public void remove() {
     throw new UnsupportedOperationException("Its read only mode.");
   }
@@ -330,40 +1286,86 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
     return msgIter.getFolder();
   }
   
-  public boolean jumpToMessageId(String id) {
-    while (hasNext()) {
-      IMAPMessage mail = next();
-      
-      try {
-        if (id.equals(mail.getMessageID())) {
-          return true;
-        }
-      } catch (MessagingException e) {
-        return false;
-      }
+  /**
+   * Returns prefetched starts of text parts (section id -> transfer encoded bytes) when fetch.text_prefetch_bytes is
+   * enabled and the message is in the current batch, otherwise null.
+   */
+  public Map<String, byte[]> getPrefetchedText(Message message) {
+    if (msgIter == null) {
+      return null;
+    }
+    return msgIter.prefetchedText.get(message.getMessageNumber());
+  }
+
+  public int getTextPrefetchBytes() {
+    return textPrefetchBytes;
+  }
+
+  /**
+   * Returns UID of a message returned by {@link #next()}.
+   */
+  public long getUID(Message message) throws MessagingException {
+    return ((UIDFolder) message.getFolder()).getUID(message);
+  }
+
+  /**
+   * Returns message with the UID from the current folder, null if there is no such message.
+   */
+  public IMAPMessage getMessageByUID(long uid) throws MessagingException {
+    if (msgIter == null || !(msgIter.folder instanceof UIDFolder)) {
+      return null;
     }
-    return false;
+    return (IMAPMessage) ((UIDFolder) msgIter.folder).getMessageByUID(uid);
+  }
+
+  public boolean isConnected() {
+    return mailbox != null && mailbox.isConnected();
   }
 
-  public boolean jumpToFolder(String folderName) {
-    FolderIterator newFolderIter = null;
-    MessageIterator newMsgIter = null;
+  public boolean isRetryable() {
+    return true;
+  }
+
+  /**
+   * Reconnects the same store, so folders still waiting in the folder iterator stay usable.
+   */
+  public boolean reconnectToMailBox() {
     try {
-      newFolderIter = new FolderIterator(mailbox);
-
-      while (newFolderIter.hasNext()) {
-        Folder next = newFolderIter.next();
-        if (folderName.equals(next.getFullName())) {
-          newMsgIter = new MessageIterator(next, batchSize);
-          folderIter = newFolderIter;
-          msgIter = newMsgIter;
-          return true;
-        }
+      if (mailbox.isConnected()) {
+        mailbox.close();
       }
+    } catch (MessagingException e) {
+      LOG.debug("Closing broken connection failed", e);
+    }
+    try {
+      connect();
+      LOG.info("Reconnected to mailbox");
+      return true;
+    } catch (MessagingException e) {
+      LOG.error("Connection failed", e);
+      return false;
+    }
+  }
 
+  /**
+   * Reopens the current folder and continues after the message with given UID (or from the folder start when the UID
+   * is negative). Other folders are not visited again.
+   */
+  public boolean resumeAfterUid(long lastUid) {
+    if (msgIter == null) {
       return false;
-    } catch (EmailFetchException e) {
-      LOG.error("Fetching email failed", e);
+    }
+    Folder folder = msgIter.folder;
+    try {
+      if (!folder.isOpen()) {
+        folder.open(Folder.READ_ONLY);
+      }
+      resumedAfter(folder.getFullName(), lastUid);
+      msgIter.finishBatch();
+      msgIter = new MessageIterator(folder, lastUid);
+      return true;
+    } catch (MessagingException | EmailFetchException e) {
+      LOG.error("Reopening folder {} failed", folder.getFullName(), e);
       return false;
     }
   }
@@ -401,46 +1403,13 @@ public class IMapFetcher implements Iterator<IMAPMessage> {
       since = date;
     }
 
-    @SuppressWarnings("serial")
     public SearchTerm getCustomSearch(final Folder folder) {
-      final SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd"); 
       final String sinceText = new SimpleDateFormat("yyyy-MM-dd").format(since);
-      
+
       LOG.info("Building mail filter for messages in {} that occur from {}", folder.getName(), sinceText);
-      return new DateTerm(ComparisonTerm.GE, since) {
-        private int matched = 0;
-        private int seen = 0;
-        
-        @Override
-        public boolean match(Message msg) {
-          boolean isMatch = false;
-          ++seen;
-          try {
-            Date msgDate = msg.getReceivedDate();
-            if (msgDate == null) msgDate = msg.getSentDate();
-            
-            if (msgDate != null && msgDate.getTime() >= since.getTime()) {
-              ++matched;
-              isMatch = true;
-            } else {
-              if (LOG.isDebugEnabled()) {
-                String msgDateStr = (msgDate != null) ? parser.format(msgDate) : "null";
-                String sinceDateStr = (since != null) ? sinceText : "null";
-                LOG.debug("Message {} was received at [{}], since filter is [{}]", msg.getSubject(), msgDateStr, sinceDateStr);
-              }
-            }
-          } catch (MessagingException e) {
-            LOG.warn("Failed to process message", e);
-          }
-          
-          if (seen % 100 == 0) {
-            LOG.info("Matched {} of {} messages since {}", matched, seen, sinceText);
-          }
-          
-          return isMatch;
-        }
-      };
+      // JavaMail translates ReceivedDateTerm to IMAP SEARCH SINCE, a DateTerm subclass would be evaluated
+      // on the client, fetching every message in the folder
+      return new ReceivedDateTerm(ComparisonTerm.GE, since);
     }
   }
 }
-
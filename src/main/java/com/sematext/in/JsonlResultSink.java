@@ -0,0 +1,63 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * One JSON object per line: {"type":"from","address":...,"category":...,"folder":...,"date":"yyyy-MM-dd"}.
+ */
+public class JsonlResultSink extends RowResultSink {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  public JsonlResultSink(Writer out) {
+    super(out);
+  }
+
+  @Override
+  protected void writeRow(String type, String address, MatchResult result) throws IOException {
+    out.write("{\"type\":\"");
+    out.write(type);
+    out.write("\",\"address\":");
+    writeString(out, address);
+    out.write(",\"category\":");
+    writeString(out, result.getCategory());
+    out.write(",\"folder\":");
+    writeString(out, result.getFolder());
+    out.write(",\"date\":");
+    writeString(out, result.getDate());
+    out.write("}\n");
+  }
+
+  /**
+   * Writes a JSON string literal, or null.
+   */
+  static void writeString(Writer out, String value) throws IOException {
+    if (value == null) {
+      out.write("null");
+      return;
+    }
+    out.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+      } else if (c < 0x20) {
+        out.write("\\u00");
+        out.write(HEX[c >> 4]);
+        out.write(HEX[c & 0xF]);
+      } else {
+        out.write(c);
+      }
+    }
+    out.write('"');
+  }
+}
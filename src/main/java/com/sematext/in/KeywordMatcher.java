@@ -0,0 +1,291 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Case-insensitive multi-keyword matcher (Aho-Corasick automaton). Keywords are grouped in categories and all
+ * categories are counted in a single pass over the text, without lowercasing a copy of it.
+ *
+ * Counts are the same as summing {@code StringUtils.countMatches(text.toLowerCase(), keyword.toLowerCase())} over the
+ * keywords of a category, i.e. occurrences of the same keyword don't overlap.
+ *
+ * The matcher is immutable and can be shared between threads, every pass uses its own {@link Scanner}.
+ */
+public class KeywordMatcher {
+  private static final int ASCII = 128;
+  private static final int[] NO_OUTPUT = new int[0];
+
+  private final int categories;
+  // pattern (keyword in a category) -> category, keyword length
+  private final int[] patternCategory;
+  private final int[] patternLength;
+
+  // dense transitions for ascii chars, already resolved through failure links
+  private final int[][] asciiDelta;
+  // sparse transitions for other chars, resolved at scan time through failure links
+  private final char[][] otherChars;
+  private final int[][] otherTargets;
+  private final int[] failure;
+  // patterns ending in the node, including the ones reachable through failure links
+  private final int[][] output;
+
+  public KeywordMatcher(List<List<String>> categoryKeywords) {
+    this.categories = categoryKeywords.size();
+
+    List<Integer> categoryOfPattern = Lists.newArrayList();
+    List<String> patterns = Lists.newArrayList();
+    for (int c = 0; c < categoryKeywords.size(); c++) {
+      for (String keyword : categoryKeywords.get(c)) {
+        if (keyword != null && !keyword.isEmpty()) {
+          patterns.add(keyword);
+          categoryOfPattern.add(c);
+        }
+      }
+    }
+
+    patternCategory = new int[patterns.size()];
+    patternLength = new int[patterns.size()];
+
+    Trie trie = new Trie();
+    for (int p = 0; p < patterns.size(); p++) {
+      patternCategory[p] = categoryOfPattern.get(p);
+      patternLength[p] = patterns.get(p).length();
+      trie.add(patterns.get(p), p);
+    }
+
+    int nodes = trie.size();
+    asciiDelta = new int[nodes][];
+    otherChars = new char[nodes][];
+    otherTargets = new int[nodes][];
+    failure = new int[nodes];
+    output = new int[nodes][];
+    build(trie);
+  }
+
+  public int getCategoryCount() {
+    return categories;
+  }
+
+  /**
+   * Counts keyword occurrences per category.
+   */
+  public int[] countMatches(CharSequence text) {
+    Scanner scanner = newScanner();
+    scanner.feed(text);
+    return scanner.getCounts();
+  }
+
+  public Scanner newScanner() {
+    return new Scanner();
+  }
+
+  /**
+   * Incremental matching state, text can be fed in chunks. Not thread safe.
+   */
+  public class Scanner {
+    private final int[] counts = new int[categories];
+    // end position (exclusive) of the last counted occurrence per pattern
+    private final long[] lastEnd = new long[patternCategory.length];
+    private int state = 0;
+    private long position = 0;
+
+    public void feed(CharSequence text) {
+      for (int i = 0, len = text.length(); i < len; i++) {
+        feed(text.charAt(i));
+      }
+    }
+
+    public void feed(char[] buf, int off, int len) {
+      for (int i = off, end = off + len; i < end; i++) {
+        feed(buf[i]);
+      }
+    }
+
+    public void feed(char ch) {
+      position++;
+      state = step(state, ch);
+      int[] out = output[state];
+      for (int i = 0; i < out.length; i++) {
+        int p = out[i];
+        if (position - patternLength[p] >= lastEnd[p]) {
+          lastEnd[p] = position;
+          counts[patternCategory[p]]++;
+        }
+      }
+    }
+
+    public int[] getCounts() {
+      return counts;
+    }
+
+    public void reset() {
+      Arrays.fill(counts, 0);
+      Arrays.fill(lastEnd, 0);
+      state = 0;
+      position = 0;
+    }
+  }
+
+  private int step(int state, char ch) {
+    char c = lowerCase(ch);
+    if (c < ASCII) {
+      return asciiDelta[state][c];
+    }
+    int s = state;
+    while (true) {
+      int next = otherTarget(s, c);
+      if (next >= 0) {
+        return next;
+      }
+      if (s == 0) {
+        return 0;
+      }
+      s = failure[s];
+    }
+  }
+
+  private int otherTarget(int state, char c) {
+    char[] chars = otherChars[state];
+    int idx = Arrays.binarySearch(chars, c);
+    return idx >= 0 ? otherTargets[state][idx] : -1;
+  }
+
+  private static char lowerCase(char ch) {
+    if (ch < ASCII) {
+      return ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch;
+    }
+    return Character.toLowerCase(ch);
+  }
+
+  private void build(Trie trie) {
+    int nodes = trie.size();
+    for (int n = 0; n < nodes; n++) {
+      int[] children = trie.children.get(n);
+      char[] chars = trie.chars.get(n);
+      int others = 0;
+      for (char c : chars) {
+        if (c >= ASCII) {
+          others++;
+        }
+      }
+      // trie children are kept sorted, so non-ascii ones are the tail of the array
+      otherChars[n] = Arrays.copyOfRange(chars, chars.length - others, chars.length);
+      otherTargets[n] = Arrays.copyOfRange(children, chars.length - others, chars.length);
+    }
+
+    // breadth first, so failure links of shallower nodes are ready
+    int[] queue = new int[nodes];
+    int head = 0;
+    int tail = 0;
+
+    asciiDelta[0] = new int[ASCII];
+    output[0] = NO_OUTPUT;
+    failure[0] = 0;
+    char[] rootChars = trie.chars.get(0);
+    int[] rootChildren = trie.children.get(0);
+    for (int i = 0; i < rootChars.length; i++) {
+      if (rootChars[i] < ASCII) {
+        asciiDelta[0][rootChars[i]] = rootChildren[i];
+      }
+      failure[rootChildren[i]] = 0;
+      queue[tail++] = rootChildren[i];
+    }
+
+    while (head < tail) {
+      int n = queue[head++];
+      int f = failure[n];
+
+      int[] own = trie.outputs.get(n);
+      int[] inherited = output[f];
+      int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+      System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+      output[n] = merged.length == 0 ? NO_OUTPUT : merged;
+
+      asciiDelta[n] = Arrays.copyOf(asciiDelta[f], ASCII);
+      char[] chars = trie.chars.get(n);
+      int[] children = trie.children.get(n);
+      for (int i = 0; i < chars.length; i++) {
+        int child = children[i];
+        failure[child] = step(f, chars[i]);
+        if (chars[i] < ASCII) {
+          asciiDelta[n][chars[i]] = child;
+        }
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /**
+   * Plain trie used while building the automaton.
+   */
+  private static class Trie {
+    private final List<char[]> chars = new ArrayList<char[]>();
+    private final List<int[]> children = new ArrayList<int[]>();
+    private final List<int[]> outputs = new ArrayList<int[]>();
+
+    Trie() {
+      newNode();
+    }
+
+    int size() {
+      return chars.size();
+    }
+
+    void add(String keyword, int pattern) {
+      int node = 0;
+      for (int i = 0; i < keyword.length(); i++) {
+        char c = lowerCase(keyword.charAt(i));
+        char[] nodeChars = chars.get(node);
+        int idx = Arrays.binarySearch(nodeChars, c);
+        if (idx >= 0) {
+          node = children.get(node)[idx];
+        } else {
+          int child = newNode();
+          int insertAt = -idx - 1;
+          chars.set(node, insert(nodeChars, insertAt, c));
+          children.set(node, insert(children.get(node), insertAt, child));
+          node = child;
+        }
+      }
+      int[] out = outputs.get(node);
+      out = Arrays.copyOf(out, out.length + 1);
+      out[out.length - 1] = pattern;
+      outputs.set(node, out);
+    }
+
+    private int newNode() {
+      chars.add(new char[0]);
+      children.add(new int[0]);
+      outputs.add(NO_OUTPUT);
+      return chars.size() - 1;
+    }
+
+    private static char[] insert(char[] array, int at, char value) {
+      char[] result = new char[array.length + 1];
+      System.arraycopy(array, 0, result, 0, at);
+      result[at] = value;
+      System.arraycopy(array, at, result, at + 1, array.length - at);
+      return result;
+    }
+
+    private static int[] insert(int[] array, int at, int value) {
+      int[] result = new int[array.length + 1];
+      System.arraycopy(array, 0, result, 0, at);
+      result[at] = value;
+      System.arraycopy(array, at, result, at + 1, array.length - at);
+      return result;
+    }
+  }
+}
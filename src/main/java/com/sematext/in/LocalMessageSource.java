@@ -0,0 +1,267 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Reads messages from local files instead of an IMAP server, e.g. a Google Takeout export. Subclasses find folders
+ * and read messages of one folder, this class applies include/exclude and from-date filters and numbers messages of a
+ * folder from 1, the number is used as UID. Messages are parsed lazily by JavaMail, content is kept as raw bytes until
+ * it's read.
+ */
+public abstract class LocalMessageSource implements MessageSource {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalMessageSource.class);
+
+  protected final Path root;
+  protected final Session session = Session.getInstance(new Properties());
+  private final FolderFilter filter;
+  private final Date fromDate;
+  protected Metrics metrics = new Metrics();
+
+  private List<String> folders;
+  private int nextFolder;
+  // folder being read and folder of the last message returned by next()
+  private String current;
+  private String folder;
+  private int messageNumber;
+  private MimeMessage next;
+
+  /**
+   * Message with the received date taken from the file, falls back to the Date header.
+   */
+  static class LocalMessage extends MimeMessage {
+    private final Date receivedDate;
+
+    LocalMessage(Session session, InputStream is, int number, Date receivedDate) throws MessagingException {
+      super(session, is);
+      this.receivedDate = receivedDate;
+      setMessageNumber(number);
+    }
+
+    @Override
+    public Date getReceivedDate() throws MessagingException {
+      return receivedDate != null ? receivedDate : getSentDate();
+    }
+  }
+
+  protected LocalMessageSource(Path root, String[] includes, String[] excludes, Date fromDate) {
+    this.root = root;
+    this.filter = new FolderFilter(includes, excludes);
+    this.fromDate = fromDate;
+  }
+
+  /**
+   * Picks the reader by looking at the path: a file is read as mbox, a directory with a cur subdirectory as Maildir,
+   * a directory with .mbox files as a set of mbox folders and any other directory as a tree of .eml files.
+   */
+  public static LocalMessageSource open(File path, String[] includes, String[] excludes, Date fromDate)
+      throws IOException {
+    Path root = path.toPath();
+    if (Files.isRegularFile(root) || MboxMessageSource.hasMboxFiles(root)) {
+      return new MboxMessageSource(root, includes, excludes, fromDate);
+    } else if (Files.isDirectory(root.resolve("cur"))) {
+      return new MaildirMessageSource(root, includes, excludes, fromDate);
+    } else if (Files.isDirectory(root)) {
+      return new EmlMessageSource(root, includes, excludes, fromDate);
+    }
+    throw new IOException("No such file or directory: " + path);
+  }
+
+  /**
+   * Records truncated messages in metrics instead of a private instance.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns names of all folders found under root, in iteration order.
+   */
+  protected abstract List<String> findFolders() throws IOException;
+
+  protected abstract void openFolder(String folder) throws IOException;
+
+  /**
+   * Returns the next message of the open folder, null at its end.
+   */
+  protected abstract MimeMessage readMessage(int number) throws IOException, MessagingException;
+
+  protected void closeFolder() throws IOException {
+  }
+
+  protected MimeMessage newMessage(byte[] content, int number, Date receivedDate) throws MessagingException {
+    // shared stream, the content isn't copied again when the headers are parsed
+    return new LocalMessage(session, new SharedByteArrayInputStream(content), number, receivedDate);
+  }
+
+  public boolean connectToMailBox() {
+    try {
+      if (folders == null) {
+        folders = Lists.newArrayList();
+        for (String name : findFolders()) {
+          if (filter.accept(name)) {
+            folders.add(name);
+          }
+        }
+      }
+      LOG.info("Found {} folders in {}", folders.size(), root);
+      return true;
+    } catch (IOException e) {
+      LOG.error("Reading {} failed", root, e);
+      return false;
+    }
+  }
+
+  public boolean disconnectFromMailBox() {
+    close();
+    nextFolder = folders == null ? 0 : folders.size();
+    return true;
+  }
+
+  public boolean isConnected() {
+    return folders != null;
+  }
+
+  public boolean reconnectToMailBox() {
+    return true;
+  }
+
+  public boolean isRetryable() {
+    return false;
+  }
+
+  public List<String> listFolders() throws EmailFetchException {
+    return Collections.unmodifiableList(folders);
+  }
+
+  public void selectFolder(String folderName) {
+    close();
+    folders = Collections.singletonList(folderName);
+    nextFolder = 0;
+  }
+
+  public String getFolder() {
+    return folder;
+  }
+
+  public Map<String, byte[]> getPrefetchedText(Message message) {
+    return null;
+  }
+
+  public int getTextPrefetchBytes() {
+    return 0;
+  }
+
+  public long getUID(Message message) {
+    return message.getMessageNumber();
+  }
+
+  public MimeMessage getMessageByUID(long uid) {
+    return null;
+  }
+
+  /**
+   * Nothing to resume, the folder is still being read after a failed message.
+   */
+  public boolean resumeAfterUid(long lastUid) {
+    return current != null;
+  }
+
+  /**
+   * Nothing to release, messages are read into memory.
+   */
+  public void processed(MimeMessage message) {
+  }
+
+  public boolean hasNext() {
+    return readNext(true);
+  }
+
+  public boolean hasNextInFolder() {
+    return folder != null && readNext(false) && folder.equals(current);
+  }
+
+  /**
+   * Reads ahead the next message, from the next folders too if nextFolders is set. Returns false if there is none.
+   */
+  private boolean readNext(boolean nextFolders) {
+    while (next == null) {
+      try {
+        if (current == null) {
+          if (!nextFolders || folders == null || nextFolder >= folders.size()) {
+            return false;
+          }
+          current = folders.get(nextFolder++);
+          messageNumber = 0;
+          openFolder(current);
+          LOG.info("Opened folder: {}", current);
+        }
+        MimeMessage message = readMessage(++messageNumber);
+        if (message == null) {
+          close();
+        } else if (fromDate == null || message.getReceivedDate() == null
+            || !message.getReceivedDate().before(fromDate)) {
+          next = message;
+        }
+      } catch (IOException | MessagingException e) {
+        LOG.error("Reading folder {} failed", current, e);
+        close();
+      }
+    }
+    return true;
+  }
+
+  public MimeMessage next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    MimeMessage message = next;
+    next = null;
+    folder = current;
+    return message;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException("Its read only mode.");
+  }
+
+  private void close() {
+    next = null;
+    if (current != null) {
+      try {
+        closeFolder();
+      } catch (IOException e) {
+        LOG.warn("Closing folder {} failed", current, e);
+      }
+      current = null;
+    }
+  }
+}
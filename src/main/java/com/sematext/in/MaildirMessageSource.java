@@ -0,0 +1,106 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Reads a Maildir++ directory. The Maildir itself is folder INBOX, subdirectories named .Name with a cur
+ * subdirectory are folder Name. Messages in new and cur are read in file name order, which starts with the delivery
+ * time, and the received date is taken from the name too.
+ */
+public class MaildirMessageSource extends LocalMessageSource {
+  private Iterator<Path> files;
+
+  public MaildirMessageSource(Path root, String[] includes, String[] excludes, Date fromDate) {
+    super(root, includes, excludes, fromDate);
+  }
+
+  @Override
+  protected List<String> findFolders() throws IOException {
+    List<String> folders = Lists.newArrayList("INBOX");
+    List<String> children = Lists.newArrayList();
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, ".*")) {
+      for (Path dir : dirs) {
+        String name = dir.getFileName().toString();
+        if (name.length() > 1 && Files.isDirectory(dir.resolve("cur"))) {
+          children.add(name.substring(1));
+        }
+      }
+    }
+    Collections.sort(children);
+    folders.addAll(children);
+    return folders;
+  }
+
+  @Override
+  protected void openFolder(String folder) throws IOException {
+    Path dir = "INBOX".equals(folder) ? root : root.resolve("." + folder);
+    List<Path> messages = Lists.newArrayList();
+    for (String sub : new String[] { "new", "cur" }) {
+      if (!Files.isDirectory(dir.resolve(sub))) {
+        continue;
+      }
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.resolve(sub))) {
+        for (Path file : stream) {
+          if (Files.isRegularFile(file)) {
+            messages.add(file);
+          }
+        }
+      }
+    }
+    Collections.sort(messages, new Comparator<Path>() {
+      public int compare(Path a, Path b) {
+        return a.getFileName().compareTo(b.getFileName());
+      }
+    });
+    files = messages.iterator();
+  }
+
+  @Override
+  protected MimeMessage readMessage(int number) throws IOException, MessagingException {
+    if (!files.hasNext()) {
+      return null;
+    }
+    Path file = files.next();
+    return newMessage(Files.readAllBytes(file), number, deliveryTime(file.getFileName().toString()));
+  }
+
+  @Override
+  protected void closeFolder() {
+    files = null;
+  }
+
+  /**
+   * Parses the delivery time from a file name like 1454112000.M12P34.host:2,S, null if it doesn't start with one.
+   */
+  static Date deliveryTime(String name) {
+    int end = 0;
+    while (end < name.length() && Character.isDigit(name.charAt(end))) {
+      end++;
+    }
+    if (end == 0 || end > 12) {
+      return null;
+    }
+    return new Date(Long.parseLong(name.substring(0, end)) * 1000);
+  }
+}
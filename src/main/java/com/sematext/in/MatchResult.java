@@ -0,0 +1,84 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.base.Joiner;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A message which matched keywords: its categories, where and when it was received and its addresses.
+ */
+public class MatchResult {
+  private final List<String> categories;
+  private final String category;
+  private final String folder;
+  private final Date receivedDate;
+  private final String date;
+  private final List<String> from;
+  private final List<String> to;
+
+  /**
+   * @param date receivedDate formatted as yyyy-MM-dd, formatted once per message and not for every address
+   */
+  public MatchResult(String category, String folder, Date receivedDate, String date, List<String> from,
+      List<String> to) {
+    this(Collections.singletonList(category), folder, receivedDate, date, from, to);
+  }
+
+  /**
+   * @param categories matching categories, the best first
+   */
+  public MatchResult(List<String> categories, String folder, Date receivedDate, String date, List<String> from,
+      List<String> to) {
+    this.categories = categories;
+    this.category = categories.size() == 1 ? categories.get(0) : Joiner.on(',').join(categories);
+    this.folder = folder;
+    this.receivedDate = receivedDate;
+    this.date = date;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Returns the category, or comma separated categories of a multi-label result.
+   */
+  public String getCategory() {
+    return category;
+  }
+
+  public List<String> getCategories() {
+    return categories;
+  }
+
+  public String getFolder() {
+    return folder;
+  }
+
+  public Date getReceivedDate() {
+    return receivedDate;
+  }
+
+  public String getDate() {
+    return date;
+  }
+
+  public List<String> getFrom() {
+    return from;
+  }
+
+  /**
+   * TO, CC, BCC and NEWSGROUPS recipients.
+   */
+  public List<String> getTo() {
+    return to;
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Reads mbox files, e.g. a Google Takeout export. The path is a single mbox file or a directory of .mbox files, each
+ * file is a folder named by the file name without extension.
+ *
+ * Files are memory mapped in windows of up to windowSize bytes and split at "From " lines. Messages are parsed from
+ * views of the mapped window, so their content is never copied on the heap and only pages actually read are loaded
+ * from disk. A window is remapped at the start of the first message it doesn't fully contain, a message larger than
+ * a window is cut at the window end and counted in metrics.
+ *
+ * Message content is returned unchanged, ">From " quoting of body lines (mboxo and mboxrd) isn't undone: unquoting
+ * would copy every message. Quoted lines still match "From", only with a '>' in front of them.
+ */
+public class MboxMessageSource extends LocalMessageSource {
+  private static final Logger LOG = LoggerFactory.getLogger(MboxMessageSource.class);
+  private static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+  private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SEPARATOR = "\nFrom ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] NEWLINE = { '\n' };
+  private static final String EXTENSION = ".mbox";
+
+  private final int windowSize;
+  // "From sender Sat Jan 09 15:34:07 +0000 2016" (Gmail) and asctime "From sender Sat Jan  9 15:34:07 2016"
+  private final SimpleDateFormat zoneFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss Z yyyy", Locale.US);
+  private final SimpleDateFormat asctimeFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy", Locale.US);
+
+  private FileChannel channel;
+  private long size;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private long windowEnd;
+  // start of the next message
+  private long position;
+
+  public MboxMessageSource(Path root, String[] includes, String[] excludes, Date fromDate) {
+    this(root, includes, excludes, fromDate, DEFAULT_WINDOW_SIZE);
+  }
+
+  MboxMessageSource(Path root, String[] includes, String[] excludes, Date fromDate, int windowSize) {
+    super(root, includes, excludes, fromDate);
+    this.windowSize = windowSize;
+  }
+
+  static boolean hasMboxFiles(Path dir) throws IOException {
+    return Files.isDirectory(dir) && !listMboxFiles(dir).isEmpty();
+  }
+
+  private static List<Path> listMboxFiles(Path dir) throws IOException {
+    List<Path> files = Lists.newArrayList();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+      for (Path file : stream) {
+        if (Files.isRegularFile(file)) {
+          files.add(file);
+        }
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static String folderName(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+  }
+
+  @Override
+  protected List<String> findFolders() throws IOException {
+    if (Files.isRegularFile(root)) {
+      return Collections.singletonList(folderName(root));
+    }
+    List<String> folders = Lists.newArrayList();
+    for (Path file : listMboxFiles(root)) {
+      folders.add(folderName(file));
+    }
+    return folders;
+  }
+
+  @Override
+  protected void openFolder(String folder) throws IOException {
+    Path file = Files.isRegularFile(root) ? root : root.resolve(folder + EXTENSION);
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+    size = channel.size();
+    window = null;
+    windowStart = windowEnd = position = 0;
+  }
+
+  @Override
+  protected void closeFolder() throws IOException {
+    // mapped windows are unmapped when messages still using them are collected
+    window = null;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  @Override
+  protected MimeMessage readMessage(int number) throws IOException, MessagingException {
+    if (position >= size) {
+      return null;
+    }
+    long start = position;
+    Date receivedDate = null;
+    if (startsWith(start, FROM)) {
+      long lineEnd = find(NEWLINE, start);
+      receivedDate = parseDate(start + FROM.length, lineEnd);
+      start = Math.min(lineEnd + 1, size);
+    }
+    // the separator starts with the newline ending the "From " line of an empty message
+    long end = find(SEPARATOR, start - 1);
+    position = end < size ? end + 1 : size;
+
+    if (end - start > windowSize) {
+      LOG.warn("Message at offset {} is larger than {} bytes, the rest is skipped", start, windowSize);
+      metrics.messageTruncated();
+      end = start + windowSize;
+    }
+    map(start, end);
+    ByteBuffer content = window.duplicate();
+    content.position((int) (start - windowStart));
+    content.limit((int) (end - windowStart));
+    return new LocalMessage(session, new SharedByteBufferInputStream(content), number, receivedDate);
+  }
+
+  /**
+   * Makes sure the window contains bytes from start to end, mapping a new window at start if needed.
+   */
+  private void map(long start, long end) throws IOException {
+    if (window != null && start >= windowStart && end <= windowEnd) {
+      return;
+    }
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+    windowStart = start;
+    windowEnd = start + window.limit();
+  }
+
+  private boolean startsWith(long from, byte[] pattern) throws IOException {
+    if (from + pattern.length > size) {
+      return false;
+    }
+    map(from, from + pattern.length);
+    int offset = (int) (from - windowStart);
+    for (int i = 0; i < pattern.length; i++) {
+      if (window.get(offset + i) != pattern[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns position of the first occurrence of the pattern at or after from, size if there's none. Windows are
+   * moved forward as needed, overlapping so that a pattern crossing a window end is found.
+   */
+  private long find(byte[] pattern, long from) throws IOException {
+    from = Math.max(from, 0);
+    byte first = pattern[0];
+    while (from + pattern.length <= size) {
+      map(from, Math.min(from + pattern.length, size));
+      int i = (int) (from - windowStart);
+      int last = window.limit() - pattern.length;
+      for (; i <= last; i++) {
+        if (window.get(i) != first) {
+          continue;
+        }
+        int j = 1;
+        while (j < pattern.length && window.get(i + j) == pattern[j]) {
+          j++;
+        }
+        if (j == pattern.length) {
+          return windowStart + i;
+        }
+      }
+      if (windowEnd >= size) {
+        break;
+      }
+      from = windowEnd - pattern.length + 1;
+    }
+    return size;
+  }
+
+  private Date parseDate(long from, long to) throws IOException {
+    int length = (int) Math.min(to - from, 200);
+    if (length <= 0) {
+      return null;
+    }
+    map(from, from + length);
+    byte[] line = new byte[length];
+    ByteBuffer view = window.duplicate();
+    view.position((int) (from - windowStart));
+    view.get(line);
+    String text = new String(line, StandardCharsets.US_ASCII).trim();
+    // skip the envelope sender
+    int space = text.indexOf(' ');
+    if (space < 0) {
+      return null;
+    }
+    text = text.substring(space + 1).trim().replaceAll("\\s+", " ");
+    try {
+      return zoneFormat.parse(text);
+    } catch (java.text.ParseException e) {
+      try {
+        return asctimeFormat.parse(text);
+      } catch (java.text.ParseException e2) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Iterates over messages of all (included) folders of a mailbox, folder by folder. Implemented by {@link IMapFetcher}
+ * for IMAP servers and by {@link LocalMessageSource} subclasses for mbox files, Maildirs and directories of .eml
+ * files.
+ */
+public interface MessageSource extends Iterator<MimeMessage> {
+  boolean connectToMailBox();
+
+  boolean disconnectFromMailBox();
+
+  boolean isConnected();
+
+  boolean reconnectToMailBox();
+
+  /**
+   * Returns names of folders which hold messages and pass include/exclude filters, in iteration order.
+   */
+  List<String> listFolders() throws EmailFetchException;
+
+  /**
+   * Restricts iteration to a single folder.
+   */
+  void selectFolder(String folderName);
+
+  /**
+   * Returns true if the folder of the last message returned by {@link #next()} has more messages. When it returns
+   * false the next {@link #hasNext()} moves to the next folder and closes this one.
+   */
+  boolean hasNextInFolder();
+
+  /**
+   * Returns name of the folder of the last message returned by {@link #next()}.
+   */
+  String getFolder();
+
+  /**
+   * Returns starts of text parts (section id -> transfer encoded bytes) fetched together with the message, or null.
+   */
+  Map<String, byte[]> getPrefetchedText(Message message);
+
+  int getTextPrefetchBytes();
+
+  /**
+   * Returns id of the message within its folder, ids grow in iteration order.
+   */
+  long getUID(Message message) throws MessagingException;
+
+  /**
+   * Returns message with the id from the current folder, null if it can't be read again.
+   */
+  MimeMessage getMessageByUID(long uid) throws MessagingException;
+
+  /**
+   * Continues the current folder after the message with given id.
+   */
+  boolean resumeAfterUid(long lastUid);
+
+  /**
+   * Tells the source that processing of a message returned by {@link #next()} ended, its result was written or the
+   * message was given up. May be called from any thread.
+   */
+  void processed(MimeMessage message);
+
+  /**
+   * Returns true if a message which failed may be read successfully after reconnecting. Errors reading local files
+   * are permanent, so those messages are skipped without backoff.
+   */
+  boolean isRetryable();
+}
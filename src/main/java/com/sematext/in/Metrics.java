@@ -0,0 +1,299 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a run: folder open, batch fetch, content retrieval (reading and decoding text,
+ * without the time spent matching it), matching and output, plus messages, matches, skipped duplicates, text bytes
+ * fetched, restarts and truncated messages, the first four also per folder. Exposed through JMX, logged as a summary
+ * line every summary interval and written as a JSON report at the end. Thread safe.
+ */
+public class Metrics implements MetricsMXBean {
+  private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+  private static final String OBJECT_NAME = "com.sematext.in:type=Metrics";
+
+  public static final String FOLDER_OPEN = "folder_open";
+  public static final String BATCH_FETCH = "batch_fetch";
+  public static final String CONTENT = "content";
+  public static final String MATCH = "match";
+  public static final String OUTPUT = "output";
+  private static final String[] STEPS = { FOLDER_OPEN, BATCH_FETCH, CONTENT, MATCH, OUTPUT };
+
+  private final Map<String, LatencyHistogram> latencies;
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong matches = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong restarts = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong truncated = new AtomicLong();
+  private final ConcurrentMap<String, FolderStats> folders = new ConcurrentSkipListMap<String, FolderStats>();
+  private final long startNanos = System.nanoTime();
+
+  private ScheduledExecutorService summary;
+  private ObjectName objectName;
+
+  static class FolderStats {
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final long firstNanos = System.nanoTime();
+    private volatile long lastNanos = firstNanos;
+
+    double getMessagesPerSecond() {
+      return perSecond(messages.get(), lastNanos - firstNanos);
+    }
+  }
+
+  public Metrics() {
+    Map<String, LatencyHistogram> map = Maps.newLinkedHashMap();
+    for (String step : STEPS) {
+      map.put(step, new LatencyHistogram());
+    }
+    latencies = Collections.unmodifiableMap(map);
+  }
+
+  public LatencyHistogram latency(String step) {
+    return latencies.get(step);
+  }
+
+  /**
+   * Records a processed message, bytes is the text fetched for it outside of the batch.
+   */
+  public void messageProcessed(String folder, boolean matched, long fetchedBytes) {
+    messages.incrementAndGet();
+    bytes.addAndGet(fetchedBytes);
+    FolderStats stats = folderStats(folder);
+    stats.messages.incrementAndGet();
+    stats.bytes.addAndGet(fetchedBytes);
+    stats.lastNanos = System.nanoTime();
+    if (matched) {
+      matches.incrementAndGet();
+      stats.matches.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records text prefetched with a batch.
+   */
+  public void bytesFetched(String folder, long fetchedBytes) {
+    bytes.addAndGet(fetchedBytes);
+    folderStats(folder).bytes.addAndGet(fetchedBytes);
+  }
+
+  /**
+   * Records messages skipped because another folder already returned them.
+   */
+  public void duplicatesSkipped(String folder, int count) {
+    duplicates.addAndGet(count);
+    folderStats(folder).duplicates.addAndGet(count);
+  }
+
+  public void restarted() {
+    restarts.incrementAndGet();
+  }
+
+  /**
+   * Records a message which was cut off because it's larger than the source can read at once.
+   */
+  public void messageTruncated() {
+    truncated.incrementAndGet();
+  }
+
+  private FolderStats folderStats(String folder) {
+    String name = folder == null ? "" : folder;
+    FolderStats stats = folders.get(name);
+    if (stats == null) {
+      FolderStats created = new FolderStats();
+      stats = folders.putIfAbsent(name, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Registers the MBean and logs a summary line every interval seconds (never if not positive).
+   */
+  public void start(long intervalSeconds) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+        objectName = name;
+      }
+    } catch (JMException e) {
+      LOG.warn("Registering metrics MBean failed", e);
+    }
+    if (intervalSeconds > 0) {
+      summary = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "metrics");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      summary.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          LOG.info(getSummary());
+        }
+      }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  public void stop() {
+    if (summary != null) {
+      summary.shutdownNow();
+      summary = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOG.debug("Unregistering metrics MBean failed", e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * One line with totals and p50/p99 per step, e.g. for the log.
+   */
+  public String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "Metrics: %d messages (%.1f/s), %d matches, %d duplicates, %.1f MB fetched, "
+        + "%d restarts, %d truncated", messages.get(), getMessagesPerSecond(), matches.get(), duplicates.get(),
+        bytes.get() / 1048576.0, restarts.get(), truncated.get()));
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      if (histogram.getCount() > 0) {
+        sb.append(String.format(Locale.ROOT, ", %s p50 %.2f p99 %.2f ms", entry.getKey(),
+            histogram.getPercentileMillis(50), histogram.getPercentileMillis(99)));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes all metrics as a JSON object.
+   */
+  public void writeReport(Writer out) throws IOException {
+    out.write(String.format(Locale.ROOT, "{\"elapsed_s\":%.3f,\"messages\":%d,\"matches\":%d,\"duplicates\":%d,"
+        + "\"bytes_fetched\":%d,\"restarts\":%d,\"truncated\":%d,\"messages_per_s\":%.2f,\"latency_ms\":{",
+        (System.nanoTime() - startNanos) / 1e9, messages.get(), matches.get(), duplicates.get(), bytes.get(),
+        restarts.get(), truncated.get(), getMessagesPerSecond()));
+    boolean first = true;
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram h = entry.getValue();
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      JsonlResultSink.writeString(out, entry.getKey());
+      out.write(String.format(Locale.ROOT, ":{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,"
+          + "\"p999\":%.3f,\"max\":%.3f}", h.getCount(), h.getMeanMillis(), h.getPercentileMillis(50),
+          h.getPercentileMillis(90), h.getPercentileMillis(99), h.getPercentileMillis(99.9), h.getMaxNanos() / 1e6));
+    }
+    out.write("},\"folders\":{");
+    first = true;
+    for (Map.Entry<String, FolderStats> entry : folders.entrySet()) {
+      FolderStats stats = entry.getValue();
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      JsonlResultSink.writeString(out, entry.getKey());
+      out.write(String.format(Locale.ROOT, ":{\"messages\":%d,\"matches\":%d,\"duplicates\":%d,"
+          + "\"bytes_fetched\":%d,\"messages_per_s\":%.2f}", stats.messages.get(), stats.matches.get(),
+          stats.duplicates.get(), stats.bytes.get(), stats.getMessagesPerSecond()));
+    }
+    out.write("}}\n");
+  }
+
+  public long getMessages() {
+    return messages.get();
+  }
+
+  public long getMatches() {
+    return matches.get();
+  }
+
+  public long getBytesFetched() {
+    return bytes.get();
+  }
+
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  public long getRestarts() {
+    return restarts.get();
+  }
+
+  public long getTruncated() {
+    return truncated.get();
+  }
+
+  public double getMessagesPerSecond() {
+    return perSecond(messages.get(), System.nanoTime() - startNanos);
+  }
+
+  public Map<String, Double> getLatencyP50Millis() {
+    return percentiles(50);
+  }
+
+  public Map<String, Double> getLatencyP99Millis() {
+    return percentiles(99);
+  }
+
+  private Map<String, Double> percentiles(double percentile) {
+    Map<String, Double> result = Maps.newLinkedHashMap();
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().getPercentileMillis(percentile));
+    }
+    return result;
+  }
+
+  public Map<String, Long> getFolderMessages() {
+    Map<String, Long> result = Maps.newLinkedHashMap();
+    for (Map.Entry<String, FolderStats> entry : folders.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().messages.get());
+    }
+    return result;
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return nanos <= 0 ? 0 : count * 1e9 / nanos;
+  }
+}
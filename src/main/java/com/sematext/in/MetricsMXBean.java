@@ -0,0 +1,42 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.util.Map;
+
+/**
+ * Run metrics exposed through JMX as com.sematext.in:type=Metrics.
+ */
+public interface MetricsMXBean {
+  long getMessages();
+
+  long getMatches();
+
+  long getBytesFetched();
+
+  long getDuplicates();
+
+  long getRestarts();
+
+  /**
+   * Messages cut off at the mbox window size.
+   */
+  long getTruncated();
+
+  double getMessagesPerSecond();
+
+  /**
+   * Median latency of each step in milliseconds.
+   */
+  Map<String, Double> getLatencyP50Millis();
+
+  Map<String, Double> getLatencyP99Millis();
+
+  Map<String, Long> getFolderMessages();
+}
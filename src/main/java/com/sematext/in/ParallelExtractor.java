@@ -0,0 +1,227 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes folders in parallel using a bounded pool of IMAP connections. Every worker owns one connected
+ * {@link MessageSource} and takes folders from a shared queue until the queue is exhausted.
+ *
+ * Ordered output keeps the folder order of a serial run: results of the first unfinished folder go straight to the
+ * output, those of the folders after it are buffered until it's their turn. At most maxBuffered results are kept,
+ * workers on later folders wait beyond that, so a large folder near the front bounds memory instead of growing it.
+ */
+class ParallelExtractor {
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelExtractor.class);
+
+  private final EmailExtractor extractor;
+  private final int parallelism;
+  private final boolean ordered;
+  private final int maxBuffered;
+
+  private final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+  private List<String> folders;
+
+  private ResultSink sink;
+  // ordered output: buffers of started folders, the one at nextToEmit writes to the sink
+  private ResultBuffer[] buffers;
+  private int nextToEmit = 0;
+  private int buffered;
+
+  /**
+   * @param maxBuffered results kept for later folders with ordered output
+   */
+  public ParallelExtractor(EmailExtractor extractor, int parallelism, boolean ordered, int maxBuffered) {
+    this.extractor = extractor;
+    this.parallelism = parallelism;
+    this.ordered = ordered;
+    this.maxBuffered = Math.max(1, maxBuffered);
+  }
+
+  public void run(List<String> folders, ResultSink sink) {
+    this.folders = folders;
+    this.sink = sink;
+    this.buffers = new ResultBuffer[folders.size()];
+    for (int i = 0; i < folders.size(); i++) {
+      queue.add(i);
+    }
+
+    int workers = Math.min(parallelism, folders.size());
+    LOG.info("Processing {} folders with {} connections", folders.size(), workers);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(workers, 1));
+    for (int i = 0; i < workers; i++) {
+      executor.execute(new Worker());
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.debug("Waiting for workers, {} folders left in queue", queue.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+
+    if (!queue.isEmpty()) {
+      LOG.warn("{} folders were not processed, no worker could connect", queue.size());
+    }
+    // emit what's left after an interrupt
+    synchronized (this) {
+      for (int i = nextToEmit; i < buffers.length; i++) {
+        if (buffers[i] != null) {
+          emit(buffers[i]);
+        }
+      }
+    }
+  }
+
+  private synchronized ResultBuffer folderStarted(int index) {
+    ResultBuffer buffer = new ResultBuffer(folders.get(index));
+    buffers[index] = buffer;
+    // the checkpoint waits until buffered results are written
+    if (index != nextToEmit && extractor.getCheckpointStore() != null) {
+      extractor.getCheckpointStore().hold(buffer.folder);
+    }
+    return buffer;
+  }
+
+  /**
+   * Marks the folder finished, also after its worker failed, so later folders aren't stuck behind it.
+   */
+  private synchronized void folderDone(ResultBuffer buffer) {
+    buffer.done = true;
+    while (nextToEmit < buffers.length && buffers[nextToEmit] != null) {
+      ResultBuffer head = buffers[nextToEmit];
+      // the new first folder writes what it has and goes on without the buffer
+      emit(head);
+      if (!head.done) {
+        break;
+      }
+      buffers[nextToEmit] = null;
+      nextToEmit++;
+    }
+    notifyAll();
+  }
+
+  private synchronized void write(ResultBuffer buffer, MatchResult result) throws IOException {
+    while (!isHead(buffer) && buffered >= maxBuffered && !Thread.currentThread().isInterrupted()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (isHead(buffer)) {
+      sink.write(result);
+    } else {
+      buffer.results.add(result);
+      buffered++;
+    }
+  }
+
+  private boolean isHead(ResultBuffer buffer) {
+    return nextToEmit < buffers.length && buffers[nextToEmit] == buffer;
+  }
+
+  /**
+   * Writes buffered results of a folder, its checkpoint is stored after them.
+   */
+  private void emit(ResultBuffer buffer) {
+    try {
+      for (MatchResult result : buffer.results) {
+        sink.write(result);
+      }
+    } catch (IOException e) {
+      LOG.error("Writing output failed", e);
+    }
+    buffered -= buffer.results.size();
+    buffer.results.clear();
+    CheckpointStore checkpoints = extractor.getCheckpointStore();
+    if (checkpoints != null) {
+      try {
+        checkpoints.release(buffer.folder);
+      } catch (IOException e) {
+        LOG.warn("Storing checkpoint of {} failed", buffer.folder, e);
+      }
+    }
+  }
+
+  /**
+   * Output of one folder with ordered output, see {@link ParallelExtractor}.
+   */
+  class ResultBuffer implements ResultSink {
+    private final String folder;
+    private final List<MatchResult> results = Lists.newArrayList();
+    private boolean done;
+
+    ResultBuffer(String folder) {
+      this.folder = folder;
+    }
+
+    public void write(MatchResult result) throws IOException {
+      ParallelExtractor.this.write(this, result);
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+  }
+
+  class Worker implements Runnable {
+    public void run() {
+      MessageSource fetcher;
+      try {
+        fetcher = extractor.newSource();
+      } catch (IOException e) {
+        LOG.error("Worker can't open message source", e);
+        return;
+      }
+      if (!fetcher.connectToMailBox()) {
+        LOG.error("Worker can't connect to mailbox");
+        return;
+      }
+
+      try {
+        Integer index;
+        while ((index = queue.poll()) != null) {
+          String folder = folders.get(index);
+          fetcher.selectFolder(folder);
+          if (ordered) {
+            ResultBuffer buffer = folderStarted(index);
+            try {
+              extractor.extract(fetcher, buffer);
+            } finally {
+              folderDone(buffer);
+            }
+          } else {
+            extractor.extract(fetcher, sink);
+          }
+          LOG.info("Finished folder {}", folder);
+        }
+      } catch (RuntimeException e) {
+        LOG.error("Worker failed", e);
+      } finally {
+        fetcher.disconnectFromMailBox();
+      }
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Lists;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * Streams text parts of a message into a {@link KeywordMatcher.Scanner}. Text is read through
+ * {@link Part#getInputStream()} and decoded in fixed size chunks, non-text parts are never downloaded and at most
+ * maxBytes (after transfer decoding) are read per message, so memory used per message doesn't depend on its size.
+ *
+ * Parts are visited like {@link IMapFetcher#getPartContent(Part, StringBuilder)}, except that text/html is reduced to
+ * its visible text by {@link HtmlTextFilter} and of a multipart/alternative the text/plain part is read when there's
+ * one. Not thread safe, buffers are reused between messages.
+ */
+public class PartContentReader {
+  private static final Logger LOG = LoggerFactory.getLogger(PartContentReader.class);
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final int maxBytes;
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final HtmlTextFilter html = new HtmlTextFilter();
+  // the current part is html, decoded text goes through the filter
+  private boolean filtering;
+  private int remaining;
+  private Map<String, byte[]> prefetched;
+  private int prefetchLimit;
+  private long streamedBytes;
+  private long matchNanos;
+  // text fed to the scanner, kept for the content cache, null when not kept
+  private StringBuilder capture;
+
+  public PartContentReader(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Feeds text of the part to the scanner, parts are separated by a space.
+   */
+  public void read(Part part, KeywordMatcher.Scanner scanner) throws MessagingException, IOException {
+    read(part, null, 0, scanner);
+  }
+
+  /**
+   * Like {@link #read(Part, KeywordMatcher.Scanner)}, but text parts found in prefetched (IMAP section id -> raw part
+   * body) are decoded from there when they are complete (shorter than prefetchLimit), so they aren't fetched again.
+   */
+  public void read(Part message, Map<String, byte[]> prefetched, int prefetchLimit, KeywordMatcher.Scanner scanner)
+      throws MessagingException, IOException {
+    this.remaining = maxBytes;
+    this.prefetched = prefetched;
+    this.prefetchLimit = prefetchLimit;
+    this.streamedBytes = 0;
+    this.matchNanos = 0;
+    if (capture != null) {
+      capture.setLength(0);
+    }
+    readPart(message, topSection(message), scanner);
+  }
+
+  /**
+   * Returns IMAP section ids of the text parts {@link #read} visits, so they can be fetched for a whole batch at
+   * once. Parts of nested messages are left out and are streamed. For IMAP messages only BODYSTRUCTURE is used.
+   */
+  public static List<String> getTextSections(Part message) throws MessagingException, IOException {
+    List<String> sections = Lists.newArrayList();
+    collectTextSections(message, topSection(message), sections);
+    return sections;
+  }
+
+  private static String topSection(Part message) throws MessagingException {
+    // body of a single part message is TEXT, parts of a multipart are numbered from 1
+    return message.isMimeType("multipart/*") ? "" : "TEXT";
+  }
+
+  private static String childSection(String section, int index) {
+    return section.isEmpty() ? String.valueOf(index + 1) : section + "." + (index + 1);
+  }
+
+  private static void collectTextSections(Part part, String section, List<String> sections)
+      throws MessagingException, IOException {
+    if (part.isMimeType("text/*")) {
+      sections.add(section);
+    } else if (part.isMimeType("multipart/*")) {
+      Multipart mp = (Multipart) part.getContent();
+      if (part.isMimeType("multipart/alternative")) {
+        int i = preferredAlternative(mp);
+        if (i >= 0) {
+          collectTextSections(mp.getBodyPart(i), childSection(section, i), sections);
+        }
+        return;
+      }
+      for (int i = 0; i < mp.getCount(); i++) {
+        collectTextSections(mp.getBodyPart(i), childSection(section, i), sections);
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the first text/plain alternative, otherwise of the first one, -1 if there are none.
+   */
+  private static int preferredAlternative(Multipart mp) throws MessagingException {
+    for (int i = 0; i < mp.getCount(); i++) {
+      if (mp.getBodyPart(i).isMimeType("text/plain")) {
+        return i;
+      }
+    }
+    return mp.getCount() > 0 ? 0 : -1;
+  }
+
+  /**
+   * Returns true if the byte limit cut off the last message.
+   */
+  public boolean isTruncated() {
+    return remaining <= 0;
+  }
+
+  /**
+   * Returns bytes of the last message read through {@link Part#getInputStream()}, i.e. not taken from prefetched
+   * sections. For IMAP messages that's content fetched from the server one part at a time.
+   */
+  public long getStreamedBytes() {
+    return streamedBytes;
+  }
+
+  /**
+   * Keeps the text of following messages, see {@link #getText()}.
+   */
+  public void setCapture(boolean capture) {
+    this.capture = capture ? new StringBuilder() : null;
+  }
+
+  /**
+   * Returns the text of the last message as fed to the scanner, when capture is on.
+   */
+  public String getText() {
+    return capture == null ? null : capture.toString();
+  }
+
+  /**
+   * Returns the time spent in the scanner for the last message.
+   */
+  public long getMatchNanos() {
+    return matchNanos;
+  }
+
+  /**
+   * @param section IMAP section id of the part, null inside nested messages
+   */
+  private void readPart(Part part, String section, KeywordMatcher.Scanner scanner)
+      throws MessagingException, IOException {
+    if (remaining <= 0) {
+      return;
+    }
+    if (part.isMimeType("text/*")) {
+      byte[] raw = section == null || prefetched == null ? null : prefetched.get(section);
+      if (raw != null && raw.length < prefetchLimit && part instanceof MimePart) {
+        String encoding = ((MimePart) part).getEncoding();
+        InputStream is = new ByteArrayInputStream(raw);
+        readText(part, encoding == null ? is : MimeUtility.decode(is, encoding), false, scanner);
+      } else {
+        readText(part, part.getInputStream(), true, scanner);
+      }
+    } else if (part.isMimeType("multipart/*")) {
+      // for IMAP messages the multipart is built from BODYSTRUCTURE, no content is fetched here
+      Multipart mp = (Multipart) part.getContent();
+      if (part.isMimeType("multipart/alternative")) {
+        int i = preferredAlternative(mp);
+        if (i >= 0) {
+          readPart(mp.getBodyPart(i), section == null ? null : childSection(section, i), scanner);
+        }
+        return;
+      }
+
+      for (int i = 0; i < mp.getCount(); i++) {
+        readPart(mp.getBodyPart(i), section == null ? null : childSection(section, i), scanner);
+      }
+    } else if (part.isMimeType("message/rfc822")) {
+      readPart((Part) part.getContent(), null, scanner);
+    }
+  }
+
+  private void readText(Part part, InputStream is, boolean streamed, KeywordMatcher.Scanner scanner)
+      throws MessagingException, IOException {
+    CharsetDecoder decoder = getCharset(part).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    bytes.clear();
+    chars.clear();
+    filtering = part.isMimeType("text/html");
+    if (filtering) {
+      html.reset();
+    }
+
+    try {
+      while (remaining > 0) {
+        int n = is.read(bytes.array(), bytes.position(), Math.min(bytes.remaining(), remaining));
+        if (n < 0) {
+          break;
+        }
+        remaining -= n;
+        if (streamed) {
+          streamedBytes += n;
+        }
+        bytes.position(bytes.position() + n);
+        bytes.flip();
+        decode(decoder, false, scanner);
+        bytes.compact();
+      }
+      bytes.flip();
+      decode(decoder, true, scanner);
+      decoder.flush(chars);
+      drain(scanner);
+      if (filtering) {
+        feed(html.getOutput(), html.finish(), scanner);
+      }
+    } finally {
+      // stops fetching the rest of a truncated part
+      is.close();
+    }
+    scanner.feed(' ');
+    if (capture != null) {
+      capture.append(' ');
+    }
+  }
+
+  private void decode(CharsetDecoder decoder, boolean endOfInput, KeywordMatcher.Scanner scanner) {
+    CoderResult result;
+    do {
+      result = decoder.decode(bytes, chars, endOfInput);
+      drain(scanner);
+    } while (result.isOverflow());
+  }
+
+  private void drain(KeywordMatcher.Scanner scanner) {
+    chars.flip();
+    if (filtering) {
+      int length = html.filter(chars.array(), 0, chars.limit());
+      feed(html.getOutput(), length, scanner);
+    } else {
+      feed(chars.array(), chars.limit(), scanner);
+    }
+    chars.clear();
+  }
+
+  private void feed(char[] text, int length, KeywordMatcher.Scanner scanner) {
+    if (capture != null) {
+      capture.append(text, 0, length);
+    }
+    long start = System.nanoTime();
+    scanner.feed(text, 0, length);
+    matchNanos += System.nanoTime() - start;
+  }
+
+  private static Charset getCharset(Part part) throws MessagingException {
+    String charset = null;
+    try {
+      charset = new ContentType(part.getContentType()).getParameter("charset");
+      if (charset != null) {
+        return Charset.forName(MimeUtility.javaCharset(charset));
+      }
+    } catch (ParseException | IllegalCharsetNameException | UnsupportedCharsetException e) {
+      LOG.debug("Unsupported charset {}, using us-ascii", charset);
+    }
+    return StandardCharsets.US_ASCII;
+  }
+}
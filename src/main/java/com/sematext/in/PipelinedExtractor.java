@@ -0,0 +1,360 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Runs extraction as three stages connected by bounded queues: the calling thread fetches messages (and their next
+ * batches), a pool of workers decodes and matches them and a single writer passes results to the sink. Full queues
+ * block the previous stage, so memory stays bounded when a stage falls behind.
+ *
+ * Messages which fail in a worker are handed back to the fetching thread, which owns the connection, reconnects if
+ * needed and resubmits them up to the configured number of restarts. Before moving to the next folder, which closes
+ * the current one, the fetching thread waits until workers are done with the messages of the current folder. The
+ * fetcher is told a message was processed only after its result was written. Until then it keeps the batch.
+ *
+ * Workers share the IMAP connection, so content which wasn't prefetched with the batch (see
+ * fetch.text_prefetch_bytes) is still read one message at a time.
+ */
+class PipelinedExtractor {
+  private static final Logger LOG = LoggerFactory.getLogger(PipelinedExtractor.class);
+  private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+  private static final Work POISON = new Work(null, null, null, -1, null, 0);
+
+  private final EmailExtractor extractor;
+  private final int threads;
+  private final BlockingQueue<Work> work;
+  private final BlockingQueue<Work> results;
+  private final BlockingQueue<Work> failed = new LinkedBlockingQueue<Work>();
+  // submitted messages which were neither processed (and their result written) nor given up
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final Stage fetchStage = new Stage("fetch", 1);
+  private final Stage matchStage;
+  private final Stage outputStage = new Stage("output", 1);
+
+  private MessageSource fetcher;
+  private int prefetchLimit;
+  // folder and UID of the last message given to workers, failed batch fetches restarted in the folder
+  private String submittedFolder;
+  private long lastSubmittedUid = -1;
+  private int fetchRestarts;
+
+  static class Work {
+    private final MimeMessage mail;
+    // message returned by the fetcher, told processed when done, a retry fetches mail again
+    private final MimeMessage source;
+    private final String folder;
+    private final long uid;
+    private final Map<String, byte[]> prefetched;
+    private final int attempt;
+    private MatchResult result;
+
+    Work(MimeMessage mail, MimeMessage source, String folder, long uid, Map<String, byte[]> prefetched,
+        int attempt) {
+      this.mail = mail;
+      this.source = source;
+      this.folder = folder;
+      this.uid = uid;
+      this.prefetched = prefetched;
+      this.attempt = attempt;
+    }
+  }
+
+  /**
+   * Throughput of one stage, busy time is time spent working, blocked time is time waiting for the next stage.
+   */
+  static class Stage {
+    private final String name;
+    private final int threads;
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    Stage(String name, int threads) {
+      this.name = name;
+      this.threads = threads;
+    }
+
+    void done(long busy) {
+      items.incrementAndGet();
+      busyNanos.addAndGet(busy);
+    }
+
+    void blocked(long blocked) {
+      blockedNanos.addAndGet(blocked);
+    }
+
+    void report(long elapsedNanos) {
+      long elapsed = Math.max(elapsedNanos, 1) * threads;
+      LOG.info("Stage {}: {} messages, {} messages/sec, busy {}%, blocked {}%", name, items.get(),
+          String.format("%.1f", items.get() * 1e9 / Math.max(elapsedNanos, 1)), busyNanos.get() * 100 / elapsed,
+          blockedNanos.get() * 100 / elapsed);
+    }
+  }
+
+  public PipelinedExtractor(EmailExtractor extractor, int threads, int queueSize) {
+    this.extractor = extractor;
+    this.threads = threads;
+    this.work = new ArrayBlockingQueue<Work>(queueSize);
+    this.results = new ArrayBlockingQueue<Work>(queueSize);
+    this.matchStage = new Stage("match", threads);
+  }
+
+  public void run(MessageSource fetcher, ResultSink sink) {
+    this.fetcher = fetcher;
+    prefetchLimit = fetcher.getTextPrefetchBytes();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Worker(), "match-" + i);
+      workers[i].start();
+    }
+    Thread writer = new Thread(new Writer(sink), "output");
+    writer.start();
+
+    long start = System.nanoTime();
+    long lastReport = start;
+    try {
+      while (true) {
+        long fetchStart = System.nanoTime();
+        MimeMessage mail;
+        try {
+          if (!fetcher.hasNextInFolder()) {
+            // the folder is closed when the next one is opened, its messages still queued would fail
+            long drainStart = System.nanoTime();
+            drain(fetcher);
+            fetchStage.blocked(System.nanoTime() - drainStart);
+            fetchStart = System.nanoTime();
+          }
+          if (!fetcher.hasNext()) {
+            break;
+          }
+          mail = fetcher.next();
+        } catch (EmailFetchException e) {
+          fetchFailed(fetcher, e);
+          continue;
+        }
+        long uid = -1;
+        try {
+          uid = fetcher.getUID(mail);
+        } catch (MessagingException e) {
+          LOG.debug("Can't read UID, message won't be retried", e);
+        }
+        Work next = new Work(mail, mail, fetcher.getFolder(), uid, fetcher.getPrefetchedText(mail), 0);
+        fetchStage.done(System.nanoTime() - fetchStart);
+
+        submit(next);
+        if (!next.folder.equals(submittedFolder)) {
+          submittedFolder = next.folder;
+          fetchRestarts = 0;
+        }
+        lastSubmittedUid = uid;
+        retryFailed(fetcher, false);
+
+        if (System.nanoTime() - lastReport > REPORT_INTERVAL) {
+          lastReport = System.nanoTime();
+          report(lastReport - start);
+        }
+      }
+      drain(fetcher);
+
+      for (int i = 0; i < threads; i++) {
+        work.put(POISON);
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      results.put(POISON);
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (Thread worker : workers) {
+        worker.interrupt();
+      }
+      writer.interrupt();
+    }
+    report(System.nanoTime() - start);
+  }
+
+  private void report(long elapsed) {
+    fetchStage.report(elapsed);
+    matchStage.report(elapsed);
+    outputStage.report(elapsed);
+  }
+
+  private void submit(Work next) throws InterruptedException {
+    inFlight.incrementAndGet();
+    long blockedStart = System.nanoTime();
+    work.put(next);
+    fetchStage.blocked(System.nanoTime() - blockedStart);
+  }
+
+  /**
+   * Reconnects after fetching a batch failed and continues after the last message given to workers, the batch is
+   * skipped after the configured number of restarts.
+   */
+  private void fetchFailed(MessageSource fetcher, EmailFetchException e) throws InterruptedException {
+    LOG.error("Fetching messages failed", e);
+    extractor.checkThrottling(e);
+    String folder = fetcher.getFolder();
+    if (folder == null || !folder.equals(submittedFolder)) {
+      // nothing of this folder was given to workers yet
+      submittedFolder = folder;
+      lastSubmittedUid = -1;
+      fetchRestarts = 0;
+    }
+    if (++fetchRestarts > extractor.getMaxRestarts()) {
+      LOG.info("Skip the failed batch and continue");
+      return;
+    }
+    if (!extractor.restart(fetcher, fetchRestarts)) {
+      throw new InterruptedException();
+    }
+    if (!fetcher.resumeAfterUid(lastSubmittedUid)) {
+      LOG.info("Resuming folder {} failed, skip the failed batch and continue", folder);
+    }
+  }
+
+  /**
+   * Waits until every submitted message was processed, failed messages may still come back from workers and are
+   * retried meanwhile.
+   */
+  private void drain(MessageSource fetcher) throws InterruptedException {
+    while (inFlight.get() > 0) {
+      retryFailed(fetcher, true);
+    }
+  }
+
+  private void retryFailed(MessageSource fetcher, boolean wait) throws InterruptedException {
+    Work f = wait ? failed.poll(100, TimeUnit.MILLISECONDS) : failed.poll();
+    while (f != null) {
+      retry(fetcher, f);
+      f = failed.poll();
+    }
+  }
+
+  private void retry(MessageSource fetcher, Work f) throws InterruptedException {
+    // the failed message can only be fetched again while its folder is still the current one
+    if (f.attempt >= extractor.getMaxRestarts() || f.uid < 0 || !fetcher.isRetryable()
+        || !f.folder.equals(fetcher.getFolder())) {
+      LOG.info("Skip the failed email and continue");
+      done(f);
+      return;
+    }
+
+    try {
+      if (!fetcher.isConnected()) {
+        if (!extractor.restart(fetcher, f.attempt + 1)) {
+          throw new InterruptedException();
+        }
+        // keep iterating after the last message already given to workers
+        if (!fetcher.resumeAfterUid(lastSubmittedUid)) {
+          LOG.info("Resuming folder {} failed", f.folder);
+        }
+      }
+      MimeMessage mail = fetcher.getMessageByUID(f.uid);
+      if (mail != null) {
+        work.put(new Work(mail, f.source, f.folder, f.uid, null, f.attempt + 1));
+        return;
+      }
+    } catch (MessagingException e) {
+      LOG.error("Can't fetch failed email again", e);
+    }
+    LOG.info("Skip the failed email and continue");
+    done(f);
+  }
+
+  /**
+   * Ends processing of a message, after its result was written or it was given up.
+   */
+  private void done(Work w) {
+    fetcher.processed(w.source);
+    inFlight.decrementAndGet();
+  }
+
+  class Worker implements Runnable {
+    public void run() {
+      KeywordMatcher.Scanner scanner = extractor.getMatcher().newScanner();
+      PartContentReader reader = new PartContentReader(extractor.getMaxMessageBytes());
+      try {
+        while (true) {
+          Work next = work.take();
+          if (next == POISON) {
+            return;
+          }
+          long start = System.nanoTime();
+          try {
+            next.result = extractor.processMessage(next.mail, next.folder, next.prefetched, prefetchLimit, scanner,
+                reader);
+            matchStage.done(System.nanoTime() - start);
+            if (next.result != null) {
+              long blockedStart = System.nanoTime();
+              results.put(next);
+              matchStage.blocked(System.nanoTime() - blockedStart);
+            } else {
+              done(next);
+            }
+          } catch (InterruptedException e) {
+            throw e;
+          } catch (Exception e) {
+            LOG.error("Can't read content from email", e);
+            extractor.checkThrottling(e);
+            matchStage.done(System.nanoTime() - start);
+            failed.add(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  class Writer implements Runnable {
+    private final ResultSink sink;
+
+    Writer(ResultSink sink) {
+      this.sink = sink;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          Work next = results.take();
+          if (next == POISON) {
+            return;
+          }
+          long start = System.nanoTime();
+          try {
+            extractor.write(sink, next.result);
+          } catch (IOException e) {
+            LOG.error("Writing output failed", e);
+          }
+          done(next);
+          outputStage.done(System.nanoTime() - start);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Receives matching messages. Implementations must be thread safe, parallel and pipeline workers share one sink.
+ */
+public interface ResultSink extends Flushable {
+
+  public void write(MatchResult result) throws IOException;
+
+  /**
+   * Writes buffered output through, before checkpoints are stored and in watch mode so results show up while the
+   * extractor keeps running.
+   */
+  public void flush() throws IOException;
+
+  /**
+   * Flushes buffered output and closes the underlying stream.
+   */
+  public void close() throws IOException;
+}
@@ -0,0 +1,42 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a row for every address (from and to) of a result to a buffered writer.
+ */
+public abstract class RowResultSink implements ResultSink {
+  protected final Writer out;
+
+  protected RowResultSink(Writer out) {
+    this.out = out;
+  }
+
+  public synchronized void write(MatchResult result) throws IOException {
+    for (String address : result.getFrom()) {
+      writeRow("from", address, result);
+    }
+    for (String address : result.getTo()) {
+      writeRow("to", address, result);
+    }
+  }
+
+  public synchronized void flush() throws IOException {
+    out.flush();
+  }
+
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  protected abstract void writeRow(String type, String address, MatchResult result) throws IOException;
+}
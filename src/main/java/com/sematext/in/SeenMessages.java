@@ -0,0 +1,106 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Remembers which folder first saw a message, so copies of it in other folders (Gmail labels) can be skipped before
+ * their content is fetched. Messages are keyed by a 64 bit id, Gmail's X-GM-MSGID or a hash of Message-ID.
+ *
+ * Keys and folder ids live in parallel primitive arrays of an open addressing table, 24 to 48 bytes per message. A
+ * message seen again in the folder which claimed it is not a duplicate, so a folder can be resumed after a failure.
+ * Thread safe.
+ */
+public class SeenMessages {
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private final Map<String, Integer> folderIds = Maps.newHashMap();
+  private long[] keys;
+  private int[] folders;
+  private int size;
+
+  public SeenMessages() {
+    keys = new long[INITIAL_CAPACITY];
+    folders = new int[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Key of a message without a Gmail id.
+   */
+  public static long key(String messageId) {
+    return Hashing.murmur3_128().hashString(messageId, StandardCharsets.UTF_8).asLong();
+  }
+
+  /**
+   * Returns true if the message was first seen in folder, false if another folder already claimed it.
+   */
+  public synchronized boolean claim(long key, String folder) {
+    int folderId = folderId(folder);
+    // 0 marks a free slot
+    long k = key == 0 ? 1 : key;
+    int mask = keys.length - 1;
+    int slot = mix(k) & mask;
+    while (keys[slot] != 0) {
+      if (keys[slot] == k) {
+        return folders[slot] == folderId;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+      return claim(key, folder);
+    }
+    keys[slot] = k;
+    folders[slot] = folderId;
+    size++;
+    return true;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private int folderId(String folder) {
+    Integer id = folderIds.get(folder);
+    if (id == null) {
+      id = folderIds.size();
+      folderIds.put(folder, id);
+    }
+    return id;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldFolders = folders;
+    keys = new long[oldKeys.length * 2];
+    folders = new int[oldKeys.length * 2];
+    int mask = keys.length - 1;
+    for (int old = 0; old < oldKeys.length; old++) {
+      if (oldKeys[old] == 0) {
+        continue;
+      }
+      int slot = mix(oldKeys[old]) & mask;
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = oldKeys[old];
+      folders[slot] = oldFolders[old];
+    }
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * Like {@link javax.mail.util.SharedByteArrayInputStream}, but reads a (memory mapped) buffer. MimeMessage and
+ * MimeBodyPart parsed from it keep views of the buffer instead of copying their content.
+ */
+class SharedByteBufferInputStream extends InputStream implements SharedInputStream {
+  private final ByteBuffer buffer;
+  // position of this stream in the buffer
+  private final int start;
+  private int mark;
+
+  public SharedByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer.slice();
+    this.start = 0;
+  }
+
+  private SharedByteBufferInputStream(ByteBuffer buffer, int start) {
+    this.buffer = buffer;
+    this.start = start;
+    this.mark = start;
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (!buffer.hasRemaining()) {
+      return len == 0 ? 0 : -1;
+    }
+    int n = Math.min(len, buffer.remaining());
+    buffer.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public void reset() {
+    buffer.position(mark);
+  }
+
+  public long getPosition() {
+    return buffer.position() - start;
+  }
+
+  public InputStream newStream(long start, long end) {
+    if (start < 0) {
+      throw new IllegalArgumentException("start < 0");
+    }
+    ByteBuffer view = buffer.duplicate();
+    int limit = end == -1 ? buffer.limit() : (int) Math.min(this.start + end, buffer.limit());
+    view.limit(limit);
+    view.position((int) Math.min(this.start + start, limit));
+    return new SharedByteBufferInputStream(view, view.position());
+  }
+}
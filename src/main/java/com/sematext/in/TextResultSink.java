@@ -0,0 +1,36 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The original output format: {@code from <address> <category> <folder> at <date> }.
+ */
+public class TextResultSink extends RowResultSink {
+
+  public TextResultSink(Writer out) {
+    super(out);
+  }
+
+  @Override
+  protected void writeRow(String type, String address, MatchResult result) throws IOException {
+    out.write(type);
+    out.write(' ');
+    out.write(String.valueOf(address));
+    out.write(' ');
+    out.write(result.getCategory());
+    out.write(' ');
+    out.write(result.getFolder());
+    out.write(" at ");
+    out.write(String.valueOf(result.getDate()));
+    out.write(" \n");
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Maps;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class AccountRunnerTest {
+  private ImapTestServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ImapTestServer();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void testAccounts() throws Exception {
+    int matching = server.addMessages("INBOX", 20, ImapTestServer.Shape.PLAIN, 200, 4);
+    server.getProxy().setLatency(5);
+
+    // every account logs in as the test user, carol with the user of the base configuration
+    BaseConfiguration manifest = new BaseConfiguration();
+    manifest.setProperty("accounts", "alice,bob,carol");
+    manifest.setProperty("account.alice.imap.user", ImapTestServer.USER);
+    manifest.setProperty("account.bob.imap.user", ImapTestServer.USER);
+    List<AccountRunner.Account> accounts = AccountRunner.readAccounts(manifest, server.getConfig());
+    assertEquals(3, accounts.size());
+
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(server.getConfig(), "INBOX", null, null);
+    // four connections are two accounts at a time
+    AccountRunner runner = new AccountRunner(extractor, 4, null);
+    IMapFetcherTest.Collector results = new IMapFetcherTest.Collector();
+    runner.run(accounts, results);
+
+    Map<String, Integer> counts = Maps.newTreeMap();
+    for (MatchResult result : results.getResults()) {
+      Integer count = counts.get(result.getFolder());
+      counts.put(result.getFolder(), count == null ? 1 : count + 1);
+    }
+    assertEquals("{alice:INBOX=" + matching + ", bob:INBOX=" + matching + ", carol:INBOX=" + matching + "}",
+        counts.toString());
+    assertEquals(3 * matching, extractor.getMetrics().getMatches());
+    assertEquals(2, runner.getPeakAccounts("127.0.0.1"));
+    assertTrue(server.getProxy().getPeakConnections() <= 4);
+  }
+}
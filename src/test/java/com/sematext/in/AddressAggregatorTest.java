@@ -0,0 +1,52 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+public class AddressAggregatorTest {
+  private final StringWriter out = new StringWriter();
+
+  @Test
+  public void testAggregate() throws Exception {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+    AddressAggregator aggregator = new AddressAggregator(out, "Solr", "ES");
+    aggregator.addMessage(Arrays.asList("ann@example.com", "bob@example.com", "Ann@Example.com"), 0,
+        format.parse("2016-01-10"), "INBOX");
+    aggregator.addMessage(Arrays.asList("ann@example.com"), 1, format.parse("2015-03-01"), "Work");
+    aggregator.addMessage(Arrays.asList("ann@example.com"), 0, format.parse("2016-02-01"), "INBOX");
+
+    assertEquals(2, aggregator.size());
+
+    aggregator.close();
+    String output = out.toString();
+
+    assertTrue(output.startsWith("address\tSolr\tES\tfirst_seen\tlast_seen\tfolders\n"));
+    assertTrue(output.contains("ann@example.com\t2\t1\t2015-03-01\t2016-02-01\tINBOX,Work\n"));
+    assertTrue(output.contains("bob@example.com\t1\t0\t2016-01-10\t2016-01-10\tINBOX\n"));
+  }
+
+  @Test
+  public void testGrow() throws Exception {
+    AddressAggregator aggregator = new AddressAggregator(out, "Solr", "ES");
+    for (int i = 0; i < 5000; i++) {
+      aggregator.addMessage(Arrays.asList("user" + i + "@example.com", "all@example.com"), i % 2, null, "INBOX");
+    }
+
+    assertEquals(5001, aggregator.size());
+    aggregator.close();
+    assertTrue(out.toString().contains("all@example.com\t2500\t2500\t\t\tINBOX\n"));
+  }
+}
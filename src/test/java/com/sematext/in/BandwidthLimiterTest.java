@@ -0,0 +1,97 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+public class BandwidthLimiterTest {
+  private static final long MB = 1024 * 1024;
+
+  static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void testMinuteBudget() {
+    BandwidthLimiter limiter = new BandwidthLimiter(60000, 0, 1000, 1000, ticker);
+    limiter.record(60000);
+    assertEquals(0, limiter.getDelayNanos());
+    limiter.record(30000);
+    assertEquals(TimeUnit.SECONDS.toNanos(30), limiter.getDelayNanos());
+    ticker.advance(30, TimeUnit.SECONDS);
+    assertEquals(0, limiter.getDelayNanos());
+  }
+
+  @Test
+  public void testDayBudget() {
+    // bursts up to an hour of the budget, the rest is spread over the day
+    BandwidthLimiter limiter = new BandwidthLimiter(0, 24000, 1000, 1000, ticker);
+    limiter.record(1000);
+    assertEquals(0, limiter.getDelayNanos());
+    limiter.record(230);
+    assertEquals(TimeUnit.DAYS.toNanos(1) / 100, limiter.getDelayNanos());
+  }
+
+  @Test
+  public void testThrottled() {
+    BandwidthLimiter limiter = new BandwidthLimiter(0, 0, 60000, 600000, ticker);
+    limiter.record(100 * MB);
+    assertEquals(0, limiter.getDelayNanos());
+    assertEquals(0, limiter.getRate());
+
+    // pauses, then goes on at half the rate of the last minute
+    limiter.throttled();
+    assertEquals(TimeUnit.MINUTES.toNanos(1), limiter.getDelayNanos());
+    assertEquals(50 * MB, limiter.getRate());
+    ticker.advance(1, TimeUnit.MINUTES);
+    assertEquals(0, limiter.getDelayNanos());
+    assertEquals(62.5 * MB, limiter.getRate(), 1);
+
+    // throttled again right away: longer pause, lower rate
+    limiter.throttled();
+    limiter.throttled();
+    assertEquals(TimeUnit.MINUTES.toNanos(2), limiter.getDelayNanos());
+    assertEquals(62.5 * MB / 4, limiter.getRate(), 1);
+
+    // back to no limit after the rate recovered to where it was throttled
+    for (int i = 0; i < 10; i++) {
+      ticker.advance(2, TimeUnit.MINUTES);
+      limiter.getDelayNanos();
+    }
+    assertEquals(0, limiter.getRate());
+  }
+
+  @Test
+  public void testIsThrottling() {
+    assertTrue(BandwidthLimiter.isThrottling(new MessagingException("A12 NO [THROTTLED] Try again later")));
+    assertTrue(BandwidthLimiter.isThrottling(new IOException("fetch failed",
+        new MessagingException("* BYE [ALERT] Account exceeded command or bandwidth limits"))));
+    assertFalse(BandwidthLimiter.isThrottling(new MessagingException("Connection reset")));
+  }
+}
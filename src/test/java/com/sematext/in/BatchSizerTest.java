@@ -0,0 +1,112 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class BatchSizerTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static BatchSizer newSizer(final long freeHeap) {
+    return new BatchSizer(200, 20, 2000, 2000 * MS, 16 * 1024 * 1024, true) {
+      @Override
+      long freeHeap() {
+        return freeHeap;
+      }
+    };
+  }
+
+  @Test
+  public void testGrowsForFastBatches() {
+    BatchSizer sizer = newSizer(Long.MAX_VALUE);
+    // 50 ms for 200 small messages, grows by at most a factor of two per batch up to the maximum
+    assertEquals(400, sizer.update(200, 50 * MS, 0));
+    assertEquals(800, sizer.update(400, 60 * MS, 0));
+    assertEquals(1600, sizer.update(800, 80 * MS, 0));
+    assertEquals(2000, sizer.update(1600, 100 * MS, 0));
+  }
+
+  @Test
+  public void testShrinksForSlowOrLargeBatches() {
+    BatchSizer sizer = newSizer(Long.MAX_VALUE);
+    // 4 s for 200 messages
+    assertEquals(100, sizer.update(200, 4000 * MS, 0));
+    // 2 s at 20 ms per message is on target
+    assertEquals(100, sizer.update(100, 2000 * MS, 0));
+    // 1 MB per message, 16 MB per batch at most
+    assertEquals(50, sizer.update(100, 10 * MS, 100 * 1024 * 1024));
+    assertEquals(25, sizer.update(50, 10 * MS, 50 * 1024 * 1024));
+    assertEquals(20, sizer.update(25, 10 * MS, 25 * 1024 * 1024 * 4));
+  }
+
+  @Test
+  public void testHeapHeadroom() {
+    // 4 MB free, 1 KB per message allows 1000
+    BatchSizer sizer = newSizer(4 * 1024 * 1024);
+    assertEquals(400, sizer.update(200, MS, 200 * 1024));
+    assertEquals(800, sizer.update(400, MS, 400 * 1024));
+    assertEquals(1024, sizer.update(800, MS, 800 * 1024));
+  }
+
+  @Test
+  public void testFixed() {
+    BatchSizer sizer = new BatchSizer(200, 20, 2000, 2000 * MS, 16 * 1024 * 1024, false);
+    assertEquals(200, sizer.update(200, 10000 * MS, 0));
+  }
+
+  /**
+   * Fetches 60 messages of about 20 KB text in batches of at most 100 KB and returns the size of the next batch.
+   */
+  private static int batchSizeAfterFetch(ImapTestServer.Shape shape, int prefetchBytes) throws Exception {
+    ImapTestServer server = new ImapTestServer();
+    try {
+      server.addMessages("INBOX", 60, shape, 20 * 1024, 0);
+      BaseConfiguration batches = new BaseConfiguration();
+      batches.setProperty("fetch.batch_size", 20);
+      batches.setProperty("fetch.min_batch_size", 1);
+      batches.setProperty("fetch.max_batch_bytes", 100 * 1024);
+      batches.setProperty("fetch.text_prefetch_bytes", prefetchBytes);
+      CompositeConfiguration config = new CompositeConfiguration();
+      config.addConfiguration(batches);
+      config.addConfiguration(server.getConfig());
+      IMapFetcher fetcher = new IMapFetcher(config, new String[] { "INBOX" }, new String[0], null);
+      assertTrue(fetcher.connectToMailBox());
+      int count = 0;
+      while (fetcher.hasNext()) {
+        fetcher.next();
+        count++;
+      }
+      fetcher.disconnectFromMailBox();
+      assertEquals(60, count);
+      return fetcher.getBatchSize();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testPrefetchedBytesFromFetcher() throws Exception {
+    // 16 KB prefetched per message, 100 KB per batch allow at most 6
+    int size = batchSizeAfterFetch(ImapTestServer.Shape.PLAIN, 16 * 1024);
+    assertTrue("batch size " + size, size >= 1 && size <= 6);
+  }
+
+  @Test
+  public void testAttachmentsNotCounted() throws Exception {
+    // only envelopes and structures are fetched with the batch, the attachments are never downloaded
+    int size = batchSizeAfterFetch(ImapTestServer.Shape.ATTACHMENT, 0);
+    assertTrue("batch size " + size, size >= 20);
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class CheckpointStoreTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testPersisted() throws Exception {
+    File file = new File(tmp.getRoot(), "checkpoints");
+    CheckpointStore store = new CheckpointStore(file);
+    assertNull(store.get("INBOX"));
+
+    store.update("INBOX", 7, 100);
+    store.update("[Gmail]/All Mail", 8, 5);
+    // older uid of the same validity is ignored
+    store.update("INBOX", 7, 50);
+
+    CheckpointStore reloaded = new CheckpointStore(file);
+    assertEquals(7, reloaded.get("INBOX").getUidValidity());
+    assertEquals(100, reloaded.get("INBOX").getLastUid());
+    assertEquals(5, reloaded.get("[Gmail]/All Mail").getLastUid());
+    assertFalse(new File(tmp.getRoot(), "checkpoints.tmp").exists());
+  }
+
+  @Test
+  public void testUidValidityChange() throws Exception {
+    CheckpointStore store = new CheckpointStore(new File(tmp.getRoot(), "checkpoints"));
+    store.update("INBOX", 7, 100);
+    store.update("INBOX", 9, 3);
+
+    assertEquals(9, store.get("INBOX").getUidValidity());
+    assertEquals(3, store.get("INBOX").getLastUid());
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ClassifierTest {
+  private static List<String> classify(Classifier classifier, String subject, String body) {
+    KeywordMatcher.Scanner scanner = classifier.getMatcher().newScanner();
+    scanner.feed(subject);
+    scanner.feed(' ');
+    int[] subjectCounts = scanner.getCounts().clone();
+    scanner.feed(body);
+    return classifier.classify(subjectCounts, scanner.getCounts());
+  }
+
+  private static BaseConfiguration config() {
+    BaseConfiguration config = new BaseConfiguration();
+    config.setProperty("categories", "Solr,ES,Kafka,Jobs");
+    config.setProperty("category.Solr.keywords", "solr,lucene^0.5");
+    config.setProperty("category.ES.keywords", "elasticsearch^2,kibana");
+    config.setProperty("category.Kafka.keywords", "kafka");
+    config.setProperty("category.Kafka.min_hits", 2);
+    config.setProperty("category.Jobs.keywords", "hiring");
+    config.setProperty("category.Jobs.scope", "subject");
+    return config;
+  }
+
+  @Test
+  public void testWeightsAndMinHits() {
+    Classifier classifier = Classifier.fromConfig(config());
+    assertEquals(Arrays.asList("solr", "lucene", "elasticsearch", "kibana", "kafka", "hiring"),
+        classifier.getKeywords());
+    // Solr 1 + 0.5, ES 2
+    assertEquals(Arrays.asList("ES"), classify(classifier, "", "solr lucene elasticsearch"));
+    // ties go to the category configured first
+    assertEquals(Arrays.asList("Solr"), classify(classifier, "", "solr lucene lucene elasticsearch"));
+    assertEquals(Collections.emptyList(), classify(classifier, "", "kafka"));
+    assertEquals(Arrays.asList("Kafka"), classify(classifier, "kafka", "KAFKA"));
+  }
+
+  @Test
+  public void testScopeAndMultiLabel() {
+    BaseConfiguration config = config();
+    config.setProperty("classify.multi_label", true);
+    Classifier classifier = Classifier.fromConfig(config);
+    assertTrue(classifier.isScoped());
+    assertEquals(Collections.emptyList(), classify(classifier, "Re: question", "we are hiring"));
+    assertEquals(Arrays.asList("Jobs"), classify(classifier, "Hiring", "we are hiring"));
+    // Solr and Jobs score 1, Solr is configured first
+    assertEquals(Arrays.asList("Kafka", "Solr", "Jobs"), classify(classifier, "Hiring", "solr kafka kafka"));
+  }
+
+  @Test
+  public void testLegacyKeywords() {
+    BaseConfiguration config = new BaseConfiguration();
+    config.setProperty("solr.keywords", "solr");
+    config.setProperty("es.keywords", "elasticsearch");
+    Classifier classifier = Classifier.fromConfig(config);
+    assertEquals(Arrays.asList("Solr", "ES"), classifier.getCategoryNames());
+    assertEquals(Arrays.asList("Solr"), classify(classifier, "solr", "elasticsearch"));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class ContentCacheTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static ContentCache.CachedMessage message(String folder, long uid, String text) {
+    return new ContentCache.CachedMessage(folder, 7, uid, new Date(1000 * uid), "subject " + uid,
+        Arrays.asList("from@example.com"), Collections.<String> emptyList(), text);
+  }
+
+  private static List<Long> scan(ContentCache cache) throws Exception {
+    final List<Long> uids = Lists.newArrayList();
+    for (int segment : cache.getSegments()) {
+      cache.scan(segment, new ContentCache.Visitor() {
+        public void visit(ContentCache.CachedMessage message) {
+          uids.add(message.getUid());
+        }
+      });
+    }
+    return uids;
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    File dir = tmp.getRoot();
+    ContentCache cache = new ContentCache(dir, 1 << 20, 1 << 20);
+    cache.put(message("INBOX", 1, "solr größe"));
+    cache.put(message("INBOX", 2, "elasticsearch"));
+    cache.put(message("Work", 1, "kafka"));
+    assertEquals("solr größe", cache.get("INBOX", 7, 1).getText());
+    assertNull(cache.get("INBOX", 8, 1));
+    cache.close();
+
+    ContentCache reopened = new ContentCache(dir, 1 << 20, 1 << 20);
+    assertEquals(3, reopened.size());
+    ContentCache.CachedMessage message = reopened.get("Work", 7, 1);
+    assertEquals("kafka", message.getText());
+    assertEquals("subject 1", message.getSubject());
+    assertEquals(new Date(1000), message.getReceivedDate());
+    assertEquals(Arrays.asList("from@example.com"), message.getFrom());
+    assertEquals(Arrays.asList(1L, 2L, 1L), scan(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      text.append(i).append(' ');
+    }
+    // about 2 KB compressed per message, segments of 3 messages, room for 2 segments
+    ContentCache cache = new ContentCache(tmp.getRoot(), 12 * 1024, 5 * 1024);
+    for (int uid = 1; uid <= 12; uid++) {
+      cache.put(message("INBOX", uid, text.toString() + uid));
+    }
+    assertTrue(cache.getBytes() <= 12 * 1024 + 5 * 1024);
+    assertNull(cache.get("INBOX", 7, 1));
+    assertNotNull(cache.get("INBOX", 7, 12));
+    List<Long> uids = scan(cache);
+    assertEquals(cache.size(), uids.size());
+    assertEquals(12L, (long) uids.get(uids.size() - 1));
+    cache.close();
+
+    assertEquals(uids, scan(new ContentCache(tmp.getRoot(), 12 * 1024, 5 * 1024)));
+  }
+
+  @Test
+  public void testTornRecord() throws Exception {
+    File dir = tmp.getRoot();
+    ContentCache cache = new ContentCache(dir, 1 << 20, 1 << 20);
+    for (int uid = 1; uid <= 3; uid++) {
+      cache.put(message("INBOX", uid, "solr " + uid));
+    }
+    cache.close();
+    // a crash in the middle of writing the last record
+    File segment = new File(dir, "segment-00000000.dat");
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.setLength(file.length() - 10);
+    }
+
+    ContentCache reopened = new ContentCache(dir, 1 << 20, 1 << 20);
+    assertEquals(2, reopened.size());
+    assertNull(reopened.get("INBOX", 7, 3));
+    assertEquals("solr 2", reopened.get("INBOX", 7, 2).getText());
+    assertEquals(Arrays.asList(1L, 2L), scan(reopened));
+    reopened.put(message("INBOX", 3, "solr 3"));
+    assertEquals("solr 3", reopened.get("INBOX", 7, 3).getText());
+    assertEquals(Arrays.asList(1L, 2L, 3L), scan(reopened));
+    reopened.close();
+  }
+
+  @Test
+  public void testUnreadableRecordIsMiss() throws Exception {
+    ContentCache cache = new ContentCache(tmp.getRoot(), 1 << 20, 1 << 20);
+    cache.put(message("INBOX", 1, "solr"));
+    cache.put(message("INBOX", 2, "kafka"));
+    // the length of the first record points past the end of the segment
+    try (RandomAccessFile file = new RandomAccessFile(new File(tmp.getRoot(), "segment-00000000.dat"), "rw")) {
+      file.writeInt(Integer.MAX_VALUE - 8);
+    }
+    assertNull(cache.get("INBOX", 7, 1));
+    assertEquals("kafka", cache.get("INBOX", 7, 2).getText());
+    cache.close();
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy between the client and a test server which can add latency to every request and drop all open
+ * connections, right away, after some bytes or on a request. Counts bytes sent by the server and the most connections
+ * open at the same time.
+ */
+class FaultInjectingProxy implements Closeable {
+  private final int targetPort;
+  private final ServerSocket server;
+  private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+  private final AtomicLong bytesFromServer = new AtomicLong();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger peakConnections = new AtomicInteger();
+  private volatile long latencyMillis;
+  // drops connections once this many more bytes were sent by the server, -1 disables
+  private final AtomicLong dropAfterBytes = new AtomicLong(-1);
+  // drops connections instead of passing on a request containing dropOnRequest, after skipping dropSkips of them
+  private volatile String dropOnRequest;
+  private final AtomicInteger dropSkips = new AtomicInteger();
+
+  FaultInjectingProxy(int targetPort) throws IOException {
+    this.targetPort = targetPort;
+    this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "proxy-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Delays every chunk the client sends, roughly one round trip per IMAP command.
+   */
+  void setLatency(long millis) {
+    this.latencyMillis = millis;
+  }
+
+  void dropConnections() {
+    for (Socket socket : sockets) {
+      closeQuietly(socket);
+    }
+    sockets.clear();
+  }
+
+  /**
+   * Drops all connections once the server sent the given number of bytes more.
+   */
+  void dropAfter(long bytes) {
+    dropAfterBytes.set(bytes);
+  }
+
+  /**
+   * Drops all connections when the client sends a request containing text, e.g. a FETCH, the first skip such requests
+   * are passed on.
+   */
+  void dropOnRequest(String text, int skip) {
+    dropSkips.set(skip);
+    dropOnRequest = text;
+  }
+
+  long getBytesFromServer() {
+    return bytesFromServer.get();
+  }
+
+  int getPeakConnections() {
+    return peakConnections.get();
+  }
+
+  @Override
+  public void close() {
+    closeQuietly(server);
+    dropConnections();
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        Socket client = server.accept();
+        Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+        client.setTcpNoDelay(true);
+        target.setTcpNoDelay(true);
+        sockets.add(client);
+        sockets.add(target);
+        // only this thread raises the peak
+        int open = connections.incrementAndGet();
+        if (open > peakConnections.get()) {
+          peakConnections.set(open);
+        }
+        pump(client, target, true);
+        pump(target, client, false);
+      } catch (IOException e) {
+        // closed
+      }
+    }
+  }
+
+  private void pump(final Socket from, final Socket to, final boolean request) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        byte[] buffer = new byte[16 * 1024];
+        try {
+          InputStream in = from.getInputStream();
+          OutputStream out = to.getOutputStream();
+          int n;
+          while ((n = in.read(buffer)) >= 0) {
+            if (request && latencyMillis > 0) {
+              Thread.sleep(latencyMillis);
+            }
+            String drop = dropOnRequest;
+            if (request && drop != null && new String(buffer, 0, n, StandardCharsets.US_ASCII).contains(drop)
+                && dropSkips.getAndDecrement() <= 0) {
+              dropOnRequest = null;
+              dropConnections();
+              break;
+            }
+            out.write(buffer, 0, n);
+            out.flush();
+            if (!request) {
+              bytesFromServer.addAndGet(n);
+              if (dropAfterBytes.get() >= 0 && dropAfterBytes.addAndGet(-n) < 0) {
+                dropAfterBytes.set(-1);
+                dropConnections();
+              }
+            }
+          }
+        } catch (IOException | InterruptedException e) {
+          // dropped
+        } finally {
+          closeQuietly(from);
+          closeQuietly(to);
+          sockets.remove(from);
+          sockets.remove(to);
+          if (request) {
+            connections.decrementAndGet();
+          }
+        }
+      }
+    }, request ? "proxy-request" : "proxy-response");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FolderFilterTest {
+  @Test
+  public void testAccept() {
+    FolderFilter filter = new FolderFilter(new String[] { "INBOX", "Work.*" }, new String[] { "Work.Spam" });
+    assertTrue(filter.accept("INBOX"));
+    assertTrue(filter.accept("Work.Lucene"));
+    assertFalse(filter.accept("Work.Spam"));
+    // whole name has to match
+    assertFalse(filter.accept("INBOX.Old"));
+
+    FolderFilter all = new FolderFilter(new String[0], new String[] { "Trash" });
+    assertTrue(all.accept("INBOX"));
+    assertFalse(all.accept("Trash"));
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HtmlTextFilterTest {
+  private static String filter(String html, int chunk) {
+    HtmlTextFilter filter = new HtmlTextFilter();
+    StringBuilder sb = new StringBuilder();
+    char[] chars = html.toCharArray();
+    for (int off = 0; off < chars.length; off += chunk) {
+      int n = filter.filter(chars, off, Math.min(chunk, chars.length - off));
+      sb.append(filter.getOutput(), 0, n);
+    }
+    sb.append(filter.getOutput(), 0, filter.finish());
+    return sb.toString();
+  }
+
+  private static void assertFiltered(String expected, String html) {
+    // every split between chunks gives the same text
+    for (int chunk = 1; chunk <= html.length(); chunk++) {
+      assertEquals("chunk " + chunk, expected, filter(html, chunk));
+    }
+  }
+
+  @Test
+  public void testTags() {
+    assertFiltered("Hello world", "<b>Hello</b> <span class=\"solr\">world</span>");
+    assertFiltered(" one two ", "<p>one</p><p title='a > b'>two</p>");
+    assertFiltered("a < b and c", "a < b <!-- solr -- > es -->and c");
+  }
+
+  @Test
+  public void testScriptAndStyle() {
+    assertFiltered(" text  more", "<script>if (a </b) { solr(); }</script>text<STYLE type=\"text/css\">.es {}</Style>"
+        + " more");
+  }
+
+  @Test
+  public void testEntities() {
+    assertFiltered("<a> & \"b\" ä ä \uD83D\uDE00 \u2014", "&lt;a&gt; &amp; &quot;b&quot; &#228; &#xE4; &#x1F600; &mdash;");
+    assertFiltered("&unknown; & b &amp", "&unknown; & b &amp");
+    assertFiltered("&#xZZ; &#;", "&#xZZ; &#;");
+  }
+}
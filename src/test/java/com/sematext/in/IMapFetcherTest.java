@@ -0,0 +1,502 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+public class IMapFetcherTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ImapTestServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ImapTestServer();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private IMapFetcher newFetcher(String include, String exclude) throws Exception {
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(server.getConfig(), include, exclude, null);
+    return (IMapFetcher) extractor.newSource();
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    // more than two batches of 200
+    server.addMessages("INBOX", 450, ImapTestServer.Shape.PLAIN, 100, 0);
+    IMapFetcher fetcher = new IMapFetcher(server.getConfig(), new String[] { "INBOX" }, new String[0], null);
+    assertTrue(fetcher.connectToMailBox());
+
+    long lastUid = 0;
+    int count = 0;
+    while (fetcher.hasNext()) {
+      long uid = fetcher.getUID(fetcher.next());
+      assertTrue(uid > lastUid);
+      lastUid = uid;
+      count++;
+    }
+    fetcher.disconnectFromMailBox();
+    assertEquals(450, count);
+  }
+
+  @Test
+  public void testFolders() throws Exception {
+    server.addMessages("INBOX", 3, ImapTestServer.Shape.PLAIN, 100, 1);
+    server.addMessages("Work", 2, ImapTestServer.Shape.ALTERNATIVE, 100, 1);
+    server.addMessages("Work.Lucene", 4, ImapTestServer.Shape.ATTACHMENT, 100, 2);
+    server.addMessages("Archive", 5, ImapTestServer.Shape.FORWARD, 100, 1);
+    // skipped by STATUS without being opened
+    server.addMessages("Empty", 0, ImapTestServer.Shape.PLAIN, 100, 1);
+
+    IMapFetcher fetcher = newFetcher(".*", "Archive");
+    assertTrue(fetcher.connectToMailBox());
+    List<String> folders = fetcher.listFolders();
+    Collections.sort(folders);
+    assertEquals(Arrays.asList("INBOX", "Work", "Work.Lucene"), folders);
+
+    // only messages with the keyword are returned by the server side search
+    Map<String, Integer> counts = Maps.newTreeMap();
+    while (fetcher.hasNext()) {
+      fetcher.next();
+      Integer count = counts.get(fetcher.getFolder());
+      counts.put(fetcher.getFolder(), count == null ? 1 : count + 1);
+    }
+    fetcher.disconnectFromMailBox();
+    assertEquals("{INBOX=3, Work=2, Work.Lucene=2}", counts.toString());
+  }
+
+  @Test
+  public void testStatusPipelined() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      server.addMessages("Folder" + i, i % 2, ImapTestServer.Shape.PLAIN, 100, 1);
+    }
+    IMapFetcher fetcher = newFetcher("Folder.*", null);
+    assertTrue(fetcher.connectToMailBox());
+    server.getProxy().setLatency(100);
+    long start = System.nanoTime();
+    List<String> folders = fetcher.listFolders();
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    server.getProxy().setLatency(0);
+    fetcher.disconnectFromMailBox();
+    // empty folders are skipped, a round trip per folder would take 2 s
+    assertEquals(10, folders.size());
+    assertTrue("listing took " + millis + " ms", millis < 1000);
+  }
+
+  @Test
+  public void testDuplicatesInOtherFolders() throws Exception {
+    server.addMessages("INBOX", 4, ImapTestServer.Shape.PLAIN, 100, 1);
+    server.copyMessages("INBOX", "Label");
+    server.addMessages("Label", 2, ImapTestServer.Shape.PLAIN, 100, 1);
+
+    IMapFetcher fetcher = newFetcher("INBOX,Label", null);
+    assertTrue(fetcher.connectToMailBox());
+    Map<String, Integer> counts = Maps.newTreeMap();
+    while (fetcher.hasNext()) {
+      fetcher.next();
+      Integer count = counts.get(fetcher.getFolder());
+      counts.put(fetcher.getFolder(), count == null ? 1 : count + 1);
+    }
+    fetcher.disconnectFromMailBox();
+    assertEquals("{INBOX=4, Label=2}", counts.toString());
+  }
+
+  @Test
+  public void testRawQuery() throws Exception {
+    assertEquals("solr", IMapFetcher.rawQuery(Arrays.asList("solr"), null));
+    Date date = new SimpleDateFormat("yyyy-MM-dd").parse("2020-01-01");
+    assertEquals("(solr OR elasticsearch OR \"search guard\") after:2020/01/01",
+        IMapFetcher.rawQuery(Arrays.asList("solr", "elasticsearch", "search guard"), date));
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    server.addMessages("INBOX", 3, ImapTestServer.Shape.PLAIN, 100, 1);
+    final IMapFetcher fetcher = newFetcher("INBOX", null);
+    fetcher.setWatch(true);
+    assertTrue(fetcher.connectToMailBox());
+
+    final BlockingQueue<String> subjects = new LinkedBlockingQueue<String>();
+    Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (fetcher.hasNext()) {
+            subjects.add(fetcher.next().getSubject());
+          }
+        } catch (MessagingException e) {
+          subjects.add(e.toString());
+        }
+      }
+    };
+    consumer.start();
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(subjects.poll(10, TimeUnit.SECONDS));
+    }
+
+    // only the new message is fetched, without another pass over the folder
+    server.addMessages("INBOX", 1, ImapTestServer.Shape.PLAIN, 100, 1);
+    String subject = subjects.poll(10, TimeUnit.SECONDS);
+    assertNotNull(subject);
+    assertTrue(subject, subject.startsWith("INBOX 0"));
+
+    fetcher.stopWatching();
+    consumer.join(10000);
+    assertFalse(consumer.isAlive());
+    assertTrue(subjects.isEmpty());
+    fetcher.disconnectFromMailBox();
+  }
+
+  @Test
+  public void testWatchExpungeAndNewMail() throws Exception {
+    server.addMessages("INBOX", 3, ImapTestServer.Shape.PLAIN, 100, 1);
+    BaseConfiguration poll = new BaseConfiguration();
+    poll.setProperty("watch.poll_interval_ms", 1000);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(poll);
+    config.addConfiguration(server.getConfig());
+    final IMapFetcher fetcher = new IMapFetcher(config, new String[] { "INBOX" }, new String[0], null);
+    fetcher.setWatch(true);
+    assertTrue(fetcher.connectToMailBox());
+
+    final BlockingQueue<String> subjects = new LinkedBlockingQueue<String>();
+    Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (fetcher.hasNext()) {
+            subjects.add(fetcher.next().getSubject());
+          }
+        } catch (MessagingException e) {
+          subjects.add(e.toString());
+        }
+      }
+    };
+    consumer.start();
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(subjects.poll(10, TimeUnit.SECONDS));
+    }
+
+    // let the watcher get the folder back and poll, then change it between two polls so the count stays the same
+    Thread.sleep(2000);
+    server.expungeMessage("INBOX", 0);
+    server.addMessages("INBOX", 1, ImapTestServer.Shape.PLAIN, 100, 1);
+    String subject = subjects.poll(10, TimeUnit.SECONDS);
+    assertNotNull(subject);
+    assertTrue(subject, subject.startsWith("INBOX 0"));
+
+    fetcher.stopWatching();
+    consumer.join(10000);
+    assertFalse(consumer.isAlive());
+    assertTrue(subjects.isEmpty());
+    fetcher.disconnectFromMailBox();
+  }
+
+  @Test
+  public void testContentCache() throws Exception {
+    int matching = server.addMessages("INBOX", 30, ImapTestServer.Shape.ALTERNATIVE, 500, 3);
+    ContentCache cache = new ContentCache(tmp.getRoot(), 1 << 20, 1 << 20);
+    assertEquals(matching, extractWithCache(cache).size());
+    // every message is cached, not only those the server finds keywords in
+    assertEquals(30, cache.size());
+
+    // cached messages are classified without fetching their text
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(server.getConfig(), "INBOX", null, null);
+    extractor.setContentCache(cache);
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    extractor.extract(fetcher, new Collector());
+    fetcher.disconnectFromMailBox();
+    assertEquals(0, extractor.getMetrics().getBytesFetched());
+    assertEquals(matching, extractor.getMetrics().getMatches());
+
+    Collector results = new Collector();
+    extractor.reclassify(results, 2);
+    assertEquals(matching, results.size());
+    cache.close();
+  }
+
+  static class Collector implements ResultSink {
+    private final List<MatchResult> results = Collections.synchronizedList(Lists.<MatchResult> newArrayList());
+
+    public void write(MatchResult result) {
+      results.add(result);
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    int size() {
+      return results.size();
+    }
+
+    List<MatchResult> getResults() {
+      return results;
+    }
+  }
+
+  @Test
+  public void testContentCacheOfMatchingMessages() throws Exception {
+    int matching = server.addMessages("INBOX", 30, ImapTestServer.Shape.PLAIN, 500, 3);
+    BaseConfiguration matchingOnly = new BaseConfiguration();
+    matchingOnly.setProperty("cache.all_messages", false);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(matchingOnly);
+    config.addConfiguration(server.getConfig());
+    ContentCache cache = new ContentCache(tmp.getRoot(), 1 << 20, 1 << 20);
+    assertEquals(matching, extractWithCache(cache, config).size());
+    // the server side search still skips the others
+    assertEquals(matching, cache.size());
+    cache.close();
+  }
+
+  private Collector extractWithCache(ContentCache cache) throws Exception {
+    return extractWithCache(cache, server.getConfig());
+  }
+
+  private Collector extractWithCache(ContentCache cache, CompositeConfiguration config) throws Exception {
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(config, "INBOX", null, null);
+    extractor.setContentCache(cache);
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    Collector results = new Collector();
+    extractor.extract(fetcher, results);
+    fetcher.disconnectFromMailBox();
+    return results;
+  }
+
+  @Test
+  public void testReconnect() throws Exception {
+    int matching = server.addMessages("INBOX", 100, ImapTestServer.Shape.ALTERNATIVE, 500, 1);
+
+    final EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(server.getConfig(), "INBOX", null, null);
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+
+    final List<MatchResult> results = Lists.newArrayList();
+    extractor.extract(fetcher, new ResultSink() {
+      public void write(MatchResult result) {
+        results.add(result);
+        if (results.size() == 40) {
+          // the next message fails, it's fetched again after reconnecting
+          server.getProxy().dropConnections();
+        }
+      }
+
+      public void flush() {
+      }
+
+      public void close() {
+      }
+    });
+    fetcher.disconnectFromMailBox();
+    assertEquals(matching, results.size());
+  }
+
+  @Test
+  public void testReconnectDuringBatchFetch() throws Exception {
+    int matching = server.addMessages("INBOX", 450, ImapTestServer.Shape.PLAIN, 100, 1);
+
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(server.getConfig(), "INBOX", null, null);
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    // the batch fetch after the first one fails, the folder continues after the last message of the first batch
+    server.getProxy().dropOnRequest("ENVELOPE", 1);
+    Collector results = new Collector();
+    extractor.extract(fetcher, results);
+    fetcher.disconnectFromMailBox();
+    assertEquals(matching, results.size());
+    assertEquals(1, extractor.getMetrics().getRestarts());
+  }
+
+  @Test
+  public void testBatchKeptUntilProcessed() throws Exception {
+    server.addMessages("INBOX", 40, ImapTestServer.Shape.PLAIN, 100, 1);
+    BaseConfiguration batches = new BaseConfiguration();
+    batches.setProperty("fetch.batch_size", 20);
+    batches.setProperty("fetch.adaptive_batch", false);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(batches);
+    config.addConfiguration(server.getConfig());
+    IMapFetcher fetcher = new IMapFetcher(config, new String[] { "INBOX" }, new String[0], null);
+    fetcher.setTrackProcessed(true);
+    assertTrue(fetcher.connectToMailBox());
+
+    // the first message is still being processed when the iterator is in the second batch
+    assertTrue(fetcher.hasNext());
+    MimeMessage first = fetcher.next();
+    for (int i = 1; i < 21; i++) {
+      assertTrue(fetcher.hasNext());
+      fetcher.processed(fetcher.next());
+    }
+    long bytes = server.getProxy().getBytesFromServer();
+    assertNotNull(first.getSubject());
+    assertEquals(bytes, server.getProxy().getBytesFromServer());
+
+    // headers are dropped once the whole batch was processed
+    fetcher.processed(first);
+    assertNotNull(first.getSubject());
+    assertTrue(server.getProxy().getBytesFromServer() > bytes);
+    fetcher.disconnectFromMailBox();
+  }
+
+  /**
+   * Output which buffers results until flushed and crashes the run on the given write.
+   */
+  static class CrashingSink implements ResultSink {
+    private final List<MatchResult> buffered = Lists.newArrayList();
+    private final List<MatchResult> flushed = Lists.newArrayList();
+    private final CountDownLatch crashed = new CountDownLatch(1);
+    private final int crashAt;
+    private int writes;
+
+    CrashingSink(int crashAt) {
+      this.crashAt = crashAt;
+    }
+
+    public synchronized void write(MatchResult result) {
+      if (++writes == crashAt) {
+        crashed.countDown();
+        throw new Crash();
+      }
+      buffered.add(result);
+    }
+
+    public synchronized void flush() {
+      flushed.addAll(buffered);
+      buffered.clear();
+    }
+
+    public void close() {
+    }
+
+    synchronized List<MatchResult> getFlushed() {
+      return Lists.newArrayList(flushed);
+    }
+  }
+
+  static class Crash extends Error {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private EmailExtractor newCheckpointedExtractor(CheckpointStore checkpoints, int pipelineThreads) throws Exception {
+    BaseConfiguration batches = new BaseConfiguration();
+    batches.setProperty("fetch.batch_size", 20);
+    batches.setProperty("fetch.adaptive_batch", false);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(batches);
+    config.addConfiguration(server.getConfig());
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(config, "INBOX", null, null);
+    extractor.setCheckpointStore(checkpoints);
+    extractor.setPipelineThreads(pipelineThreads);
+    return extractor;
+  }
+
+  /**
+   * Crashes a run mid-folder and resumes from the checkpoint it left, no result may be lost.
+   */
+  private void crashAndResume(int pipelineThreads) throws Exception {
+    int matching = server.addMessages("INBOX", 100, ImapTestServer.Shape.PLAIN, 100, 1);
+    File file = new File(tmp.getRoot(), "checkpoints");
+    CheckpointStore checkpoints = new CheckpointStore(file);
+    final CrashingSink crashing = new CrashingSink(50);
+    checkpoints.setOutput(crashing);
+    final EmailExtractor extractor = newCheckpointedExtractor(checkpoints, pipelineThreads);
+    final MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    Thread run = new Thread() {
+      @Override
+      public void run() {
+        try {
+          extractor.extract(fetcher, crashing);
+        } catch (Crash e) {
+          // the serial run ends here, the pipeline loses its writer
+        }
+      }
+    };
+    run.start();
+    assertTrue(crashing.crashed.await(30, TimeUnit.SECONDS));
+    // other workers keep going for a while
+    Thread.sleep(500);
+    run.interrupt();
+    run.join(10000);
+    fetcher.disconnectFromMailBox();
+
+    CheckpointStore reloaded = new CheckpointStore(file);
+    assertNotNull(reloaded.get("INBOX"));
+    Collector resumed = new Collector();
+    EmailExtractor second = newCheckpointedExtractor(reloaded, 0);
+    MessageSource secondFetcher = second.newSource();
+    assertTrue(secondFetcher.connectToMailBox());
+    second.extract(secondFetcher, resumed);
+    secondFetcher.disconnectFromMailBox();
+    assertTrue(resumed.size() < matching);
+
+    Set<Long> dates = Sets.newHashSet();
+    for (MatchResult result : crashing.getFlushed()) {
+      dates.add(result.getReceivedDate().getTime());
+    }
+    for (MatchResult result : resumed.getResults()) {
+      dates.add(result.getReceivedDate().getTime());
+    }
+    assertEquals(matching, dates.size());
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws Exception {
+    crashAndResume(0);
+  }
+
+  @Test
+  public void testResumeFromCheckpointPipelined() throws Exception {
+    crashAndResume(4);
+  }
+}
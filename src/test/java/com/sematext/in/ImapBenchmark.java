@@ -0,0 +1,95 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.SystemConfiguration;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end throughput of fetching and matching from the in-process IMAP server. Skipped unless run with
+ * -Dbenchmark=true, e.g.
+ *
+ * <pre>
+ * mvn test -Dtest=ImapBenchmark -Dbenchmark=true -Dbenchmark.messages=5000 -Dbenchmark.shape=ATTACHMENT \
+ *     -Dbenchmark.latency_ms=1 -Dfetch.text_prefetch_bytes=4096
+ * </pre>
+ *
+ * Any other -D setting overrides config.properties. Reports messages and bytes read from the server per second.
+ * GreenMail answers a command in several small writes, so on loopback every round trip usually waits for a delayed
+ * ACK (about 40 ms), numbers mostly show how many round trips a fetch strategy needs.
+ */
+public class ImapBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(ImapBenchmark.class);
+
+  @Test
+  public void benchmark() throws Exception {
+    assumeTrue(Boolean.getBoolean("benchmark"));
+    int folders = Integer.getInteger("benchmark.folders", 4);
+    int messages = Integer.getInteger("benchmark.messages", 1000);
+    int textBytes = Integer.getInteger("benchmark.text_bytes", 2048);
+    int matchEvery = Integer.getInteger("benchmark.match_every", 1);
+    ImapTestServer.Shape shape = ImapTestServer.Shape.valueOf(System.getProperty("benchmark.shape", "PLAIN"));
+    int parallelism = Integer.getInteger("benchmark.parallelism", 1);
+
+    try (ImapTestServer server = new ImapTestServer()) {
+      int matching = 0;
+      for (int i = 0; i < folders; i++) {
+        matching += server.addMessages(i == 0 ? "INBOX" : "Folder" + i, messages / folders, shape, textBytes,
+            matchEvery);
+      }
+      server.getProxy().setLatency(Long.getLong("benchmark.latency_ms", 0));
+
+      CompositeConfiguration config = new CompositeConfiguration();
+      config.addConfiguration(new SystemConfiguration());
+      config.addConfiguration(server.getConfig());
+      EmailExtractor extractor = new EmailExtractor();
+      extractor.configure(config, ".*", null, null);
+      extractor.setPipelineThreads(Integer.getInteger("benchmark.pipeline", 0));
+
+      final AtomicInteger results = new AtomicInteger();
+      ResultSink sink = new ResultSink() {
+        public void write(MatchResult result) {
+          results.incrementAndGet();
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+      };
+
+      long start = System.nanoTime();
+      MessageSource source = extractor.newSource();
+      source.connectToMailBox();
+      if (parallelism > 1) {
+        List<String> names = source.listFolders();
+        source.disconnectFromMailBox();
+        new ParallelExtractor(extractor, parallelism, false, 0).run(names, sink);
+      } else {
+        extractor.extract(source, sink);
+        source.disconnectFromMailBox();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      long bytes = server.getProxy().getBytesFromServer();
+      LOG.info("{} messages ({} {} bytes, {} matching, {} results) in {} s: {} messages/sec, {} KB/sec from server",
+          messages, shape, textBytes, matching, results.get(), String.format("%.2f", seconds),
+          String.format("%.1f", messages / seconds), String.format("%.1f", bytes / 1024.0 / seconds));
+    }
+  }
+}
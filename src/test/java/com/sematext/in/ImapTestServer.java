@@ -0,0 +1,240 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import com.icegreen.greenmail.imap.ImapHostManager;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.store.StoredMessage;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * In-process IMAP server (GreenMail) behind a {@link FaultInjectingProxy}, with generated mailboxes. Folders are
+ * created with {@link #addMessages}, a hierarchy uses "." as delimiter, e.g. "Work.Solr".
+ */
+class ImapTestServer implements Closeable {
+  static final String USER = "user@localhost";
+  static final String PASSWORD = "secret";
+  static final String KEYWORD = "solr";
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final long START_DATE = 1451606400000L; // 2016-01-01
+  private static final String[] WORDS = { "index", "query", "shard", "replica", "cluster", "node", "cache",
+      "segment", "merge", "commit", "field", "facet", "document", "schema", "analyzer", "token" };
+
+  /**
+   * MIME structure of generated messages.
+   */
+  enum Shape {
+    // text/plain
+    PLAIN,
+    // multipart/alternative with text/plain and text/html
+    ALTERNATIVE,
+    // multipart/mixed with text/plain and a binary attachment of the same size
+    ATTACHMENT,
+    // multipart/mixed with text/plain and a forwarded message/rfc822
+    FORWARD
+  }
+
+  private final GreenMail greenMail;
+  private final GreenMailUser user;
+  private final FaultInjectingProxy proxy;
+  private final Session session = Session.getInstance(new Properties());
+  private final Random random = new Random(42);
+  private int generated;
+
+  ImapTestServer() throws IOException {
+    greenMail = new GreenMail(new ServerSetup(freePort(), "127.0.0.1", ServerSetup.PROTOCOL_IMAP));
+    greenMail.start();
+    user = greenMail.setUser(USER, USER, PASSWORD);
+    proxy = new FaultInjectingProxy(greenMail.getImap().getPort());
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  FaultInjectingProxy getProxy() {
+    return proxy;
+  }
+
+  /**
+   * Returns settings for connecting through the proxy, other settings come from config.properties.
+   */
+  CompositeConfiguration getConfig() throws ConfigurationException {
+    Configuration server = new BaseConfiguration();
+    server.setProperty("imap.host", "127.0.0.1");
+    server.setProperty("imap.port", proxy.getPort());
+    server.setProperty("imap.protocol", "imap");
+    server.setProperty("imap.user", USER);
+    server.setProperty("imap.access_token", PASSWORD);
+    server.setProperty("mail.imap.ssl.enable", "false");
+    server.setProperty("mail.imap.auth.mechanisms", "LOGIN PLAIN");
+    server.setProperty("restart.backoff_ms", 10);
+
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(server);
+    config.addConfiguration(new PropertiesConfiguration("config.properties"));
+    return config;
+  }
+
+  /**
+   * Appends count generated messages to the folder (created if needed) with text of about textBytes bytes, every
+   * matchEvery-th message contains {@link #KEYWORD} (0 for none). Returns the number of messages with the keyword.
+   */
+  int addMessages(String folder, int count, Shape shape, int textBytes, int matchEvery) throws Exception {
+    MailFolder mailFolder = getOrCreateFolder(folder);
+    int matching = 0;
+    for (int i = 0; i < count; i++) {
+      boolean match = matchEvery > 0 && i % matchEvery == 0;
+      if (match) {
+        matching++;
+      }
+      Date date = new Date(START_DATE + generated * DAY / 24);
+      mailFolder.appendMessage(newMessage(folder + " " + i, shape, textBytes, match, date), new Flags(), date);
+      generated++;
+    }
+    return matching;
+  }
+
+  /**
+   * Appends copies of all messages of folder to target, like Gmail shows a message under each of its labels.
+   */
+  void copyMessages(String folder, String target) throws Exception {
+    MailFolder to = getOrCreateFolder(target);
+    for (StoredMessage message : getOrCreateFolder(folder).getMessages()) {
+      to.appendMessage(message.getMimeMessage(), new Flags(), message.getReceivedDate());
+    }
+  }
+
+  /**
+   * Deletes the message at index (0 based) of the folder, like another client expunging it.
+   */
+  void expungeMessage(String folder, int index) throws Exception {
+    MailFolder mailFolder = getOrCreateFolder(folder);
+    mailFolder.getMessages().get(index).setFlag(Flags.Flag.DELETED, true);
+    mailFolder.expunge();
+  }
+
+  private MailFolder getOrCreateFolder(String name) throws Exception {
+    ImapHostManager manager = greenMail.getManagers().getImapHostManager();
+    if ("INBOX".equals(name)) {
+      return manager.getInbox(user);
+    }
+    MailFolder folder = manager.getFolder(user, name);
+    if (folder == null) {
+      int parent = name.lastIndexOf('.');
+      if (parent > 0) {
+        getOrCreateFolder(name.substring(0, parent));
+      }
+      folder = manager.createMailbox(user, name);
+    }
+    return folder;
+  }
+
+  private MimeMessage newMessage(String subject, Shape shape, int textBytes, boolean match, Date date)
+      throws MessagingException {
+    MimeMessage message = new MimeMessage(session);
+    message.setFrom(new InternetAddress("sender" + random.nextInt(100) + "@example.com"));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress("user@localhost"));
+    message.setSubject(subject);
+    message.setSentDate(date);
+    String text = text(textBytes, match);
+    switch (shape) {
+    case PLAIN:
+      message.setText(text, "UTF-8");
+      break;
+    case ALTERNATIVE:
+      MimeMultipart alternative = new MimeMultipart("alternative");
+      alternative.addBodyPart(textPart(text));
+      MimeBodyPart html = new MimeBodyPart();
+      html.setContent("<html><body><p>" + text + "</p></body></html>", "text/html; charset=UTF-8");
+      alternative.addBodyPart(html);
+      message.setContent(alternative);
+      break;
+    case ATTACHMENT:
+      MimeMultipart mixed = new MimeMultipart();
+      mixed.addBodyPart(textPart(text));
+      MimeBodyPart attachment = new MimeBodyPart();
+      byte[] data = new byte[textBytes];
+      random.nextBytes(data);
+      attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+      attachment.setFileName("data.bin");
+      mixed.addBodyPart(attachment);
+      message.setContent(mixed);
+      break;
+    case FORWARD:
+      MimeMultipart forward = new MimeMultipart();
+      forward.addBodyPart(textPart("see below"));
+      MimeBodyPart nested = new MimeBodyPart();
+      nested.setContent(newMessage("Fwd: " + subject, Shape.PLAIN, textBytes, match, date), "message/rfc822");
+      forward.addBodyPart(nested);
+      message.setContent(forward);
+      break;
+    }
+    message.saveChanges();
+    return message;
+  }
+
+  private static MimeBodyPart textPart(String text) throws MessagingException {
+    MimeBodyPart part = new MimeBodyPart();
+    part.setText(text, "UTF-8");
+    return part;
+  }
+
+  private String text(int bytes, boolean match) {
+    StringBuilder sb = new StringBuilder(bytes + 16);
+    int keywordAt = match ? random.nextInt(Math.max(bytes, 1)) : -1;
+    while (sb.length() < bytes) {
+      if (keywordAt >= 0 && sb.length() >= keywordAt) {
+        sb.append(KEYWORD);
+        keywordAt = -1;
+      } else {
+        sb.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      sb.append(sb.length() % 80 > 70 ? '\n' : ' ');
+    }
+    if (keywordAt >= 0) {
+      sb.append(KEYWORD);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void close() {
+    proxy.close();
+    greenMail.stop();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class KeywordMatcherTest {
+
+  private static KeywordMatcher matcher(List<List<String>> categories) {
+    return new KeywordMatcher(categories);
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    KeywordMatcher matcher = matcher(ImmutableList.<List<String>>of(ImmutableList.of("solr"),
+        ImmutableList.of("elasticsearch", "ES")));
+    int[] counts = matcher.countMatches("Solr vs ElasticSearch, SOLR cloud or es cluster");
+
+    assertArrayEquals(new int[] { 2, 2 }, counts);
+  }
+
+  @Test
+  public void testOverlappingKeywords() {
+    KeywordMatcher matcher = matcher(ImmutableList.<List<String>>of(
+        ImmutableList.of("elastic", "elasticsearch", "search"), ImmutableList.of("aa")));
+    int[] counts = matcher.countMatches("elasticsearch aaaaa");
+
+    assertEquals(3, counts[0]);
+    // same keyword doesn't overlap, like StringUtils.countMatches
+    assertEquals(2, counts[1]);
+  }
+
+  @Test
+  public void testNonAscii() {
+    KeywordMatcher matcher = matcher(ImmutableList.<List<String>>of(ImmutableList.of("größe"),
+        ImmutableList.of("Ärger")));
+    int[] counts = matcher.countMatches("GRÖSSE größe GRÖßE ärger ÄRGER");
+
+    assertArrayEquals(new int[] { 2, 2 }, counts);
+  }
+
+  @Test
+  public void testChunkedFeed() {
+    KeywordMatcher matcher = matcher(ImmutableList.<List<String>>of(ImmutableList.of("solr")));
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    scanner.feed("so");
+    scanner.feed("lr so".toCharArray(), 0, 5);
+    scanner.feed("lr");
+
+    assertEquals(2, scanner.getCounts()[0]);
+  }
+
+  @Test
+  public void testSameAsCountMatches() {
+    Random random = new Random(42);
+    List<String> first = ImmutableList.of("ab", "abab", "ba", "b");
+    List<String> second = ImmutableList.of("aab", "bb", "abba");
+    KeywordMatcher matcher = matcher(ImmutableList.of(first, second));
+
+    for (int run = 0; run < 200; run++) {
+      StringBuilder sb = new StringBuilder();
+      int len = random.nextInt(60);
+      for (int i = 0; i < len; i++) {
+        sb.append("aAbB ".charAt(random.nextInt(5)));
+      }
+      String content = sb.toString().toLowerCase();
+
+      int[] expected = new int[2];
+      for (String keyword : first) {
+        expected[0] += StringUtils.countMatches(content, keyword);
+      }
+      for (String keyword : second) {
+        expected[1] += StringUtils.countMatches(content, keyword);
+      }
+
+      assertArrayEquals(sb.toString(), expected, matcher.countMatches(sb));
+    }
+  }
+}
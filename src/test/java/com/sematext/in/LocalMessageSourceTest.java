@@ -0,0 +1,135 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+public class LocalMessageSourceTest {
+  private static final String[] NONE = new String[0];
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static String message(String subject) {
+    return "From: ann@example.com\nTo: bob@example.com\nSubject: " + subject + "\n\nbody of " + subject + "\n";
+  }
+
+  private static void write(File file, String content) throws Exception {
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<String> read(MessageSource source) throws Exception {
+    assertTrue(source.connectToMailBox());
+    List<String> result = Lists.newArrayList();
+    while (source.hasNext()) {
+      MimeMessage message = source.next();
+      result.add(source.getFolder() + ":" + source.getUID(message) + ":" + message.getSubject() + ":"
+          + ((String) message.getContent()).trim());
+    }
+    source.disconnectFromMailBox();
+    return result;
+  }
+
+  @Test
+  public void testMbox() throws Exception {
+    File dir = tmp.newFolder("takeout");
+    write(new File(dir, "Inbox.mbox"), "From 1@xxx Sat Jan 09 15:34:07 +0000 2016\n" + message("solr")
+        + "\nFrom 2@xxx Sun Jan 10 10:00:00 +0000 2016\n" + message("elasticsearch")
+        + ">From the quoted line\n\nFrom 3@xxx Mon Jan 11 10:00:00 +0000 2016\n" + message("third"));
+    write(new File(dir, "Sent.mbox"), "From 4@xxx Mon Jan  4 10:00:00 2016\n" + message("sent"));
+
+    // windows smaller than the file, messages cross window boundaries
+    MboxMessageSource source = new MboxMessageSource(dir.toPath(), NONE, NONE, null, 128);
+    assertEquals(Arrays.asList("Inbox:1:solr:body of solr", "Inbox:2:elasticsearch:body of elasticsearch\n"
+        + ">From the quoted line", "Inbox:3:third:body of third", "Sent:1:sent:body of sent"), read(source));
+  }
+
+  @Test
+  public void testMboxTruncated() throws Exception {
+    File file = tmp.newFile("large.mbox");
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      body.append("line ").append(i).append(" of a message larger than the window\n");
+    }
+    write(file, "From 1@xxx Sat Jan 09 15:34:07 +0000 2016\n" + message("large") + body
+        + "\nFrom 2@xxx Sun Jan 10 10:00:00 +0000 2016\n" + message("small"));
+
+    Metrics metrics = new Metrics();
+    MboxMessageSource source = new MboxMessageSource(file.toPath(), NONE, NONE, null, 256);
+    source.setMetrics(metrics);
+    List<String> messages = read(source);
+    assertEquals(2, messages.size());
+    assertTrue(messages.get(0), messages.get(0).startsWith("large:1:large:body of large\nline 0"));
+    assertEquals("large:2:small:body of small", messages.get(1));
+    assertEquals(1, metrics.getTruncated());
+  }
+
+  @Test
+  public void testMboxReceivedDate() throws Exception {
+    File file = tmp.newFile("all.mbox");
+    write(file, "From 1@xxx Sat Jan 09 15:34:07 +0000 2016\n" + message("old")
+        + "\nFrom 2@xxx Sun Jan 10 15:34:07 +0000 2016\n" + message("new"));
+
+    LocalMessageSource source = LocalMessageSource.open(file, NONE, NONE, new Date(1452384000000L));
+    assertTrue(source instanceof MboxMessageSource);
+    assertTrue(source.connectToMailBox());
+    assertTrue(source.hasNext());
+    MimeMessage message = source.next();
+    assertEquals("new", message.getSubject());
+    assertEquals(1452440047000L, message.getReceivedDate().getTime());
+    assertFalse(source.hasNext());
+  }
+
+  @Test
+  public void testMaildir() throws Exception {
+    File dir = tmp.newFolder("Maildir");
+    new File(dir, "tmp").mkdirs();
+    write(new File(dir, "cur/1452440047.M1P1.host:2,S"), message("solr"));
+    write(new File(dir, "new/1452353647.M1P1.host"), message("earlier"));
+    write(new File(dir, ".Work.Solr/cur/1452440047.M2P1.host:2,"), message("work"));
+    write(new File(dir, ".Trash/cur/1452440047.M3P1.host:2,"), message("trash"));
+
+    LocalMessageSource source = LocalMessageSource.open(dir, NONE, new String[] { "Trash" }, null);
+    assertTrue(source instanceof MaildirMessageSource);
+    assertEquals(Arrays.asList("INBOX:1:earlier:body of earlier", "INBOX:2:solr:body of solr",
+        "Work.Solr:1:work:body of work"), read(source));
+  }
+
+  @Test
+  public void testEml() throws Exception {
+    File dir = tmp.newFolder("export");
+    write(new File(dir, "b.eml"), message("second"));
+    write(new File(dir, "a.eml"), message("first"));
+    write(new File(dir, "notes.txt"), "not a message");
+    write(new File(dir, "Work/Solr/c.eml"), message("work"));
+
+    LocalMessageSource source = LocalMessageSource.open(dir, NONE, NONE, null);
+    assertTrue(source instanceof EmlMessageSource);
+    assertTrue(source.connectToMailBox());
+    assertEquals(Arrays.asList("INBOX", "Work/Solr"), source.listFolders());
+    source.selectFolder("Work/Solr");
+    assertEquals(Arrays.asList("Work/Solr:1:work:body of work"), read(source));
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsTest {
+  @Test
+  public void testHistogramIndex() {
+    for (long value : new long[] { 0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE / 2 }) {
+      int index = LatencyHistogram.index(value);
+      assertTrue(value <= LatencyHistogram.highestValue(index));
+      if (index > 0) {
+        assertTrue(value > LatencyHistogram.highestValue(index - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals(1000, histogram.getCount());
+    // buckets are at most 1/16 wide
+    assertEquals(500, histogram.getPercentileMillis(50), 500 / 16.0);
+    assertEquals(990, histogram.getPercentileMillis(99), 990 / 16.0);
+    assertEquals(1000, histogram.getMaxNanos() / 1e6, 0.001);
+    assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+  }
+
+  @Test
+  public void testReport() throws Exception {
+    Metrics metrics = new Metrics();
+    metrics.messageProcessed("INBOX", true, 100);
+    metrics.messageProcessed("INBOX", false, 50);
+    metrics.messageProcessed("Work/\"Solr\"", false, 0);
+    metrics.bytesFetched("INBOX", 10);
+    metrics.restarted();
+    metrics.messageTruncated();
+    metrics.duplicatesSkipped("INBOX", 2);
+    metrics.latency(Metrics.MATCH).record(2000000);
+
+    assertEquals(3, metrics.getMessages());
+    assertEquals(1, metrics.getMatches());
+    assertEquals(160, metrics.getBytesFetched());
+    assertEquals(Long.valueOf(2), metrics.getFolderMessages().get("INBOX"));
+
+    StringWriter out = new StringWriter();
+    metrics.writeReport(out);
+    String report = out.toString();
+    assertTrue(report, report.contains("\"messages\":3,\"matches\":1,\"duplicates\":2,\"bytes_fetched\":160,"
+        + "\"restarts\":1,\"truncated\":1"));
+    assertTrue(report, report.contains("\"match\":{\"count\":1,"));
+    assertTrue(report, report.contains("\"INBOX\":{\"messages\":2,\"matches\":1,\"duplicates\":2,"
+        + "\"bytes_fetched\":160"));
+    assertTrue(report, report.contains("\"Work/\\\"Solr\\\"\":{\"messages\":1"));
+  }
+}
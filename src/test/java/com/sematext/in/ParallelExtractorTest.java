@@ -0,0 +1,102 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ParallelExtractorTest {
+  private ImapTestServer server;
+  private int matching;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ImapTestServer();
+    // the first folder is the largest, later ones finish before it
+    matching = server.addMessages("INBOX", 40, ImapTestServer.Shape.PLAIN, 200, 2);
+    matching += server.addMessages("Work", 10, ImapTestServer.Shape.ALTERNATIVE, 200, 2);
+    matching += server.addMessages("Work.Lucene", 10, ImapTestServer.Shape.ATTACHMENT, 200, 2);
+    matching += server.addMessages("Archive", 10, ImapTestServer.Shape.FORWARD, 200, 2);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private EmailExtractor newExtractor() throws Exception {
+    // every worker has its own duplicate tracking, a serial run shares one
+    BaseConfiguration overrides = new BaseConfiguration();
+    overrides.setProperty("fetch.skip_duplicates", false);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(overrides);
+    config.addConfiguration(server.getConfig());
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(config, ".*", null, null);
+    return extractor;
+  }
+
+  private List<String> serial() throws Exception {
+    EmailExtractor extractor = newExtractor();
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    IMapFetcherTest.Collector results = new IMapFetcherTest.Collector();
+    extractor.extract(fetcher, results);
+    fetcher.disconnectFromMailBox();
+    return lines(results.getResults());
+  }
+
+  private List<String> parallel(boolean ordered, int maxBuffered) throws Exception {
+    EmailExtractor extractor = newExtractor();
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    List<String> folders = fetcher.listFolders();
+    fetcher.disconnectFromMailBox();
+    IMapFetcherTest.Collector results = new IMapFetcherTest.Collector();
+    new ParallelExtractor(extractor, 3, ordered, maxBuffered).run(folders, results);
+    return lines(results.getResults());
+  }
+
+  private static List<String> lines(List<MatchResult> results) {
+    List<String> lines = Lists.newArrayList();
+    for (MatchResult result : results) {
+      lines.add(result.getFolder() + " " + result.getReceivedDate().getTime());
+    }
+    return lines;
+  }
+
+  @Test
+  public void testSameTotalsAsSerial() throws Exception {
+    List<String> serial = serial();
+    assertEquals(matching, serial.size());
+    // folders are written as they finish
+    List<String> parallel = parallel(false, 0);
+    Collections.sort(serial);
+    Collections.sort(parallel);
+    assertEquals(serial, parallel);
+  }
+
+  @Test
+  public void testOrderedSameAsSerial() throws Exception {
+    List<String> serial = serial();
+    assertEquals(serial, parallel(true, 100000));
+    // folders after the first wait for it once two results are buffered
+    assertEquals(serial, parallel(true, 2));
+  }
+}
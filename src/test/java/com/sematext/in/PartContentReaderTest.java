@@ -0,0 +1,137 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+public class PartContentReaderTest {
+  private final KeywordMatcher matcher = new KeywordMatcher(Arrays.<List<String>> asList(Arrays.asList("solr"),
+      Arrays.asList("größe")));
+
+  private static MimeMessage newMessage() {
+    return new MimeMessage(Session.getInstance(new Properties()));
+  }
+
+  @Test
+  public void testMultipartSkipsAttachments() throws Exception {
+    MimeMultipart mp = new MimeMultipart();
+    MimeBodyPart text = new MimeBodyPart();
+    text.setText("Solr question, größe", "ISO-8859-1");
+    mp.addBodyPart(text);
+    MimeBodyPart attachment = new MimeBodyPart();
+    attachment.setContent("solr solr solr".getBytes("US-ASCII"), "application/octet-stream");
+    mp.addBodyPart(attachment);
+
+    MimeMessage message = newMessage();
+    message.setContent(mp);
+    message.saveChanges();
+
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    new PartContentReader(1024).read(message, scanner);
+
+    assertArrayEquals(new int[] { 1, 1 }, scanner.getCounts());
+  }
+
+  @Test
+  public void testPrefetchedSections() throws Exception {
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    MimeBodyPart plain = new MimeBodyPart();
+    plain.setText("streamed solr");
+    alternative.addBodyPart(plain);
+    MimeBodyPart html = new MimeBodyPart();
+    html.setContent("<b>solr</b>", "text/html");
+    alternative.addBodyPart(html);
+
+    MimeMultipart mixed = new MimeMultipart();
+    MimeBodyPart body = new MimeBodyPart();
+    body.setContent(alternative);
+    mixed.addBodyPart(body);
+    MimeBodyPart attachment = new MimeBodyPart();
+    attachment.setContent(new byte[10], "application/pdf");
+    mixed.addBodyPart(attachment);
+    MimeBodyPart log = new MimeBodyPart();
+    log.setText("größe", "UTF-8");
+    mixed.addBodyPart(log);
+
+    MimeMessage message = newMessage();
+    message.setContent(mixed);
+    message.saveChanges();
+
+    assertEquals(Arrays.asList("1.1", "3"), PartContentReader.getTextSections(message));
+
+    Map<String, byte[]> prefetched = new HashMap<String, byte[]>();
+    prefetched.put("1.1", "prefetched solr solr".getBytes("US-ASCII"));
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    new PartContentReader(1024).read(message, prefetched, 100, scanner);
+
+    assertArrayEquals(new int[] { 2, 1 }, scanner.getCounts());
+  }
+
+  @Test
+  public void testHtml() throws Exception {
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    MimeBodyPart html = new MimeBodyPart();
+    html.setContent("<a href=\"http://solr.example.com\">Solr</a> &amp; solr", "text/html");
+    alternative.addBodyPart(html);
+    MimeBodyPart plain = new MimeBodyPart();
+    plain.setText("plain solr");
+    alternative.addBodyPart(plain);
+    MimeMessage message = newMessage();
+    message.setContent(alternative);
+    message.saveChanges();
+
+    assertEquals(Arrays.asList("2"), PartContentReader.getTextSections(message));
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    new PartContentReader(1024).read(message, scanner);
+    assertArrayEquals(new int[] { 1, 0 }, scanner.getCounts());
+
+    // only html, the link target isn't counted
+    message = newMessage();
+    message.setContent("<html><style>.solr{}</style><a href=\"http://solr.example.com\">Solr</a> &amp; gr&ouml;&szlig;e"
+        + " gr&#xF6;&#223;e</html>", "text/html; charset=UTF-8");
+    message.saveChanges();
+    scanner = matcher.newScanner();
+    PartContentReader reader = new PartContentReader(1024);
+    reader.setCapture(true);
+    reader.read(message, scanner);
+    assertArrayEquals(new int[] { 1, 1 }, scanner.getCounts());
+    assertEquals(" Solr & gr&ouml;&szlig;e größe  ", reader.getText());
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      sb.append("solr ");
+    }
+    MimeMessage message = newMessage();
+    message.setText(sb.toString(), "UTF-8");
+    message.saveChanges();
+
+    KeywordMatcher.Scanner scanner = matcher.newScanner();
+    PartContentReader reader = new PartContentReader(100);
+    reader.read(message, scanner);
+
+    assertTrue(reader.isTruncated());
+    assertEquals(20, scanner.getCounts()[0]);
+  }
+}
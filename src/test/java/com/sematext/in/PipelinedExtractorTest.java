@@ -0,0 +1,80 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Maps;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class PipelinedExtractorTest {
+  private ImapTestServer server;
+  private int matching;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ImapTestServer();
+    matching = server.addMessages("INBOX", 50, ImapTestServer.Shape.PLAIN, 200, 2);
+    matching += server.addMessages("Work", 50, ImapTestServer.Shape.ALTERNATIVE, 200, 2);
+    matching += server.addMessages("Work.Lucene", 50, ImapTestServer.Shape.ATTACHMENT, 200, 2);
+    matching += server.addMessages("Archive", 50, ImapTestServer.Shape.FORWARD, 200, 2);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private List<MatchResult> extract(int pipelineThreads) throws Exception {
+    // several batches per folder, content is read by the workers
+    BaseConfiguration batches = new BaseConfiguration();
+    batches.setProperty("fetch.batch_size", 20);
+    batches.setProperty("fetch.adaptive_batch", false);
+    batches.setProperty("fetch.skip_duplicates", false);
+    CompositeConfiguration config = new CompositeConfiguration();
+    config.addConfiguration(batches);
+    config.addConfiguration(server.getConfig());
+
+    EmailExtractor extractor = new EmailExtractor();
+    extractor.configure(config, ".*", null, null);
+    extractor.setPipelineThreads(pipelineThreads);
+    MessageSource fetcher = extractor.newSource();
+    assertTrue(fetcher.connectToMailBox());
+    IMapFetcherTest.Collector results = new IMapFetcherTest.Collector();
+    extractor.extract(fetcher, results);
+    fetcher.disconnectFromMailBox();
+    return results.getResults();
+  }
+
+  static Map<String, Integer> countByFolder(List<MatchResult> results) {
+    Map<String, Integer> counts = Maps.newTreeMap();
+    for (MatchResult result : results) {
+      Integer count = counts.get(result.getFolder());
+      counts.put(result.getFolder(), count == null ? 1 : count + 1);
+    }
+    return counts;
+  }
+
+  @Test
+  public void testFoldersSameAsSerial() throws Exception {
+    List<MatchResult> serial = extract(0);
+    assertEquals(matching, serial.size());
+    // the fetching thread moves to the next folder only after workers finished the current one
+    List<MatchResult> pipelined = extract(4);
+    assertEquals(countByFolder(serial), countByFolder(pipelined));
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ *    Copyright (c) Sematext International
+ *    All Rights Reserved
+ *
+ *    THIS IS UNPUBLISHED PROPRIETARY SOURCE CODE OF Sematext International
+ *    The copyright notice above does not evidence any
+ *    actual or intended publication of such source code.
+ */
+package com.sematext.in;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ResultSinkTest {
+  private final MatchResult result = new MatchResult("ES", "Work, \"old\"", null, "2016-01-10",
+      Arrays.asList("ann@example.com"), Arrays.asList("bob@example.com", null));
+
+  @Test
+  public void testText() throws Exception {
+    StringWriter out = new StringWriter();
+    ResultSink sink = new TextResultSink(out);
+    sink.write(result);
+    sink.close();
+
+    assertEquals("from ann@example.com ES Work, \"old\" at 2016-01-10 \n"
+        + "to bob@example.com ES Work, \"old\" at 2016-01-10 \n"
+        + "to null ES Work, \"old\" at 2016-01-10 \n", out.toString());
+  }
+
+  @Test
+  public void testCsv() throws Exception {
+    StringWriter out = new StringWriter();
+    ResultSink sink = new CsvResultSink(out);
+    sink.write(result);
+    sink.close();
+
+    assertEquals("type,address,category,folder,date\r\n"
+        + "from,ann@example.com,ES,\"Work, \"\"old\"\"\",2016-01-10\r\n"
+        + "to,bob@example.com,ES,\"Work, \"\"old\"\"\",2016-01-10\r\n"
+        + "to,,ES,\"Work, \"\"old\"\"\",2016-01-10\r\n", out.toString());
+  }
+
+  @Test
+  public void testJsonl() throws Exception {
+    StringWriter out = new StringWriter();
+    ResultSink sink = new JsonlResultSink(out);
+    sink.write(new MatchResult("Solr", "a\\b\n", null, null, Arrays.asList("ann@example.com"),
+        Collections.<String> emptyList()));
+    sink.close();
+
+    assertEquals("{\"type\":\"from\",\"address\":\"ann@example.com\",\"category\":\"Solr\",\"folder\":\"a\\\\b\\u000a\","
+        + "\"date\":null}\n", out.toString());
+  }
+}